@@ -0,0 +1,33 @@
+package monitoring.benchmarks;
+
+import com.typesafe.config.ConfigFactory;
+import monitoring.config.Configuration;
+import monitoring.storage.StorageResponse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Shared setup of benchmarks: the same configuration file as the application uses, generated data **/
+public final class BenchmarkConfig {
+    private BenchmarkConfig() { }
+
+    /** Benchmarks are run from project directory (see jmh task in build.gradle) **/
+    public static Configuration load() {
+        return new Configuration(ConfigFactory.parseFile(new File("config/application.conf")).getConfig("monitoring-controller"));
+    }
+
+    /** Storage values shaped like StorageStub ones: noisy metric with rare spikes, one per second **/
+    public static List<StorageResponse> storageResponses(int count) {
+        Random random = new Random(42);
+        List<StorageResponse> responses = new ArrayList<>(count);
+        long ts = 1_478_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            double value = random.nextInt(100) == 0 ? 99.0 : 30 + random.nextDouble() * 10;
+            responses.add(new StorageResponse("key-" + i, String.valueOf(ts + i * 1000L),
+                    "{ \"metric_id\": " + i + ", \"metric\": {\"value\": " + value + "}}"));
+        }
+        return responses;
+    }
+}
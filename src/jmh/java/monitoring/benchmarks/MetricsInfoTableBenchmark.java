@@ -0,0 +1,78 @@
+package monitoring.benchmarks;
+
+import monitoring.MetricsInfoTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups in {@link MetricsInfoTable} from many request threads, alone and together with registrations,
+ * and rendering of /getMetricsTable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetricsInfoTableBenchmark {
+    private static final String[] TYPES = {"cpu", "gpu", "hdd", "ram"};
+
+    @Param({"1000"})
+    public int hosts;
+
+    private MetricsInfoTable table;
+
+    @Setup
+    public void setup() {
+        table = new MetricsInfoTable();
+        for (int i = 0; i < hosts; i++) {
+            for (String type : TYPES) {
+                table.addMetricInfo(host(i), "8080", type);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Long lookup() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return table.getMetricInfoId(host(random.nextInt(hosts)), "8080", TYPES[random.nextInt(TYPES.length)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(7)
+    public Long mixedLookup() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedRegister() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String host = host(random.nextInt(hosts));
+        String type = TYPES[random.nextInt(TYPES.length)];
+        table.removeMetricInfo(host, "8080", type);
+        table.addMetricInfo(host, "8080", type);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public String allMetricsInfoAsJson() {
+        return table.getAllMetricsInfoAsJson();
+    }
+
+    private static String host(int i) {
+        return "host-" + i + ".example.org";
+    }
+}
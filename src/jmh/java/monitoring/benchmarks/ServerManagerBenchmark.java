@@ -0,0 +1,71 @@
+package monitoring.benchmarks;
+
+import monitoring.ServerManager;
+import monitoring.balancing.BalancingMode;
+import monitoring.config.BalancingSettings;
+import monitoring.config.Configuration;
+import monitoring.config.HealthSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Choosing server for a request from many threads with every balancing strategy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServerManagerBenchmark {
+    @Param({"round-robin", "weighted", "least-outstanding", "p2c"})
+    public String strategy;
+
+    @Param({"5"})
+    public int servers;
+
+    private ServerManager manager;
+
+    @Setup
+    public void setup() throws Exception {
+        Configuration config = BenchmarkConfig.load();
+        manager = new ServerManager("benchmark",
+                config.httpClient,
+                new BalancingSettings(BalancingMode.byName(strategy), config.balancing.ewmaAlpha),
+                // no background probes
+                new HealthSettings(0, config.health.probePath, config.health.probeTimeout,
+                        config.health.failureThreshold, config.health.openDuration)
+        );
+        for (int i = 0; i < servers; i++) {
+            manager.add(new URL("http://10.0.0." + i + ":8080/"), i + 1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public URL next() {
+        return manager.next();
+    }
+
+    /** next() together with in-flight and latency bookkeeping of a request that completes at once **/
+    @Benchmark
+    @Threads(16)
+    public CompletableFuture<URL> nextAndCall() {
+        URL server = manager.next();
+        return manager.call(server, () -> CompletableFuture.completedFuture(server));
+    }
+}
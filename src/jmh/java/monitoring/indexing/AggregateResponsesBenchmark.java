@@ -0,0 +1,73 @@
+package monitoring.indexing;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import monitoring.benchmarks.BenchmarkConfig;
+import monitoring.config.Configuration;
+import monitoring.downsampling.DownsampleMode;
+import monitoring.storage.StorageResponse;
+import monitoring.utils.JsonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building /getMetrics body from storage responses: downsampling to maxResultAmount and writing JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AggregateResponsesBenchmark {
+    @Param({"300", "10000", "100000"})
+    public int points;
+
+    @Param({"stride", "lttb", "minmax", "avg"})
+    public String downsample;
+
+    private IndexingHandler handler;
+    private List<StorageResponse> responses;
+    private DownsampleMode mode;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setup() {
+        Configuration config = BenchmarkConfig.load();
+        handler = new IndexingHandler(config, null, null, null);
+        responses = BenchmarkConfig.storageResponses(points);
+        mode = DownsampleMode.valueOf(downsample.toUpperCase());
+    }
+
+    @Benchmark
+    public int agregateResponses() throws IOException {
+        List<StorageResponse> metrics = handler.agregateResponses(responses, mode.downsampler);
+        out.reset();
+        try (JsonGenerator generator = JsonUtils.generator(out)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("metrics");
+            for (StorageResponse metric : metrics) {
+                MetricsStreamWriter.writeMetric(generator, metric);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public int writeMetric() throws IOException {
+        out.reset();
+        try (JsonGenerator generator = JsonUtils.generator(out)) {
+            MetricsStreamWriter.writeMetric(generator, responses.get(points / 2));
+        }
+        return out.size();
+    }
+}
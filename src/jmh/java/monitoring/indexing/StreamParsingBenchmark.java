@@ -0,0 +1,59 @@
+package monitoring.indexing;
+
+import monitoring.utils.JsonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk handling of {@link IndexingAsyncResponseHandler}: framing '@'-delimited stream and parsing every record,
+ * without HTTP and storage requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamParsingBenchmark {
+    @Param({"10000"})
+    public int records;
+
+    /** size of body parts as Netty delivers them **/
+    @Param({"512", "8192"})
+    public int chunkSize;
+
+    private byte[][] chunks;
+
+    @Setup
+    public void setup() {
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            stream.append("{\"key\": \"").append(Long.toHexString(i * 0x9E3779B97F4A7C15L)).append("\"}@");
+        }
+        byte[] bytes = stream.toString().getBytes(StandardCharsets.UTF_8);
+        int count = (bytes.length + chunkSize - 1) / chunkSize;
+        chunks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = Arrays.copyOfRange(bytes, i * chunkSize, Math.min(bytes.length, (i + 1) * chunkSize));
+        }
+    }
+
+    @Benchmark
+    public void frameAndParse(Blackhole blackhole) throws Exception {
+        DelimitedRecordFramer framer = new DelimitedRecordFramer((byte) '@');
+        DelimitedRecordFramer.RecordConsumer consumer =
+                (buffer, offset, length) -> blackhole.consume(JsonUtils.indexingResponse(buffer, offset, length));
+        for (byte[] chunk : chunks) {
+            framer.feed(chunk, 0, chunk.length, consumer);
+        }
+        framer.finish(consumer);
+    }
+}
@@ -0,0 +1,55 @@
+package monitoring.loadtest;
+
+import com.typesafe.config.Config;
+
+public class IndexingSimulatorSettings {
+    public final int instances;
+    public final int keysPerQuery;
+    public final LatencyDistribution latency;
+    public final double errorRate;
+    public final double noContentRate;
+    public final int recordsPerChunk;
+    public final boolean splitRecords;
+    public final LatencyDistribution chunkDelay;
+    public final boolean countHeader;
+
+    public IndexingSimulatorSettings(int instances, int keysPerQuery, LatencyDistribution latency, double errorRate,
+                                     double noContentRate, int recordsPerChunk, boolean splitRecords,
+                                     LatencyDistribution chunkDelay, boolean countHeader) {
+        this.instances = instances;
+        this.keysPerQuery = keysPerQuery;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.noContentRate = noContentRate;
+        this.recordsPerChunk = recordsPerChunk;
+        this.splitRecords = splitRecords;
+        this.chunkDelay = chunkDelay;
+        this.countHeader = countHeader;
+    }
+
+    public IndexingSimulatorSettings(Config config) {
+        this(config.getInt("instances"),
+             config.getInt("keys-per-query"),
+             new LatencyDistribution(config.getConfig("latency")),
+             config.getDouble("error-rate"),
+             config.getDouble("no-content-rate"),
+             config.getInt("stream.records-per-chunk"),
+             config.getBoolean("stream.split-records"),
+             new LatencyDistribution(config.getConfig("stream.chunk-delay")),
+             config.getBoolean("stream.count-header")
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "instances=" + instances + "," +
+                "keys-per-query=" + keysPerQuery + "," +
+                "latency=" + latency + "," +
+                "error-rate=" + errorRate + "," +
+                "no-content-rate=" + noContentRate + "," +
+                "records-per-chunk=" + recordsPerChunk + "," +
+                "split-records=" + splitRecords + "," +
+                "chunk-delay=" + chunkDelay + "," +
+                "count-header=" + countHeader;
+    }
+}
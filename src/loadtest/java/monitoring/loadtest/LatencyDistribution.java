@@ -0,0 +1,89 @@
+package monitoring.loadtest;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Random delay of simulated service. Configured as one of:
+ * { distribution = fixed, value = 2 ms }, { distribution = uniform, min = 1 ms, max = 10 ms },
+ * { distribution = exponential, mean = 3 ms } or { distribution = lognormal, median = 3 ms, sigma = 0.8 },
+ * lognormal with sigma around 1 gives the long tail usually seen in production.
+ */
+public class LatencyDistribution {
+    public enum Kind { FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL }
+
+    public final Kind kind;
+    /** microseconds: value, min, mean or median depending on kind **/
+    public final long first;
+    /** microseconds: max for uniform **/
+    public final long second;
+    public final double sigma;
+
+    public LatencyDistribution(Kind kind, long first, long second, double sigma) {
+        this.kind = kind;
+        this.first = first;
+        this.second = second;
+        this.sigma = sigma;
+    }
+
+    public LatencyDistribution(Config config) {
+        this(Kind.valueOf(config.getString("distribution").toUpperCase()),
+             config.getDuration(firstKey(config.getString("distribution")), TimeUnit.MICROSECONDS),
+             config.hasPath("max") ? config.getDuration("max", TimeUnit.MICROSECONDS) : 0,
+             config.hasPath("sigma") ? config.getDouble("sigma") : 0
+        );
+    }
+
+    private static String firstKey(String distribution) {
+        switch (Kind.valueOf(distribution.toUpperCase())) {
+            case UNIFORM:
+                return "min";
+            case EXPONENTIAL:
+                return "mean";
+            case LOGNORMAL:
+                return "median";
+            default:
+                return "value";
+        }
+    }
+
+    /** @return random delay in microseconds **/
+    public long sample() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (kind) {
+            case UNIFORM:
+                return first >= second ? first : random.nextLong(first, second + 1);
+            case EXPONENTIAL:
+                return (long) (-first * Math.log(1 - random.nextDouble()));
+            case LOGNORMAL:
+                return (long) (first * Math.exp(sigma * random.nextGaussian()));
+            default:
+                return first;
+        }
+    }
+
+    /** Blocks calling thread for a random delay **/
+    public void sleep() {
+        long micros = sample();
+        if (micros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case UNIFORM:
+                return "uniform(" + first + "us.." + second + "us)";
+            case EXPONENTIAL:
+                return "exponential(mean=" + first + "us)";
+            case LOGNORMAL:
+                return "lognormal(median=" + first + "us,sigma=" + sigma + ")";
+            default:
+                return "fixed(" + first + "us)";
+        }
+    }
+}
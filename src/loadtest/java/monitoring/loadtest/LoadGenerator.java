@@ -0,0 +1,126 @@
+package monitoring.loadtest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Closed-loop load: every client sends next /getMetrics request as soon as the previous one is answered.
+ * Requests are spread over the given number of timestamps, so identical queries meet as often as
+ * they would with that many dashboards open. Requests that start during warm-up are not measured.
+ */
+class LoadGenerator {
+    private static final Logger logger = LogManager.getLogger(LoadGenerator.class);
+
+    private final LoadTestSettings settings;
+    private final String baseUrl;
+
+    LoadGenerator(LoadTestSettings settings, String baseUrl) {
+        this.settings = settings;
+        this.baseUrl = baseUrl;
+    }
+
+    LoadReport run(String mode, String metricQuery) throws InterruptedException {
+        String url = baseUrl + "/getMetrics?" + metricQuery + "&stream=" + "stream".equals(mode) + settings.query;
+        long measureFrom = System.nanoTime() + settings.warmUp * 1_000_000;
+        long deadline = measureFrom + settings.duration * 1_000_000;
+
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < settings.clients; i++) {
+            Client client = new Client(url, measureFrom, deadline);
+            client.thread = new Thread(client, "load-client-" + i);
+            client.thread.start();
+            clients.add(client);
+        }
+
+        long[] latencies = new long[0];
+        Map<Integer, Long> statuses = new HashMap<>();
+        long failures = 0;
+        long bytes = 0;
+        for (Client client : clients) {
+            client.thread.join();
+            long[] merged = new long[latencies.length + client.count];
+            System.arraycopy(latencies, 0, merged, 0, latencies.length);
+            System.arraycopy(client.latencies, 0, merged, latencies.length, client.count);
+            latencies = merged;
+            client.statuses.forEach((status, count) -> statuses.merge(status, count, Long::sum));
+            failures += client.failures;
+            bytes += client.bytes;
+        }
+        return new LoadReport(mode, latencies, statuses, failures, bytes, settings.duration);
+    }
+
+    private class Client implements Runnable {
+        final String url;
+        final long measureFrom;
+        final long deadline;
+        Thread thread;
+
+        long[] latencies = new long[1024];
+        int count = 0;
+        final Map<Integer, Long> statuses = new HashMap<>();
+        long failures = 0;
+        long bytes = 0;
+
+        Client(String url, long measureFrom, long deadline) {
+            this.url = url;
+            this.measureFrom = measureFrom;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                long start = System.nanoTime();
+                if (start >= deadline) {
+                    return;
+                }
+                int status;
+                long read = 0;
+                try {
+                    String timestamp = String.valueOf(ThreadLocalRandom.current().nextInt(settings.timestamps));
+                    HttpURLConnection connection = (HttpURLConnection) new URL(url + "&timestamp=" + timestamp).openConnection();
+                    status = connection.getResponseCode();
+                    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                    if (in != null) {
+                        try (InputStream body = in) {
+                            for (int n; (n = body.read(buffer)) != -1; ) {
+                                read += n;
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.debug("Load test request failed: " + e);
+                    if (start >= measureFrom) {
+                        failures++;
+                    }
+                    continue;
+                }
+                if (start >= measureFrom) {
+                    record((System.nanoTime() - start) / 1000);
+                    statuses.merge(status, 1L, Long::sum);
+                    bytes += read;
+                }
+            }
+        }
+
+        private void record(long micros) {
+            if (count == latencies.length) {
+                long[] grown = new long[count * 2];
+                System.arraycopy(latencies, 0, grown, 0, count);
+                latencies = grown;
+            }
+            latencies[count++] = micros;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package monitoring.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Throughput and latency percentiles of requests completed during measurement **/
+class LoadReport {
+    private final String mode;
+    private final long[] latencies;
+    private final Map<Integer, Long> statuses;
+    private final long failures;
+    private final long bytes;
+    private final long durationMillis;
+
+    LoadReport(String mode, long[] latencies, Map<Integer, Long> statuses, long failures, long bytes, long durationMillis) {
+        this.mode = mode;
+        this.latencies = latencies;
+        this.statuses = new TreeMap<>(statuses);
+        this.failures = failures;
+        this.bytes = bytes;
+        this.durationMillis = durationMillis;
+        Arrays.sort(this.latencies);
+    }
+
+    /** @return latency in microseconds, nearest-rank **/
+    long percentile(double p) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * latencies.length);
+        return latencies[Math.max(0, Math.min(latencies.length, rank) - 1)];
+    }
+
+    double throughput() {
+        return latencies.length * 1000.0 / durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-7s requests=%d (%.1f/s, %.1f MB/s) statuses=%s failures=%d%n"
+                        + "        latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+                mode, latencies.length, throughput(), bytes / 1e3 / durationMillis, statuses, failures,
+                percentile(0.5) / 1e3, percentile(0.9) / 1e3, percentile(0.99) / 1e3, percentile(0.999) / 1e3,
+                percentile(1) / 1e3);
+    }
+}
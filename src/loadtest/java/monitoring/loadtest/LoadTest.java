@@ -0,0 +1,103 @@
+package monitoring.loadtest;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import monitoring.AppInitializer;
+import monitoring.config.Configuration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts simulated indexing and storage nodes, registers them in controller (started in this process unless
+ * load-test.controller is set) and runs /getMetrics load in every configured mode: "sync" asks indexing
+ * for the whole response, "stream" for '@'-separated stream.
+ * Settings are read from config/loadtest.conf, its monitoring-controller block overrides config/application.conf:
+ *
+ * gradle loadTest [-PloadTestConfig=path/to/loadtest.conf]
+ */
+public class LoadTest {
+    private static final Logger logger = LogManager.getLogger(LoadTest.class);
+
+    private LoadTest() { }
+
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : "config/loadtest.conf";
+        Config root = ConfigFactory.parseFile(new File(path))
+                .withFallback(ConfigFactory.parseFile(new File("config/application.conf")));
+        LoadTestSettings settings = new LoadTestSettings(root.getConfig("load-test"));
+        logger.info("Load test settings: " + settings);
+
+        List<SimulatedService> services = new ArrayList<>();
+        AppInitializer controller = null;
+        try {
+            String baseUrl = settings.controller;
+            if (baseUrl.isEmpty()) {
+                Configuration config = new Configuration(root.getConfig("monitoring-controller"));
+                controller = new AppInitializer(config);
+                controller.start();
+                baseUrl = "http://127.0.0.1:" + config.port;
+            }
+
+            for (int i = 0; i < settings.indexing.instances; i++) {
+                services.add(new SimulatedIndexing(settings.indexing));
+            }
+            for (int i = 0; i < settings.storage.instances; i++) {
+                services.add(new SimulatedStorage(settings.storage));
+            }
+            for (SimulatedService service : services) {
+                service.start();
+                String route = service instanceof SimulatedIndexing ? "/addIndexing" : "/addStorage";
+                post(baseUrl + route + "?host=127.0.0.1&port=" + service.getPort());
+            }
+
+            // one monitored metric, simulated indexing does not care about its id
+            String metricQuery = "host=loadtest&port=1&type=" + URLEncoder.encode(settings.metricType, "UTF-8");
+            post(baseUrl + "/startMonitoring?" + metricQuery);
+
+            List<LoadReport> reports = new ArrayList<>();
+            for (String mode : settings.modes) {
+                logger.info("Running " + mode + " load for " + (settings.warmUp + settings.duration) + " ms");
+                reports.add(new LoadGenerator(settings, baseUrl).run(mode, metricQuery));
+            }
+
+            System.out.println("GET /getMetrics with " + settings.clients + " clients, "
+                    + settings.indexing.keysPerQuery + " keys per query, " + settings.duration + " ms per mode:");
+            for (LoadReport report : reports) {
+                System.out.println(report);
+            }
+            for (SimulatedService service : services) {
+                System.out.println(service.getClass().getSimpleName() + " :" + service.getPort()
+                        + " requests=" + service.requests.sum() + " errors=" + service.errors.sum()
+                        + " noContent=" + service.noContent.sum());
+            }
+        } finally {
+            services.forEach(SimulatedService::stop);
+            if (controller != null) {
+                controller.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void post(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        int status = connection.getResponseCode();
+        InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (body != null) {
+            body.close();
+        }
+        if (status != 200) {
+            throw new IOException("POST " + url + " failed with status " + status);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package monitoring.loadtest;
+
+import com.typesafe.config.Config;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class LoadTestSettings {
+    public final String controller;
+    public final List<String> modes;
+    public final String query;
+    public final String metricType;
+    public final int timestamps;
+    public final int clients;
+    public final long warmUp;
+    public final long duration;
+    public final IndexingSimulatorSettings indexing;
+    public final StorageSimulatorSettings storage;
+
+    public LoadTestSettings(String controller, List<String> modes, String query, String metricType, int timestamps,
+                            int clients, long warmUp, long duration,
+                            IndexingSimulatorSettings indexing, StorageSimulatorSettings storage) {
+        this.controller = controller;
+        this.modes = modes;
+        this.query = query;
+        this.metricType = metricType;
+        this.timestamps = timestamps;
+        this.clients = clients;
+        this.warmUp = warmUp;
+        this.duration = duration;
+        this.indexing = indexing;
+        this.storage = storage;
+    }
+
+    public LoadTestSettings(Config config) {
+        this(config.getString("controller"),
+             config.getStringList("modes"),
+             config.getString("query"),
+             config.getString("metric-type"),
+             config.getInt("timestamps"),
+             config.getInt("clients"),
+             config.getDuration("warm-up", TimeUnit.MILLISECONDS),
+             config.getDuration("duration", TimeUnit.MILLISECONDS),
+             new IndexingSimulatorSettings(config.getConfig("indexing")),
+             new StorageSimulatorSettings(config.getConfig("storage"))
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "controller=" + controller + "," +
+                "modes=" + modes + "," +
+                "query=" + query + "," +
+                "metric-type=" + metricType + "," +
+                "timestamps=" + timestamps + "," +
+                "clients=" + clients + "," +
+                "warm-up=" + warmUp + "," +
+                "duration=" + duration + "," +
+                "indexing=[" + indexing + "]," +
+                "storage=[" + storage + "]";
+    }
+}
@@ -0,0 +1,99 @@
+package monitoring.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Indexing node answering GET /getIndexData/:id[/:timestamp] with keys-per-query keys. With "stream: true" header
+ * keys are sent as '@'-separated records with chunked encoding, records-per-chunk records in a chunk and
+ * chunk-delay between chunks; with split-records chunk boundaries are shifted by a random number of bytes,
+ * so records are cut between chunks the way TCP does it. Otherwise all keys are sent as one JSON document.
+ * Keys depend on id, timestamp and position only, so every node gives the same answer. Since parameter is
+ * ignored, so every answer has offset 0 and the controller skips old keys itself.
+ */
+class SimulatedIndexing extends SimulatedService {
+    private final IndexingSimulatorSettings settings;
+
+    SimulatedIndexing(IndexingSimulatorSettings settings) throws IOException {
+        super("simulated-indexing");
+        this.settings = settings;
+    }
+
+    @Override
+    void handle(HttpExchange exchange) throws IOException {
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        if (path.length < 3 || !"getIndexData".equals(path[1])) {
+            send(exchange, 404, "Unknown path");
+            return;
+        }
+        String query = path[2] + "-" + (path.length > 3 ? path[3] : "latest");
+
+        settings.latency.sleep();
+        if (injectFailure(exchange, settings.errorRate, settings.noContentRate)) {
+            return;
+        }
+        if ("true".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("stream"))) {
+            stream(exchange, query);
+        } else {
+            whole(exchange, query);
+        }
+    }
+
+    private void whole(HttpExchange exchange, String query) throws IOException {
+        StringBuilder body = new StringBuilder("{\"status\": \"ok\", \"timestamp\": \"0\", \"offset\": \"0\", \"count\": \"")
+                .append(settings.keysPerQuery).append("\", \"keys\": [");
+        for (int i = 0; i < settings.keysPerQuery; i++) {
+            body.append(i == 0 ? "" : ", ").append("{\"key\": \"").append(key(query, i)).append("\"}");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, 200, body.append("]}").toString());
+    }
+
+    private void stream(HttpExchange exchange, String query) throws IOException {
+        exchange.getResponseHeaders().set("offset", "0");
+        if (settings.countHeader) {
+            exchange.getResponseHeaders().set("count", String.valueOf(settings.keysPerQuery));
+        }
+        exchange.sendResponseHeaders(200, 0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try (OutputStream out = exchange.getResponseBody()) {
+            byte[] carry = new byte[0];
+            for (int from = 0; from < settings.keysPerQuery; from += settings.recordsPerChunk) {
+                StringBuilder records = new StringBuilder();
+                for (int i = from; i < Math.min(settings.keysPerQuery, from + settings.recordsPerChunk); i++) {
+                    records.append("{\"key\": \"").append(key(query, i)).append("\"}@");
+                }
+                byte[] bytes = concat(carry, records.toString().getBytes(StandardCharsets.UTF_8));
+                int length = bytes.length;
+                if (settings.splitRecords && from + settings.recordsPerChunk < settings.keysPerQuery) {
+                    // hold back a random tail, it goes out with the next chunk
+                    length -= random.nextInt(Math.min(bytes.length, 64));
+                }
+                out.write(bytes, 0, length);
+                out.flush();
+                carry = Arrays.copyOfRange(bytes, length, bytes.length);
+                settings.chunkDelay.sleep();
+            }
+            out.write(carry);
+        }
+    }
+
+    static String key(String query, int i) {
+        return "lt-" + query + "-" + i;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
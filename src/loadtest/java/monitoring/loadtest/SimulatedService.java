@@ -0,0 +1,101 @@
+package monitoring.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP server on an ephemeral port of loopback interface standing in for indexing or storage node.
+ * Requests are handled by a cached pool, so simulated latency does not limit concurrency.
+ * GET / answers 200, so health probes of controller see the node as alive.
+ */
+abstract class SimulatedService {
+    private static final Logger logger = LogManager.getLogger(SimulatedService.class);
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder noContent = new LongAdder();
+
+    SimulatedService(String name) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try {
+                if ("/".equals(exchange.getRequestURI().getPath())) {
+                    send(exchange, 200, "ok");
+                } else {
+                    requests.increment();
+                    handle(exchange);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Error in simulated " + name + ": " + e);
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    abstract void handle(HttpExchange exchange) throws IOException;
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + getPort() + "/");
+    }
+
+    /** Answers with 500 or 204 with configured probabilities, returns true if request is answered **/
+    boolean injectFailure(HttpExchange exchange, double errorRate, double noContentRate) throws IOException {
+        double dice = ThreadLocalRandom.current().nextDouble();
+        if (dice < errorRate) {
+            errors.increment();
+            send(exchange, 500, "simulated error");
+            return true;
+        }
+        if (dice < errorRate + noContentRate) {
+            noContent.increment();
+            exchange.sendResponseHeaders(204, -1);
+            return true;
+        }
+        return false;
+    }
+
+    static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
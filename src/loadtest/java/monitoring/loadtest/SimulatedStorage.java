@@ -0,0 +1,74 @@
+package monitoring.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import monitoring.storage.StorageResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage node answering GET /key/:key and, if batch is enabled, POST /keys (404 otherwise, so controller
+ * falls back to single keys). Share no-content-rate of keys has no value: it is decided by key hash, so
+ * all nodes agree and repeated requests get the same answer. Errors are random.
+ */
+class SimulatedStorage extends SimulatedService {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final StorageSimulatorSettings settings;
+
+    SimulatedStorage(StorageSimulatorSettings settings) throws IOException {
+        super("simulated-storage");
+        this.settings = settings;
+    }
+
+    @Override
+    void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/key/")) {
+            String key = path.substring("/key/".length());
+            settings.latency.sleep();
+            if (injectFailure(exchange, settings.errorRate, 0)) {
+                return;
+            }
+            if (!exists(key)) {
+                noContent.increment();
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            send(exchange, 200, mapper.writeValueAsString(value(key)));
+        } else if (path.equals("/keys") && settings.batch) {
+            String[] keys;
+            try (InputStream in = exchange.getRequestBody()) {
+                keys = mapper.readValue(in, String[].class);
+            }
+            settings.latency.sleep();
+            if (injectFailure(exchange, settings.errorRate, 0)) {
+                return;
+            }
+            List<StorageResponse> values = new ArrayList<>(keys.length);
+            for (String key : keys) {
+                if (exists(key)) {
+                    values.add(value(key));
+                } else {
+                    noContent.increment();
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            send(exchange, 200, mapper.writeValueAsString(values));
+        } else {
+            send(exchange, 404, "Unknown path");
+        }
+    }
+
+    private boolean exists(String key) {
+        return (key.hashCode() & 0x7fffffff) % 100_000 >= settings.noContentRate * 100_000;
+    }
+
+    private static StorageResponse value(String key) {
+        int hash = key.hashCode();
+        return new StorageResponse(key, String.valueOf(1_478_000_000_000L + (hash & 0xffffff)),
+                "{ \"metric_id\": " + (hash & 0x7fffffff) + ", \"metric\": {\"value\": " + (hash & 0xffff) / 655.36 + "}}");
+    }
+}
@@ -0,0 +1,38 @@
+package monitoring.loadtest;
+
+import com.typesafe.config.Config;
+
+public class StorageSimulatorSettings {
+    public final int instances;
+    public final LatencyDistribution latency;
+    public final double errorRate;
+    public final double noContentRate;
+    public final boolean batch;
+
+    public StorageSimulatorSettings(int instances, LatencyDistribution latency, double errorRate,
+                                    double noContentRate, boolean batch) {
+        this.instances = instances;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.noContentRate = noContentRate;
+        this.batch = batch;
+    }
+
+    public StorageSimulatorSettings(Config config) {
+        this(config.getInt("instances"),
+             new LatencyDistribution(config.getConfig("latency")),
+             config.getDouble("error-rate"),
+             config.getDouble("no-content-rate"),
+             config.getBoolean("batch")
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "instances=" + instances + "," +
+                "latency=" + latency + "," +
+                "error-rate=" + errorRate + "," +
+                "no-content-rate=" + noContentRate + "," +
+                "batch=" + batch;
+    }
+}
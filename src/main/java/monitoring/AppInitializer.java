@@ -1,11 +1,16 @@
 package monitoring;
 
+import monitoring.balancing.Backend;
 import monitoring.config.Configuration;
 import monitoring.dataconsuming.DataConsumingHandler;
 import monitoring.indexing.IndexingHandler;
+import monitoring.indexing.LiveTail;
+import monitoring.metrics.MetricsRegistry;
 import monitoring.offline.OfflineHandler;
 import monitoring.online.OnlineHandler;
+import monitoring.storage.StorageClient;
 import monitoring.storage.StorageHandler;
+import monitoring.utils.JsonUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.http.HttpStatus;
@@ -14,8 +19,14 @@ import spark.Response;
 import spark.Spark;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.Socket;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static monitoring.utils.ResponseUtils.getError;
 import static monitoring.utils.ResponseUtils.getOk;
@@ -26,18 +37,39 @@ public class AppInitializer {
 
     final String hostField = "host";
     final String portField = "port";
+    final String weightField = "weight";
 
     private Configuration config;
 
-    private MetricsInfoTable table = new MetricsInfoTable();
-    private ServerManager dataConsumingManager = new ServerManager("data consuming");
-    private ServerManager onlineManager = new ServerManager("online analytics");
-    private ServerManager offlineManager = new ServerManager("offline analytics");
-    private ServerManager storageManager = new ServerManager("storage service");
-    private ServerManager indexingManager = new ServerManager("indexing");
+    private MetricsInfoTable table;
+    private ServerManager dataConsumingManager;
+    private ServerManager onlineManager;
+    private ServerManager offlineManager;
+    private ServerManager storageManager;
+    private ServerManager indexingManager;
+    private StorageClient storageClient;
+    private LiveTail liveTail;
 
     public AppInitializer(Configuration config) {
         this.config = config;
+        this.table = createTable(config);
+        this.dataConsumingManager = new ServerManager("data consuming", config.httpClient, config.balancing, config.health);
+        this.onlineManager = new ServerManager("online analytics", config.httpClient, config.balancing, config.health);
+        this.offlineManager = new ServerManager("offline analytics", config.httpClient, config.balancing, config.health);
+        this.storageManager = new ServerManager("storage service", config.httpClient, config.balancing, config.health);
+        this.indexingManager = new ServerManager("indexing", config.httpClient, config.balancing, config.health);
+        this.storageClient = new StorageClient(storageManager, config.timeouts, config.storageClient);
+    }
+
+    private static MetricsInfoTable createTable(Configuration config) {
+        if (!config.registry.enabled) {
+            return new MetricsInfoTable();
+        }
+        try {
+            return new MetricsInfoTable(new MetricsInfoStore(config.registry));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error restoring metrics registry from " + config.registry.directory, e);
+        }
     }
 
     public void start() {
@@ -49,90 +81,110 @@ public class AppInitializer {
     }
 
     private void createRoutes() {
+        RouteExecutor executor = new RouteExecutor(config);
+
         /** =========== METRICS INFO METHODS ===================**/
         MetricsInfoHandler infoHandler = new MetricsInfoHandler(table, config);
 
-        get("/getMetricsTable", (req, res) -> infoHandler.handle("/getMetricsTable", req, res));
-        post("/startMonitoring", (req, res) -> infoHandler.handle("/startMonitoring", req, res));
-        delete("/stopMonitoring", (req, res) -> infoHandler.handle("/stopMonitoring", req, res));
+        get("/getMetricsTable", executor.route(infoHandler, "/getMetricsTable"));
+        post("/startMonitoring", executor.route(infoHandler, "/startMonitoring"));
+        delete("/stopMonitoring", executor.route(infoHandler, "/stopMonitoring"));
 
         /** =========== END METRICS INFO METHODS ===================**/
 
 
         /** =========== INDEXING METHODS ===================**/
-        IndexingHandler handler = new IndexingHandler(config, table, indexingManager, storageManager);
+        IndexingHandler handler = new IndexingHandler(config, table, indexingManager, storageClient);
 
-        get("/getMetrics", (req, res) -> handler.handle("/getMetrics", req, res));
-        get("/indexCount/:timestamp", (req, res) -> handler.handle("/indexCount/:timestamp", req, res));
-        get("/indexState/:timestamp", (req, res) -> handler.handle("/indexState/:timestamp", req, res));
-        get("/indexKPI", (req, res) -> handler.handle("/indexKPI", req, res));
+        get("/getMetrics", executor.route(handler, "/getMetrics"));
+        post("/getMetricsBatch", executor.route(handler, "/getMetricsBatch"));
+        // server-sent events, the route only starts the stream, which is written uncompressed
+        liveTail = new LiveTail(config, table, handler);
+        get("/tailMetrics", executor.timedRaw("/tailMetrics", liveTail));
+        get("/indexCount/:timestamp", executor.route(handler, "/indexCount/:timestamp"));
+        get("/indexState/:timestamp", executor.route(handler, "/indexState/:timestamp"));
+        get("/indexKPI", executor.route(handler, "/indexKPI"));
 
         /** =========== END INDEXING METHODS ===================**/
 
         /** =========== ONLINE ANALYTICS METHODS ===================**/
-        OnlineHandler onlineHandler = new OnlineHandler(onlineManager);
+        OnlineHandler onlineHandler = new OnlineHandler(config, onlineManager);
 
-        get("/onlineStart", (req, res) -> onlineHandler.handle("/onlineStart", req, res));
-        get("/onlineStop/:id", (req, res) -> onlineHandler.handle("/onlineStop/:id", req, res));
-        get("/onlineStatus", (req, res) -> onlineHandler.handle("/onlineStatus", req, res));
-        get("/onlineStatus/:id", (req, res) -> onlineHandler.handle("/onlineStatus/:id", req, res));
+        get("/onlineStart", executor.route(onlineHandler, "/onlineStart"));
+        get("/onlineStop/:id", executor.route(onlineHandler, "/onlineStop/:id"));
+        get("/onlineStatus", executor.route(onlineHandler, "/onlineStatus"));
+        get("/onlineStatus/:id", executor.route(onlineHandler, "/onlineStatus/:id"));
 
         /** =========== END ONLINE ANALYTICS METHODS ===================**/
 
 
         /** =========== DATA CONSUMING METHODS ===================**/
-        DataConsumingHandler dataConsumingHandler = new DataConsumingHandler(dataConsumingManager);
+        DataConsumingHandler dataConsumingHandler = new DataConsumingHandler(config, dataConsumingManager);
 
-        get("/dataStatus/:id", (req, res) -> dataConsumingHandler.handle("/dataStatus/:id", req, res));
-        get("/dataStart", (req, res) -> dataConsumingHandler.handle("/dataStart", req, res));
-        get("/dataStop/:id", (req, res) -> dataConsumingHandler.handle("/dataStop/:id", req, res));
-        get("/dataRestart/:id", (req, res) -> dataConsumingHandler.handle("/dataRestart/:id", req, res));
-        get("/dataAllstatus", (req, res) -> dataConsumingHandler.handle("/dataAllstatus", req, res));
+        get("/dataStatus/:id", executor.route(dataConsumingHandler, "/dataStatus/:id"));
+        get("/dataStart", executor.route(dataConsumingHandler, "/dataStart"));
+        get("/dataStop/:id", executor.route(dataConsumingHandler, "/dataStop/:id"));
+        get("/dataRestart/:id", executor.route(dataConsumingHandler, "/dataRestart/:id"));
+        get("/dataAllstatus", executor.route(dataConsumingHandler, "/dataAllstatus"));
 
         /** =========== END DATA CONSUMING METHODS ===================**/
 
 
         /** =========== OFFLINE ANALYTICS METHODS ===================**/
-        OfflineHandler offlineHandler = new OfflineHandler(offlineManager);
+        OfflineHandler offlineHandler = new OfflineHandler(config, offlineManager);
 
-        get("/offlineStatus", (req, res) -> offlineHandler.handle("/offlineStatus", req, res));
-        get("/offlineStart", (req, res) -> offlineHandler.handle("/offlineStart", req, res));
-        get("/offlineStop", (req, res) -> offlineHandler.handle("/offlineStop", req, res));
-        get("/offlineNewTask", (req, res) -> offlineHandler.handle("/offlineNewTask", req, res));
-        get("/offlineTask/:id/discard", (req, res) -> offlineHandler.handle("/offlineTask/:id/discard", req, res));
-        get("/offlineTask/:id/status", (req, res) -> offlineHandler.handle("/offlineTask/:id/status", req, res));
-        get("/offlineTask/:id/result", (req, res) -> offlineHandler.handle("/offlineTask/:id/result", req, res));
+        get("/offlineStatus", executor.route(offlineHandler, "/offlineStatus"));
+        get("/offlineStart", executor.route(offlineHandler, "/offlineStart"));
+        get("/offlineStop", executor.route(offlineHandler, "/offlineStop"));
+        get("/offlineNewTask", executor.route(offlineHandler, "/offlineNewTask"));
+        get("/offlineTask/:id/discard", executor.route(offlineHandler, "/offlineTask/:id/discard"));
+        get("/offlineTask/:id/status", executor.route(offlineHandler, "/offlineTask/:id/status"));
+        get("/offlineTask/:id/result", executor.route(offlineHandler, "/offlineTask/:id/result"));
 
         /** =========== END OFFLINE ANALYTICS METHODS ===================**/
 
         /** =========== STORAGE METHODS ===================**/
-        StorageHandler storageHandler = new StorageHandler(storageManager);
+        StorageHandler storageHandler = new StorageHandler(config, storageManager, storageClient);
 
-        get("/storageData", (req, res) -> storageHandler.handle("/storageData", req, res));
-        get("/storageGetByKey/:key", (req, res) -> storageHandler.handle("/storageGetByKey/:key", req, res));
+        get("/storageData", executor.route(storageHandler, "/storageData"));
+        get("/storageGetByKey/:key", executor.route(storageHandler, "/storageGetByKey/:key"));
+        get("/storageFanOut", executor.route(storageHandler, "/storageFanOut"));
+        get("/storageCache", executor.route(storageHandler, "/storageCache"));
 
         /** =========== END STORAGE METHODS ===================**/
 
         /** =========== ADD METHODS ===================**/
-        post("/addIndexing", (req, res) -> addNode(indexingManager, req, res));
-        post("/addStorage", (req, res) -> addNode(storageManager, req, res));
-        post("/addOffline", (req, res) -> addNode(offlineManager, req, res));
-        post("/addOnline", (req, res) -> addNode(onlineManager, req, res));
-        post("/addDataConsumer", (req, res) -> addNode(dataConsumingManager, req, res));
+        post("/addIndexing", executor.timed("/addIndexing", (req, res) -> addNode(indexingManager, req, res)));
+        post("/addStorage", executor.timed("/addStorage", (req, res) -> addNode(storageManager, req, res)));
+        post("/addOffline", executor.timed("/addOffline", (req, res) -> addNode(offlineManager, req, res)));
+        post("/addOnline", executor.timed("/addOnline", (req, res) -> addNode(onlineManager, req, res)));
+        post("/addDataConsumer", executor.timed("/addDataConsumer", (req, res) -> addNode(dataConsumingManager, req, res)));
         /** =========== END ADD METHODS ===================**/
+
+        /** =========== STATUS METHODS ===================**/
+        get("/servers", executor.timed("/servers", (req, res) -> getOk(JsonUtils.serialize(serversState()), HttpStatus.OK_200, res, logger)));
+        get("/metrics", executor.timed("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4; charset=utf-8");
+            return MetricsRegistry.get().scrape();
+        }));
+        /** =========== END STATUS METHODS ===================**/
     }
 
     private String addNode(ServerManager manager, Request request, Response response) {
         String host = request.queryParams(hostField);
         String port = request.queryParams(portField);
+        String weight = request.queryParams(weightField);
         if (host == null) {
             return getError("No " + hostField + " parameter", HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
         } else if (port == null) {
             return getError("No " + portField + " parameter", HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+        } else if (weight != null && parseWeight(weight) == null) {
+            return getError("Invalid " + weightField + " parameter: " + weight + ", weight must be a positive integer",
+                    HttpStatus.BAD_REQUEST_400, response, logger);
         } else {
             logger.debug("Received request to add " + manager.getServiceName() + " with host " + host + ":" + port);
             try {
-                addToManager(manager, host, Integer.parseInt(port));
+                addToManager(manager, host, Integer.parseInt(port), weight == null ? 1 : parseWeight(weight));
                 return getOk(
                         manager.getServiceName() + " at URL " + host + ":" + port + " successfully added",
                         HttpStatus.OK_200, response, logger
@@ -148,6 +200,26 @@ public class AppInitializer {
 
 
 
+    /** State of every server known to controller: breaker, requests in flight, latency **/
+    private Map<String, List<Map<String, Object>>> serversState() {
+        Map<String, List<Map<String, Object>>> state = new LinkedHashMap<>();
+        for (ServerManager manager : Arrays.asList(indexingManager, storageManager, onlineManager, offlineManager, dataConsumingManager)) {
+            List<Map<String, Object>> servers = new ArrayList<>();
+            for (Backend backend : manager.getServers()) {
+                Map<String, Object> server = new LinkedHashMap<>();
+                server.put("url", backend.getUrl().toString());
+                server.put("state", backend.getBreaker().getState());
+                server.put("weight", backend.getWeight());
+                server.put("inFlight", backend.getInFlight());
+                server.put("latencyMs", backend.getLatency() / 1e6);
+                server.put("failureRate", backend.getFailureRate());
+                servers.add(server);
+            }
+            state.put(manager.getServiceName(), servers);
+        }
+        return state;
+    }
+
     private void setup() {
         config.storages.forEach(s -> {
             parseAndAddToManager(s, storageManager);
@@ -158,26 +230,52 @@ public class AppInitializer {
     }
 
     private void parseAndAddToManager(String s, ServerManager manager) {
-        String host = s.substring(0, s.indexOf(":"));
-        int port = Integer.parseInt(s.substring(s.indexOf(":") + 1));
+        String[] parts = s.split(":");
+        String host = parts[0];
+        int port = Integer.parseInt(parts[1]);
+        Integer weight = parts.length > 2 ? parseWeight(parts[2]) : Integer.valueOf(1);
+        if (weight == null) {
+            throw new IllegalArgumentException("Invalid weight of " + manager.getServiceName() + " " + s
+                    + ", weight must be a positive integer");
+        }
         try {
-            addToManager(manager, host, port);
+            addToManager(manager, host, port, weight);
         } catch (IOException e) {
             logger.error("Error at initial setup of service @ " + host + ":" + port);
         }
     }
 
-    private void addToManager(ServerManager manager, String host, int port) throws IOException {
+    /** @return weight if it is a positive integer, null otherwise **/
+    private static Integer parseWeight(String weight) {
+        try {
+            int value = Integer.parseInt(weight.trim());
+            return value >= 1 ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void addToManager(ServerManager manager, String host, int port, int weight) throws IOException {
         Socket sock = new Socket(host, port);
         sock.close();
 
         URL url = new URL("http://" + host + ":" + port + "/");
-        manager.add(url);
+        manager.add(url, weight);
     }
 
+    /** Called from shutdown hook, so must not call System.exit **/
     public void stop() {
         logger.info("Shutting down...");
+        if (liveTail != null) {
+            liveTail.close();
+        }
         Spark.stop();
-        System.exit(0);
+        storageClient.close();
+        dataConsumingManager.close();
+        onlineManager.close();
+        offlineManager.close();
+        storageManager.close();
+        indexingManager.close();
+        table.close();
     }
 }
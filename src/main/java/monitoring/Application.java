@@ -28,12 +28,11 @@ public class Application {
         try {
             initializer.start();
             logger.info("Application started successfully");
+            Runtime.getRuntime().addShutdownHook(new Thread(initializer::stop));
 	        Thread.currentThread().join();
         } catch (Throwable t) {
             logger.error("Error starting application", t);
             System.exit(1);
         }
-
-        Runtime.getRuntime().addShutdownHook(new Thread(initializer::stop));
     }
 }
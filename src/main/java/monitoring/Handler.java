@@ -1,19 +1,26 @@
 package monitoring;
 
 import monitoring.config.Configuration;
-import org.asynchttpclient.AsyncCompletionHandler;
-import org.asynchttpclient.AsyncHttpClient;
-import org.asynchttpclient.DefaultAsyncHttpClient;
-import org.asynchttpclient.ListenableFuture;
+import monitoring.utils.BodyPartsCompletionHandler;
+import monitoring.utils.FutureUtils;
+import monitoring.utils.ResponseEncoding;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.http.HttpStatus;
 import spark.Request;
 import spark.Response;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
-import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import static monitoring.utils.ResponseUtils.getError;
+import static monitoring.utils.ResponseUtils.getOk;
+
 /**
  * @author Ilya Sapachev <a href="mailto:sid-hugo@yandex-team.ru"></a>
  * @date 31.10.16
@@ -21,36 +28,116 @@ import java.util.concurrent.TimeoutException;
 public abstract class Handler {
     protected ServerManager manager;
     protected Configuration config;
-    public abstract String handle(String method, Request request, Response response) throws Exception;
+
+    /**
+     * Handles request without blocking calling thread. Returned stage is completed with response body
+     * (and response status is set) when all backend calls are done.
+     */
+    public abstract CompletionStage<String> handleAsync(String method, Request request, Response response);
+
+    /** Handles request blocking calling thread until response is ready **/
+    public String handle(String method, Request request, Response response) throws Exception {
+        try {
+            return handleAsync(method, request, response).toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected exception", e.getCause());
+        }
+    }
 
     /** Helper method for making simple request-response operations.
-     * @throws RuntimeException if anything goes wrong
-     * @param urlPath additional path that will be added to base URL of next indexing service
-     * @return result string
+     * @param urlPath additional path that will be added to base URL of next service
+     * @return future of result string, failed with RuntimeException if anything goes wrong
      */
-    protected String makeRequest(String urlPath) {
-        String url = next();
-        if (url == null) {
-            throw new RuntimeException("No " + manager.getServiceName() + " service on list");
-        } else {
-            url = url + urlPath;
+    protected CompletableFuture<String> makeRequest(String urlPath) {
+        return makeRequest(urlPath, Handler::readString);
+    }
+
+    /**
+     * Same as {@link #makeRequest(String)}, but body is decoded right from received parts
+     * @return future of decoded body, failed with decoder exception if body can not be decoded
+     */
+    protected <T> CompletableFuture<T> makeRequest(String urlPath, BodyDecoder<T> decoder) {
+        URL server = manager.next();
+        if (server == null) {
+            return FutureUtils.failed(new RuntimeException("No available " + manager.getServiceName() + " service on list"));
+        }
+        return makeRequest(server, urlPath, decoder);
+    }
+
+    /** Same as {@link #makeRequest(String, BodyDecoder)}, sent to server already chosen with {@link ServerManager#next()} **/
+    protected <T> CompletableFuture<T> makeRequest(URL server, String urlPath, BodyDecoder<T> decoder) {
+        String url = baseUrl(server) + urlPath;
+        return manager.call(server, () -> get(url, decoder));
+    }
+
+    /** Decodes body of response, e.g. with shared Jackson reader **/
+    protected interface BodyDecoder<T> {
+        T decode(InputStream body) throws IOException;
+    }
+
+    private <T> CompletableFuture<T> get(String url, BodyDecoder<T> decoder) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        manager.getClient().prepareGet(url)
+                .setRequestTimeout((int) config.timeouts.defaultTimeout)
+                .execute(new BodyPartsCompletionHandler<Void>() {
+                    @Override
+                    public Void onCompleted(org.asynchttpclient.Response response) throws Exception {
+                        try {
+                            result.complete(decoder.decode(body()));
+                        } catch (IOException | RuntimeException e) {
+                            result.completeExceptionally(e);
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public void onThrowable(Throwable t) {
+                        if (t instanceof TimeoutException) {
+                            result.completeExceptionally(new RuntimeException("Request timed out"));
+                        } else {
+                            result.completeExceptionally(new RuntimeException("Unexpected exception", t));
+                        }
+                    }
+                });
+        return result;
+    }
+
+    private static String readString(InputStream body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(body.available(), 32));
+        byte[] buffer = new byte[8192];
+        for (int n; (n = body.read(buffer)) != -1; ) {
+            bytes.write(buffer, 0, n);
         }
+        return bytes.toString("UTF-8");
+    }
 
-        AsyncHttpClient client = new DefaultAsyncHttpClient();
-        ListenableFuture<String> requestFuture = client.prepareGet(url).execute(new AsyncCompletionHandler<String>() {
-            @Override
-            public String onCompleted(org.asynchttpclient.Response response) throws Exception {
-                return response.getResponseBody(Charset.forName("UTF-8"));
+    /** Makes request to next service and returns its answer to client as is, or error if request failed **/
+    protected CompletableFuture<String> proxy(String urlPath, Response response, Logger logger) {
+        return makeRequest(urlPath).handle((body, t) -> {
+            if (t == null) {
+                return getOk(body, HttpStatus.OK_200, response, logger);
             }
+            return getError("Error: " + FutureUtils.unwrap(t).getMessage(),
+                    HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
         });
+    }
 
-        try {
-            return requestFuture.get(config.timeouts.defaultTimeout, TimeUnit.MILLISECONDS);
-        } catch (TimeoutException e) {
-            throw new RuntimeException("Request timed out");
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException("Unexpected exception", e);
-        }
+    /** Same as {@link #proxy(String, Response, Logger)}, JSON answer is sent in encoding asked for in Accept header **/
+    protected CompletableFuture<String> proxy(String urlPath, Request request, Response response, Logger logger) {
+        ResponseEncoding encoding = negotiate(request, response);
+        return makeRequest(urlPath).handle((body, t) -> {
+            if (t == null) {
+                return getOk(body, HttpStatus.OK_200, encoding, response, logger);
+            }
+            return getError("Error: " + FutureUtils.unwrap(t).getMessage(),
+                    HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+        });
+    }
+
+    /** Encoding of response body asked for in Accept header **/
+    protected ResponseEncoding negotiate(Request request, Response response) {
+        response.raw().addHeader("Vary", "Accept");
+        return ResponseEncoding.negotiate(request.headers("Accept"));
     }
 
     protected String next() {
@@ -58,6 +145,10 @@ public abstract class Handler {
         if (raw == null) {
             return null;
         }
-        return "http://" + raw.getHost() + ":" + raw.getPort() + "/";
+        return baseUrl(raw);
+    }
+
+    protected static String baseUrl(URL server) {
+        return "http://" + server.getHost() + ":" + server.getPort() + "/";
     }
 }
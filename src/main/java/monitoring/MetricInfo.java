@@ -0,0 +1,64 @@
+package monitoring;
+
+/**
+ * Monitored metric: host, port and type it is collected from and id under which indexing service knows it.
+ * Equality is by host, port and type only, so an instance also serves as the key of the table.
+ */
+public final class MetricInfo {
+    private final long id;
+    private final String host;
+    private final String port;
+    private final String type;
+    private final int hash;
+
+    public MetricInfo(long id, String host, String port, String type) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+        this.type = type;
+        this.hash = (host.hashCode() * 31 + port.hashCode()) * 31 + type.hashCode();
+    }
+
+    /** Key for lookups, its id is not used **/
+    static MetricInfo key(String host, String port, String type) {
+        return new MetricInfo(0, host, port, type);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MetricInfo)) {
+            return false;
+        }
+        MetricInfo other = (MetricInfo) o;
+        return hash == other.hash && host.equals(other.host) && port.equals(other.port) && type.equals(other.type);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "id=" + id + ", host=" + host + ", port=" + port + ", type=" + type;
+    }
+}
@@ -1,13 +1,20 @@
 package monitoring;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import monitoring.config.Configuration;
+import monitoring.utils.JsonUtils;
+import monitoring.utils.ResponseBody;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.http.HttpStatus;
 import spark.Request;
 import spark.Response;
 
-import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 
 import static monitoring.utils.ResponseUtils.getError;
 import static monitoring.utils.ResponseUtils.getOk;
@@ -17,20 +24,49 @@ public class MetricsInfoHandler extends Handler {
     private static final Logger logger = LogManager.getLogger(MetricsInfoHandler.class);
 
     private MetricsInfoTable table;
-    private Configuration config;
 
     public MetricsInfoHandler(MetricsInfoTable table, Configuration config) {
         this.table = table;
         this.config = config;
     }
 
+    /** All operations are done on in-memory table, so there is nothing to wait for **/
     @Override
-    public String handle(String method, Request request, Response response) throws Exception {
+    public CompletableFuture<String> handleAsync(String method, Request request, Response response) {
+        return CompletableFuture.completedFuture(handleTable(method, request, response));
+    }
+
+    private String handleTable(String method, Request request, Response response) {
         switch (method) {
             case "/getMetricsTable": {
-                try {
-                    return getOk(table.getAllMetricsInfoAsJson(), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
+                // optional filters, answered from indexes of the table
+                String id = request.queryParams("id");
+                String host = request.queryParams("host");
+                String type = request.queryParams("type");
+                Collection<MetricInfo> metrics;
+                if (id != null) {
+                    MetricInfo info;
+                    try {
+                        info = table.getMetricInfo(Long.parseLong(id));
+                    } catch (NumberFormatException e) {
+                        return getError("Invalid id: " + id, HttpStatus.BAD_REQUEST_400, response, logger);
+                    }
+                    metrics = info == null ? Collections.emptyList() : Collections.singletonList(info);
+                } else if (host != null) {
+                    metrics = table.getByHost(host, type);
+                } else if (type != null) {
+                    metrics = table.getByType(type);
+                } else {
+                    metrics = table.getAllMetricsInfo();
+                }
+
+                HttpServletResponse raw = response.raw();
+                raw.setStatus(HttpStatus.OK_200);
+                raw.setContentType("application/json; charset=utf-8");
+                try (JsonGenerator generator = JsonUtils.generator(ResponseBody.output(raw))) {
+                    MetricsInfoTable.writeMetricsInfo(generator, metrics);
+                    return "";
+                } catch (IOException | RuntimeException e) {
                     return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
                 }
             }
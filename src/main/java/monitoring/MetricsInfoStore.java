@@ -0,0 +1,306 @@
+package monitoring;
+
+import monitoring.config.RegistrySettings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps {@link MetricsInfoTable} on disk: every add and remove is appended to a memory-mapped log of fixed size,
+ * and the whole table is written to a snapshot when log is full, periodically and on close. Snapshot is written
+ * to a temporary file and renamed, then log is cleared. On open snapshot is read and log is replayed over it;
+ * replay is idempotent, so a crash between snapshot and clearing of log loses nothing.
+ *
+ * Log record: op (1 - add, 2 - remove), id, host, port and type as length-prefixed UTF-8, CRC32 of all that.
+ * Log ends at the first zero byte or at a record with wrong checksum (torn by crash).
+ * Snapshot: magic, version, count, records in the same layout without op, CRC32 of everything before it.
+ * Appends are done under write lock of the table, so store needs no locking of its own.
+ */
+public class MetricsInfoStore {
+    private static final Logger logger = LogManager.getLogger(MetricsInfoStore.class);
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "registry-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int SNAPSHOT_MAGIC = 0x4D524547; // "MREG"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int MAX_STRING = 0xFFFF;
+    private static final int MAX_RECORD = 1 + 8 + 3 * (2 + MAX_STRING) + 4;
+
+    private final RegistrySettings settings;
+    private final Path snapshotPath;
+    private final Path snapshotTempPath;
+    private final Path logPath;
+
+    private FileChannel logChannel;
+    private MappedByteBuffer log;
+    private Supplier<Collection<MetricInfo>> entries;
+    private ScheduledFuture<?> periodic;
+    private final CRC32 crc = new CRC32();
+
+    public MetricsInfoStore(RegistrySettings settings) {
+        this.settings = settings;
+        Path directory = Paths.get(settings.directory);
+        this.snapshotPath = directory.resolve("metrics.snapshot");
+        this.snapshotTempPath = directory.resolve("metrics.snapshot.tmp");
+        this.logPath = directory.resolve("metrics.log");
+    }
+
+    /** Reads snapshot and log, log is kept mapped for appends **/
+    List<MetricInfo> open() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(snapshotPath.getParent());
+        Map<MetricInfo, MetricInfo> state = new LinkedHashMap<>();
+        int fromSnapshot = readSnapshot(state);
+
+        logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(settings.logSize, MAX_RECORD));
+        int replayed = replayLog(state);
+
+        logger.info("Restored " + state.size() + " metrics from " + fromSnapshot + " snapshot entries and "
+                + replayed + " log records in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return new ArrayList<>(state.values());
+    }
+
+    /**
+     * Starts periodic snapshots
+     * @param entries current content of the table, called under its write lock
+     * @param compaction takes write lock of the table and calls {@link #compact()}
+     */
+    void start(Supplier<Collection<MetricInfo>> entries, Runnable compaction) {
+        this.entries = entries;
+        if (settings.snapshotInterval > 0) {
+            periodic = timer.scheduleWithFixedDelay(() -> {
+                try {
+                    compaction.run();
+                } catch (RuntimeException e) {
+                    logger.error("Error writing registry snapshot", e);
+                }
+            }, settings.snapshotInterval, settings.snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void logAdd(MetricInfo info) {
+        append(OP_ADD, info);
+    }
+
+    void logRemove(MetricInfo info) {
+        append(OP_REMOVE, info);
+    }
+
+    private void append(byte op, MetricInfo info) {
+        byte[] host = utf8(info.getHost());
+        byte[] port = utf8(info.getPort());
+        byte[] type = utf8(info.getType());
+        int size = 1 + 8 + 2 + host.length + 2 + port.length + 2 + type.length + 4;
+        if (log.remaining() < size) {
+            snapshot();
+        }
+        int start = log.position();
+        log.put(op).putLong(info.getId());
+        putString(log, host);
+        putString(log, port);
+        putString(log, type);
+        log.putInt(checksum(log, start, log.position()));
+        if (settings.fsync) {
+            log.force();
+        }
+    }
+
+    /**
+     * Writes snapshot if anything was logged since the last one, must be called under write lock of the table:
+     * position of the log is moved by appends
+     */
+    void compact() {
+        if (log.position() > 0) {
+            snapshot();
+        }
+    }
+
+    /** Writes all entries to snapshot and clears log, must be called under write lock of the table **/
+    void snapshot() {
+        long start = System.nanoTime();
+        Collection<MetricInfo> current = entries.get();
+        try {
+            writeSnapshot(current);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing registry snapshot to " + snapshotPath, e);
+        }
+        // zeroed from the beginning, so a crash in the middle leaves empty log
+        int used = log.position();
+        for (int i = 0; i < used; i++) {
+            log.put(i, (byte) 0);
+        }
+        log.force();
+        log.position(0);
+        logger.info("Wrote registry snapshot of " + current.size() + " metrics in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /** Snapshots and unmaps log, called under write lock of the table **/
+    void close() {
+        if (periodic != null) {
+            periodic.cancel(false);
+        }
+        try {
+            compact();
+            logChannel.close();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error closing registry store", e);
+        }
+    }
+
+    private int readSnapshot(Map<MetricInfo, MetricInfo> state) throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 20 || buffer.getInt(0) != SNAPSHOT_MAGIC || buffer.getInt(4) != SNAPSHOT_VERSION) {
+                throw new IOException("Not a registry snapshot: " + snapshotPath);
+            }
+            int end = buffer.limit() - 4;
+            if (checksum(buffer, 0, end) != buffer.getInt(end)) {
+                throw new IOException("Registry snapshot is corrupted: " + snapshotPath);
+            }
+            buffer.position(8);
+            long count = buffer.getLong();
+            for (long i = 0; i < count; i++) {
+                MetricInfo info = readEntry(buffer);
+                state.put(info, info);
+            }
+            return (int) count;
+        }
+    }
+
+    private int replayLog(Map<MetricInfo, MetricInfo> state) {
+        int records = 0;
+        while (log.remaining() > 0) {
+            int start = log.position();
+            byte op = log.get();
+            if (op != OP_ADD && op != OP_REMOVE) {
+                log.position(start);
+                break;
+            }
+            MetricInfo info;
+            try {
+                info = readEntry(log);
+                int end = log.position();
+                if (checksum(log, start, end) != log.getInt()) {
+                    throw new IllegalStateException("checksum mismatch");
+                }
+            } catch (BufferUnderflowException | IllegalStateException | IllegalArgumentException e) {
+                logger.warn("Registry log ends with torn record at " + start + ", dropping it");
+                log.position(start);
+                // leftovers of torn record must not be read as records next time
+                for (int i = start; i < Math.min(start + MAX_RECORD, log.limit()); i++) {
+                    log.put(i, (byte) 0);
+                }
+                break;
+            }
+            if (op == OP_ADD) {
+                state.remove(info);
+                state.put(info, info);
+            } else {
+                state.remove(info);
+            }
+            records++;
+        }
+        return records;
+    }
+
+    private void writeSnapshot(Collection<MetricInfo> current) throws IOException {
+        List<byte[][]> encoded = new ArrayList<>(current.size());
+        long size = 4 + 4 + 8 + 4;
+        for (MetricInfo info : current) {
+            byte[][] strings = {utf8(info.getHost()), utf8(info.getPort()), utf8(info.getType())};
+            encoded.add(strings);
+            size += 8 + 6 + strings[0].length + strings[1].length + strings[2].length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Registry snapshot is too large: " + size + " bytes");
+        }
+        try (FileChannel channel = FileChannel.open(snapshotTempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(current.size());
+            int i = 0;
+            for (MetricInfo info : current) {
+                byte[][] strings = encoded.get(i++);
+                buffer.putLong(info.getId());
+                putString(buffer, strings[0]);
+                putString(buffer, strings[1]);
+                putString(buffer, strings[2]);
+            }
+            buffer.putInt(checksum(buffer, 0, buffer.position()));
+            buffer.force();
+        }
+        Files.move(snapshotTempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MetricInfo readEntry(ByteBuffer buffer) {
+        long id = buffer.getLong();
+        String host = getString(buffer);
+        String port = getString(buffer);
+        String type = getString(buffer);
+        return new MetricInfo(id, host, port, type);
+    }
+
+    private static byte[] utf8(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING) {
+            throw new IllegalArgumentException("Value is too long to be stored in registry: " + s.length() + " chars");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int checksum(ByteBuffer buffer, int from, int to) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to).position(from);
+        crc.reset();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+}
@@ -1,50 +1,265 @@
 package monitoring;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import monitoring.utils.JsonUtils;
+import monitoring.utils.LongObjectMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Registry of monitored metrics. Lookup of id by host, port and type, which every /getMetrics does, goes to
+ * a concurrent map without locking. Entries are also indexed by id, by host and by type; these indexes are
+ * changed together under write lock and read under read lock, so queries by them never scan the whole table.
+ * Host, port and type strings are interned, so entries of the same host or type share them.
+ * If table has a {@link MetricsInfoStore}, every change is written to it before it is applied,
+ * and the table is restored from it on creation.
+ */
 public class MetricsInfoTable {
     private static final Logger logger = LogManager.getLogger(MetricsInfoTable.class);
 
-    private Random random = new Random(System.currentTimeMillis());
-    private ConcurrentHashMap<String, Long> table = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MetricInfo, MetricInfo> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
 
-    public void addMetricInfo(String host, String port, String metricType) {
-        long metricId = Math.abs(random.nextLong());
-        table.put(host + "|" + port + "|" + metricType, metricId);
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongObjectMap<MetricInfo> byId = new LongObjectMap<>(1024);
+    private final Map<String, Set<MetricInfo>> byHost = new HashMap<>();
+    private final Map<String, Set<MetricInfo>> byType = new HashMap<>();
+
+    private final MetricsInfoStore store;
+
+    public MetricsInfoTable() {
+        this.store = null;
+    }
+
+    /** Restores metrics with their ids from store **/
+    public MetricsInfoTable(MetricsInfoStore store) throws IOException {
+        this.store = store;
+        for (MetricInfo info : store.open()) {
+            info = new MetricInfo(info.getId(), intern(info.getHost()), intern(info.getPort()), intern(info.getType()));
+            byKey.put(info, info);
+            index(info);
+        }
+        store.start(byKey::values, this::compact);
+    }
+
+    /**
+     * Registers metric with new random id, metric registered before gets a new id too
+     * @return id of the metric
+     */
+    public long addMetricInfo(String host, String port, String metricType) {
+        MetricInfo info;
+        lock.writeLock().lock();
+        try {
+            long metricId;
+            do {
+                metricId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+            } while (byId.containsKey(metricId));
+            info = new MetricInfo(metricId, intern(host), intern(port), intern(metricType));
+            if (store != null) {
+                store.logAdd(info);
+            }
+            MetricInfo previous = byKey.put(info, info);
+            if (previous != null) {
+                unindex(previous);
+            }
+            index(info);
+        } finally {
+            lock.writeLock().unlock();
+        }
         logger.debug("Added metrics info to table: host=" + host + ", port=" + port + ", type=" + metricType);
+        return info.getId();
     }
 
+    /** @return id of removed metric, null if it was not registered **/
     public Long removeMetricInfo(String host, String port, String metricType) {
-        return table.remove(host + "|" + port + "|" + metricType);
+        lock.writeLock().lock();
+        try {
+            MetricInfo removed = byKey.get(MetricInfo.key(host, port, metricType));
+            if (removed == null) {
+                return null;
+            }
+            if (store != null) {
+                store.logRemove(removed);
+            }
+            byKey.remove(removed);
+            unindex(removed);
+            return removed.getId();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public Long getMetricInfoId(String host, String port, String metricType) {
-        return table.get(host + "|" + port + "|" + metricType);
+        MetricInfo info = byKey.get(MetricInfo.key(host, port, metricType));
+        return info == null ? null : info.getId();
+    }
+
+    public MetricInfo getMetricInfo(long id) {
+        lock.readLock().lock();
+        try {
+            return byId.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Metrics of host, or of host of given type if type is not null **/
+    public List<MetricInfo> getByHost(String host, String metricType) {
+        lock.readLock().lock();
+        try {
+            Set<MetricInfo> ofHost = byHost.getOrDefault(host, Collections.emptySet());
+            if (metricType == null) {
+                return new ArrayList<>(ofHost);
+            }
+            Set<MetricInfo> ofType = byType.getOrDefault(metricType, Collections.emptySet());
+            return intersect(ofHost, ofType);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<MetricInfo> getByType(String metricType) {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(byType.getOrDefault(metricType, Collections.emptySet()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Metrics matching all of not null host, port and type, found through host or type index if possible **/
+    public List<MetricInfo> select(String host, String port, String metricType) {
+        Collection<MetricInfo> candidates;
+        if (host != null) {
+            candidates = getByHost(host, metricType);
+        } else if (metricType != null) {
+            candidates = getByType(metricType);
+        } else {
+            candidates = byKey.values();
+        }
+        List<MetricInfo> result = new ArrayList<>();
+        for (MetricInfo info : candidates) {
+            if (port == null || port.equals(info.getPort())) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    public Collection<MetricInfo> getAllMetricsInfo() {
+        return Collections.unmodifiableCollection(byKey.values());
     }
 
-    public Map<String, Long> getAllMetricsInfo() {
-        return table;
+    public int size() {
+        return byKey.size();
     }
 
     /** Return info about all registered metrics as JSON string **/
     public String getAllMetricsInfoAsJson() {
-        List<String> info = table.entrySet().stream().map(entry -> {
-            String[] splitted = entry.getKey().split("\\|");
-            return "{" +
-                    "\"metricId\":\"" + entry.getValue() + "\"," +
-                    "\"host\":\"" + splitted[0] + "\"," +
-                    "\"port\":\"" + splitted[1] + "\"," +
-                    "\"metricType\":\"" + splitted[2] + "\"" +
-                    "}";
-        }).collect(Collectors.toList());
-
-        return "{ \"metrics\" : [" + String.join(", ", info) + "] }";
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = JsonUtils.generator(json)) {
+            writeMetricsInfo(generator, byKey.values());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return json.toString();
+    }
+
+    /** Writes info about metrics, {"metrics": [{"metricId": ..., "host": ..., ...}, ...]} **/
+    public static void writeMetricsInfo(JsonGenerator generator, Collection<MetricInfo> metrics) throws IOException {
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("metrics");
+        for (MetricInfo info : metrics) {
+            generator.writeStartObject();
+            generator.writeStringField("metricId", Long.toString(info.getId()));
+            generator.writeStringField("host", info.getHost());
+            generator.writeStringField("port", info.getPort());
+            generator.writeStringField("metricType", info.getType());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    /** Writes snapshot of the table to store if it changed since the last one, registrations wait until it is written **/
+    public void compact() {
+        if (store == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            store.compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void close() {
+        if (store == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            store.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Must be called under write lock **/
+    private void index(MetricInfo info) {
+        byId.put(info.getId(), info);
+        byHost.computeIfAbsent(info.getHost(), h -> new LinkedHashSet<>()).add(info);
+        byType.computeIfAbsent(info.getType(), t -> new LinkedHashSet<>()).add(info);
+    }
+
+    /** Must be called under write lock **/
+    private void unindex(MetricInfo info) {
+        byId.remove(info.getId());
+        removeFromIndex(byHost, info.getHost(), info);
+        removeFromIndex(byType, info.getType(), info);
+    }
+
+    /** Equality ignores id, entry being replaced is unindexed before its replacement is added **/
+    private static void removeFromIndex(Map<String, Set<MetricInfo>> index, String value, MetricInfo info) {
+        Set<MetricInfo> entries = index.get(value);
+        if (entries != null) {
+            entries.remove(info);
+            if (entries.isEmpty()) {
+                index.remove(value);
+            }
+        }
+    }
+
+    private static List<MetricInfo> intersect(Set<MetricInfo> a, Set<MetricInfo> b) {
+        Set<MetricInfo> smaller = a.size() <= b.size() ? a : b;
+        Set<MetricInfo> larger = smaller == a ? b : a;
+        List<MetricInfo> result = new ArrayList<>();
+        for (MetricInfo info : smaller) {
+            if (larger.contains(info)) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    private String intern(String s) {
+        String existing = strings.putIfAbsent(s, s);
+        return existing == null ? s : existing;
     }
 }
@@ -0,0 +1,377 @@
+package monitoring;
+
+import monitoring.config.Configuration;
+import monitoring.metrics.Counter;
+import monitoring.metrics.Histogram;
+import monitoring.metrics.MetricsRegistry;
+import monitoring.utils.FutureUtils;
+import monitoring.utils.ResponseBody;
+import monitoring.utils.ResponseCompression;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static monitoring.utils.ResponseUtils.getError;
+
+/**
+ * Turns {@link Handler} methods into Spark routes. In synchronous mode Jetty thread waits for handler result,
+ * in asynchronous mode request is suspended with {@link AsyncContext}, so Jetty thread is released right away.
+ * When handler future completes, request is dispatched to the route again and handler result is sent
+ * by Spark as usual, with the status handler has set. Body that handler writes itself is held back
+ * by {@link ResponseBody} until then.
+ */
+public class RouteExecutor {
+    private static final Logger logger = LogManager.getLogger(RouteExecutor.class);
+
+    // handler result of suspended request, read by the route when the request is dispatched again
+    private static final String RESULT = RouteExecutor.class.getName() + ".result";
+
+    private final boolean async;
+    private final long timeout;
+    private final ResponseCompression compression;
+
+    public RouteExecutor(Configuration config) {
+        this.async = config.asyncRoutes;
+        this.timeout = config.timeouts.indexingTimeout + config.timeouts.storageTimeout;
+        this.compression = new ResponseCompression(config.compression);
+    }
+
+    public Route route(Handler handler, String method) {
+        RouteMetrics metrics = new RouteMetrics(method);
+        return (req, res) -> {
+            if (req.raw().getDispatcherType() == DispatcherType.ASYNC) {
+                return resume(req, res);
+            }
+            long start = metrics.start();
+            if (async) {
+                // nothing is sent until it is known whether the request is suspended
+                ResponseBody.hold(res.raw());
+            }
+            compression.start(req, res);
+            CompletableFuture<String> future;
+            try {
+                future = handler.handleAsync(method, req, res).toCompletableFuture();
+            } catch (RuntimeException e) {
+                metrics.finish(start, true);
+                ResponseBody.forget(res.raw());
+                ResponseCompression.release(res.raw());
+                throw e;
+            }
+            future.whenComplete((body, t) -> metrics.finish(start, t != null || isServerError(res)));
+            try {
+                return execute(future, req, res, metrics);
+            } catch (Exception e) {
+                ResponseBody.forget(res.raw());
+                ResponseCompression.release(res.raw());
+                throw e;
+            }
+        };
+    }
+
+    /** Route that does not go through a handler, only its time and errors are measured **/
+    public Route timed(String path, Route route) {
+        return timed(path, route, true);
+    }
+
+    /**
+     * Same as {@link #timed(String, Route)} for routes that write servlet output themselves,
+     * e.g. server-sent events: their body is never compressed
+     */
+    public Route timedRaw(String path, Route route) {
+        return timed(path, route, false);
+    }
+
+    private Route timed(String path, Route route, boolean compressed) {
+        RouteMetrics metrics = new RouteMetrics(path);
+        return (req, res) -> {
+            long start = metrics.start();
+            if (compressed) {
+                compression.start(req, res);
+            }
+            boolean failed = true;
+            try {
+                Object result = route.handle(req, res);
+                failed = isServerError(res);
+                return result instanceof String ? ResponseCompression.finish(res.raw(), (String) result) : result;
+            } finally {
+                ResponseCompression.release(res.raw());
+                metrics.finish(start, failed);
+            }
+        };
+    }
+
+    private Object execute(CompletableFuture<String> future, Request request, Response response,
+                           RouteMetrics metrics) throws Exception {
+        HttpServletResponse raw = response.raw();
+        // validation errors and in-memory operations are completed already, nothing to suspend
+        if (!async || future.isDone()) {
+            return finish(raw, await(future, response, metrics));
+        }
+        // streaming handler has flushed its body while route was running, body follows as it is written
+        if (ResponseBody.sendIfFlushed(raw) || raw.isCommitted()) {
+            return suspendStreaming(future, request, raw, metrics);
+        }
+        // Spark sends route result and completes the response right after route returns,
+        // only in embedded Jetty it can be dropped on output level
+        if (raw instanceof org.eclipse.jetty.server.Response) {
+            return suspend(future, request, response, metrics);
+        }
+        return finish(raw, await(future, response, metrics));
+    }
+
+    private String await(CompletableFuture<String> future, Response response, RouteMetrics metrics)
+            throws InterruptedException {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            metrics.timeouts.increment();
+            future.cancel(false);
+            ResponseBody.discard(response.raw());
+            return getError("Request timed out", HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+        } catch (ExecutionException e) {
+            ResponseBody.discard(response.raw());
+            return getError("Unexpected error: " + FutureUtils.unwrap(e).getMessage(),
+                    HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+        }
+    }
+
+    private Object suspend(CompletableFuture<String> future, Request request, Response response,
+                           RouteMetrics metrics) {
+        HttpServletResponse raw = response.raw();
+        ServletRequest rawRequest = request.raw();
+        AsyncContext context = rawRequest.startAsync();
+        context.setTimeout(timeout);
+        AtomicBoolean done = new AtomicBoolean(false);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                metrics.timeouts.increment();
+                // result is set before the future is cancelled, so that cancellation is not reported instead
+                if (done.compareAndSet(false, true)) {
+                    ResponseBody.discard(raw);
+                    rawRequest.setAttribute(RESULT,
+                            getError("Request timed out", HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger));
+                    context.dispatch();
+                }
+                future.cancel(false);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                logger.error("Error in suspended request", event.getThrowable());
+                if (done.compareAndSet(false, true)) {
+                    context.complete();
+                }
+                future.cancel(false);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+                // request may end without being dispatched again, e.g. when client went away
+                restoreOutput(raw);
+                ResponseBody.forget(raw);
+                ResponseCompression.release(raw);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) { }
+        });
+
+        // Nothing is sent until handler completes: body written by handler is held in memory
+        // and what Spark writes after route returns is dropped.
+        HttpOutput output = ((org.eclipse.jetty.server.Response) raw).getHttpOutput();
+        output.setInterceptor(new DroppingInterceptor(output.getInterceptor()));
+
+        future.whenComplete((body, t) -> {
+            if (done.compareAndSet(false, true)) {
+                if (t != null) {
+                    logger.error("Error while handling suspended request", t);
+                    ResponseBody.discard(raw);
+                    body = getError("Unexpected error: " + FutureUtils.unwrap(t).getMessage(),
+                            HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+                }
+                rawRequest.setAttribute(RESULT, body);
+                // if Jetty thread has not left the route yet, dispatch waits for it
+                context.dispatch();
+            }
+        });
+        return "";
+    }
+
+    /** Handler result of suspended request, Jetty has reopened response output for this dispatch **/
+    private static Object resume(Request request, Response response) {
+        restoreOutput(response.raw());
+        String body = (String) request.raw().getAttribute(RESULT);
+        request.raw().removeAttribute(RESULT);
+        return finish(response.raw(), body);
+    }
+
+    /**
+     * Sends body handler has written itself, if any, and ends compressed body
+     * @return body that is left to be sent by Spark, empty if it was written here
+     */
+    private static String finish(HttpServletResponse raw, String body) {
+        try {
+            ResponseBody.send(raw);
+        } catch (IOException e) {
+            logger.warn("Client went away while sending response: " + e.getMessage());
+        }
+        return ResponseCompression.finish(raw, body);
+    }
+
+    /** Removes {@link DroppingInterceptor} of suspended request, so that response output reaches the client again **/
+    private static void restoreOutput(HttpServletResponse raw) {
+        HttpOutput output = ((org.eclipse.jetty.server.Response) raw).getHttpOutput();
+        HttpOutput.Interceptor interceptor = output.getInterceptor();
+        if (interceptor instanceof DroppingInterceptor) {
+            output.setInterceptor(interceptor.getNextInterceptor());
+        }
+    }
+
+    /**
+     * Streaming handler has sent status and headers already, request is only kept open until it completes.
+     * Errors found after this point are reported in the body only.
+     */
+    private Object suspendStreaming(CompletableFuture<String> future, Request request, HttpServletResponse raw,
+                                    RouteMetrics metrics) {
+        AsyncContext context = request.raw().startAsync();
+        context.setTimeout(timeout);
+        AtomicBoolean done = new AtomicBoolean(false);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                metrics.timeouts.increment();
+                finish("Request timed out");
+                future.cancel(false);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                logger.error("Error in suspended request", event.getThrowable());
+                finish(null);
+                future.cancel(false);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+                ResponseBody.forget(raw);
+                ResponseCompression.release(raw);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) { }
+
+            private void finish(String body) {
+                if (done.compareAndSet(false, true)) {
+                    write(context, raw, body);
+                }
+            }
+        });
+
+        future.whenComplete((body, t) -> {
+            if (done.compareAndSet(false, true)) {
+                if (t != null) {
+                    logger.error("Error while handling suspended request", t);
+                    body = "Unexpected error: " + FutureUtils.unwrap(t).getMessage();
+                }
+                write(context, raw, body);
+            }
+        });
+        return "";
+    }
+
+    private static boolean isServerError(Response response) {
+        HttpServletResponse raw = response.raw();
+        return raw != null && raw.getStatus() >= HttpStatus.INTERNAL_SERVER_ERROR_500;
+    }
+
+    /** Duration, errors, timeouts and number of running requests of one route **/
+    private static class RouteMetrics {
+        final Histogram duration;
+        final Counter errors;
+        final Counter timeouts;
+        final AtomicInteger inFlight = new AtomicInteger(0);
+
+        RouteMetrics(String route) {
+            MetricsRegistry registry = MetricsRegistry.get();
+            duration = registry.latency("controller_route_duration_seconds",
+                    "Time from request arrival until response is complete", "route", route);
+            errors = registry.counter("controller_route_errors_total",
+                    "Requests failed with exception or 5xx status", "route", route);
+            timeouts = registry.counter("controller_route_timeouts_total",
+                    "Requests that were not completed in time", "route", route);
+            registry.gauge("controller_route_in_flight", "Requests being handled", inFlight::get, "route", route);
+        }
+
+        long start() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        void finish(long start, boolean failed) {
+            inFlight.decrementAndGet();
+            duration.recordSince(start);
+            if (failed) {
+                errors.increment();
+            }
+        }
+    }
+
+    /** Drops everything written to response output, nothing reaches the client and response is not committed **/
+    private static class DroppingInterceptor implements HttpOutput.Interceptor {
+        private final HttpOutput.Interceptor next;
+
+        DroppingInterceptor(HttpOutput.Interceptor next) {
+            this.next = next;
+        }
+
+        @Override
+        public void write(ByteBuffer content, boolean complete, Callback callback) {
+            callback.succeeded();
+        }
+
+        @Override
+        public HttpOutput.Interceptor getNextInterceptor() {
+            return next;
+        }
+
+        @Override
+        public boolean isOptimizedForDirectBuffers() {
+            return next.isOptimizedForDirectBuffers();
+        }
+    }
+
+    private static void write(AsyncContext context, HttpServletResponse raw, String body) {
+        try {
+            body = ResponseCompression.finish(raw, body);
+            if (body != null && !body.isEmpty()) {
+                raw.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            logger.error("Error writing response of suspended request", e);
+        } finally {
+            context.complete();
+        }
+    }
+}
@@ -1,47 +1,255 @@
 package monitoring;
 
+import monitoring.balancing.Backend;
+import monitoring.balancing.BalancingStrategy;
+import monitoring.balancing.CircuitBreaker;
+import monitoring.config.BalancingSettings;
+import monitoring.config.HealthSettings;
+import monitoring.config.HttpClientSettings;
+import monitoring.utils.FutureUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.asynchttpclient.AsyncCompletionHandler;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.DefaultAsyncHttpClient;
+import org.asynchttpclient.DefaultAsyncHttpClientConfig;
+import org.asynchttpclient.Response;
+import org.eclipse.jetty.http.HttpStatus;
 
+import java.io.IOException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
+/**
+ * Servers of one kind of service. List of servers is copy-on-write, so choosing server for a request
+ * never takes a lock; which one is chosen depends on configured {@link BalancingStrategy}.
+ * Servers that fail are ejected by their {@link CircuitBreaker}, every server is also probed in background.
+ */
 public class ServerManager {
     private static final Logger logger = LogManager.getLogger(ServerManager.class);
     private final String serviceName;
 
-    private AtomicInteger current = new AtomicInteger(0);
-    private final List<URL> servers = new ArrayList<>();
+    private static final ScheduledThreadPoolExecutor prober = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "health-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public ServerManager(String serviceName) {
+    private final AtomicReference<Backend[]> servers = new AtomicReference<>(new Backend[0]);
+    private final BalancingStrategy strategy;
+    private final double ewmaAlpha;
+    private final HealthSettings health;
+    private final ScheduledFuture<?> probes;
+
+    /** Client shared by all requests to servers of this manager, keeps pooled connections to each of them **/
+    private final AsyncHttpClient client;
+
+    public ServerManager(String serviceName, HttpClientSettings settings, BalancingSettings balancing,
+                         HealthSettings health) {
         this.serviceName = serviceName;
+        this.strategy = balancing.strategy.create();
+        this.ewmaAlpha = balancing.ewmaAlpha;
+        this.health = health;
+        this.client = new DefaultAsyncHttpClient(new DefaultAsyncHttpClientConfig.Builder()
+                .setThreadPoolName("ahc-" + serviceName.replace(' ', '-'))
+                .setIoThreadsCount(settings.ioThreads)
+                .setKeepAlive(settings.keepAlive)
+                .setMaxConnections(settings.maxConnections)
+                .setMaxConnectionsPerHost(settings.maxConnectionsPerHost)
+                .setPooledConnectionIdleTimeout((int) settings.pooledConnectionIdleTimeout)
+                .setConnectTimeout((int) settings.connectTimeout)
+                .build()
+        );
+        this.probes = health.probeInterval > 0
+                ? prober.scheduleWithFixedDelay(this::probe, health.probeInterval, health.probeInterval, TimeUnit.MILLISECONDS)
+                : null;
     }
 
+    /** @return server for the next request or null if there are no servers or all of them are ejected **/
     public URL next() {
-        if (servers.isEmpty()) {
+        return next(null);
+    }
+
+    /** @return server for the next request other than excluded one, or null if there is no such server **/
+    public URL next(URL excluded) {
+        Backend[] current = servers.get();
+        // copied only when some server is ejected
+        Backend[] available = current;
+        int count = 0;
+        for (Backend backend : current) {
+            if (backend.getBreaker().isAvailable() && !backend.getUrl().equals(excluded)) {
+                if (available != current) {
+                    available[count] = backend;
+                }
+                count++;
+            } else if (available == current) {
+                available = Arrays.copyOf(current, current.length);
+            }
+        }
+        if (count == 0) {
             return null;
         }
-        int idx = current.incrementAndGet();
-        if (idx >= servers.size()) {
-            current.set(0);
-            idx = 0;
+        if (available != current) {
+            available = Arrays.copyOf(available, count);
+        }
+        while (true) {
+            Backend picked = strategy.pick(available);
+            if (picked.getBreaker().tryClaimTrial()) {
+                return picked.getUrl();
+            }
+            // recovering server whose only trial request was taken by a concurrent request
+            if (available.length == 1) {
+                return null;
+            }
+            available = without(available, picked);
         }
-        return servers.get(idx);
     }
 
     public void add(URL server) {
-        synchronized (servers) {
-            if (!servers.contains(server)) {
-                servers.add(server);
-            } else {
+        add(server, 1);
+    }
+
+    public void add(URL server, int weight) {
+        Backend backend = new Backend(serviceName, server, weight, ewmaAlpha,
+                new CircuitBreaker(health.failureThreshold, health.openDuration));
+        while (true) {
+            Backend[] current = servers.get();
+            if (find(current, server) != null) {
                 logger.warn("Trying to add " + serviceName + " server that is already on list: " + server);
+                return;
+            }
+            Backend[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = backend;
+            if (servers.compareAndSet(current, updated)) {
+                return;
             }
         }
     }
 
+    /**
+     * Makes request to server counting it as outstanding until returned future completes, and records its latency.
+     * Any error of the request is counted as failure of the server. Cancelled request only stops being
+     * outstanding: it does not affect latency or circuit breaker of the server.
+     * @return future returned by request
+     */
+    public <T> CompletableFuture<T> call(URL server, Supplier<CompletableFuture<T>> request) {
+        return call(server, request, t -> true);
+    }
+
+    /**
+     * Same as {@link #call(URL, Supplier)}
+     * @param isFailure tells if error of the request means that server fails, e.g. "not found" does not
+     */
+    public <T> CompletableFuture<T> call(URL server, Supplier<CompletableFuture<T>> request, Predicate<Throwable> isFailure) {
+        Backend backend = find(servers.get(), server);
+        if (backend == null) {
+            return request.get();
+        }
+        long start = backend.start();
+        CompletableFuture<T> f;
+        try {
+            f = request.get();
+        } catch (RuntimeException e) {
+            backend.finish(start, e);
+            throw e;
+        }
+        f.whenComplete((value, t) -> {
+            Throwable cause = t == null ? null : FutureUtils.unwrap(t);
+            if (cause instanceof CancellationException) {
+                backend.cancel();
+                return;
+            }
+            backend.finish(start, cause != null && isFailure.test(cause) ? cause : null);
+        });
+        return f;
+    }
+
+    public List<Backend> getServers() {
+        return Arrays.asList(servers.get());
+    }
+
     public String getServiceName() {
         return serviceName;
     }
+
+    public AsyncHttpClient getClient() {
+        return client;
+    }
+
+    /** Closes HTTP client of this manager together with its pooled connections and event loop threads **/
+    public void close() {
+        if (probes != null) {
+            probes.cancel(false);
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.error("Error closing HTTP client of " + serviceName, e);
+        }
+    }
+
+    /**
+     * Sends GET probe-path to every server. Any answer below 500 means the server is alive:
+     * ejected server gets a trial request right away. No answer in probe-timeout counts as failure.
+     */
+    private void probe() {
+        for (Backend backend : servers.get()) {
+            URL server = backend.getUrl();
+            String url = "http://" + server.getHost() + ":" + server.getPort() + health.probePath;
+            try {
+                client.prepareGet(url)
+                        .setRequestTimeout((int) health.probeTimeout)
+                        .execute(new AsyncCompletionHandler<Void>() {
+                            @Override
+                            public Void onCompleted(Response response) {
+                                if (response.getStatusCode() < HttpStatus.INTERNAL_SERVER_ERROR_500) {
+                                    backend.getBreaker().onProbeSuccess();
+                                } else {
+                                    logger.warn("Health probe of " + serviceName + " server " + server
+                                            + " answered with status " + response.getStatusCode());
+                                    backend.onFailure();
+                                }
+                                return null;
+                            }
+
+                            @Override
+                            public void onThrowable(Throwable t) {
+                                logger.warn("Health probe of " + serviceName + " server " + server + " failed: " + t);
+                                backend.onFailure();
+                            }
+                        });
+            } catch (RuntimeException e) {
+                logger.error("Error sending health probe to " + server, e);
+            }
+        }
+    }
+
+    private static Backend[] without(Backend[] backends, Backend removed) {
+        Backend[] result = new Backend[backends.length - 1];
+        int i = 0;
+        for (Backend backend : backends) {
+            if (backend != removed) {
+                result[i++] = backend;
+            }
+        }
+        return result;
+    }
+
+    private static Backend find(Backend[] backends, URL server) {
+        for (Backend backend : backends) {
+            if (backend.getUrl().equals(server)) {
+                return backend;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,145 @@
+package monitoring.balancing;
+
+import monitoring.metrics.Counter;
+import monitoring.metrics.Histogram;
+import monitoring.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URL;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server of some service together with load statistics used for balancing:
+ * number of outstanding requests, exponentially weighted moving averages of their latency and share of failures,
+ * and circuit breaker that ejects the server while it fails.
+ */
+public class Backend {
+    private static final Logger logger = LogManager.getLogger(Backend.class);
+
+    private final URL url;
+    private final int weight;
+    private final double ewmaAlpha;
+    private final CircuitBreaker breaker;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    // bits of double, 0 while there are no samples
+    private final AtomicLong ewmaNanos = new AtomicLong(Double.doubleToLongBits(0));
+    // bits of double, 1 for failed request and 0 for successful one
+    private final AtomicLong ewmaFailures = new AtomicLong(Double.doubleToLongBits(0));
+
+    private final Histogram duration;
+    private final Counter failures;
+    private final Counter timeouts;
+
+    public Backend(String serviceName, URL url, int weight, double ewmaAlpha, CircuitBreaker breaker) {
+        this.url = url;
+        this.weight = weight;
+        this.ewmaAlpha = ewmaAlpha;
+        this.breaker = breaker;
+
+        MetricsRegistry registry = MetricsRegistry.get();
+        String server = url.getHost() + ":" + url.getPort();
+        this.duration = registry.latency("controller_backend_request_duration_seconds",
+                "Duration of requests to backend servers", "service", serviceName, "server", server);
+        this.failures = registry.counter("controller_backend_failures_total",
+                "Failed requests to backend servers, including timeouts", "service", serviceName, "server", server);
+        this.timeouts = registry.counter("controller_backend_timeouts_total",
+                "Timed out requests to backend servers", "service", serviceName, "server", server);
+        registry.gauge("controller_backend_in_flight", "Outstanding requests to backend servers",
+                inFlight::get, "service", serviceName, "server", server);
+        registry.gauge("controller_backend_ejected", "1 if circuit breaker of backend server is not closed",
+                () -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1, "service", serviceName, "server", server);
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /** @return average latency in nanoseconds, 0 if nothing was measured yet **/
+    public double getLatency() {
+        return Double.longBitsToDouble(ewmaNanos.get());
+    }
+
+    /** @return average share of failed requests from 0 to 1 **/
+    public double getFailureRate() {
+        return Double.longBitsToDouble(ewmaFailures.get());
+    }
+
+    /** @return start time to be passed to {@link #finish} **/
+    public long start() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /** @param failure error that means server failed or timed out, null otherwise; such requests do not affect latency **/
+    public void finish(long startNanos, Throwable failure) {
+        inFlight.decrementAndGet();
+        duration.recordSince(startNanos);
+        if (failure != null) {
+            failures.increment();
+            if (failure instanceof TimeoutException) {
+                timeouts.increment();
+            }
+            average(ewmaFailures, 1, false);
+            onFailure();
+            return;
+        }
+        average(ewmaFailures, 0, false);
+        onSuccess(startNanos);
+        average(ewmaNanos, System.nanoTime() - startNanos, true);
+    }
+
+    /** @param seed average starts from the first sample instead of 0 **/
+    private void average(AtomicLong average, double sample, boolean seed) {
+        while (true) {
+            long bits = average.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = seed && current == 0 ? sample : current + ewmaAlpha * (sample - current);
+            if (average.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Request was cancelled before the server answered, e.g. it lost a hedge race or its query was aborted.
+     * Tells nothing about the server: neither breaker state nor latency change, only a trial slot is released.
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+        breaker.onCancel();
+    }
+
+    /** @param startNanos start time of the request, see {@link CircuitBreaker#onSuccess(long)} **/
+    public void onSuccess(long startNanos) {
+        if (breaker.onSuccess(startNanos)) {
+            logger.info("Server " + url + " is back in rotation");
+        }
+    }
+
+    public void onFailure() {
+        if (breaker.onFailure()) {
+            logger.warn("Server " + url + " is failing, ejected from rotation");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return url + " (" + breaker.getState() + ", weight=" + weight + ", inFlight=" + inFlight.get() + ", latency=" + (long) getLatency() / 1000 + "us)";
+    }
+}
@@ -0,0 +1,29 @@
+package monitoring.balancing;
+
+import java.util.function.Supplier;
+
+/**
+ * Strategies selectable with network.balancing.strategy setting.
+ */
+public enum BalancingMode {
+    ROUND_ROBIN(RoundRobinStrategy::new),
+    WEIGHTED(WeightedStrategy::new),
+    LEAST_OUTSTANDING(LeastOutstandingStrategy::new),
+    P2C(PowerOfTwoChoicesStrategy::new);
+
+    private final Supplier<BalancingStrategy> factory;
+
+    BalancingMode(Supplier<BalancingStrategy> factory) {
+        this.factory = factory;
+    }
+
+    /** @return new strategy, every server manager needs its own one **/
+    public BalancingStrategy create() {
+        return factory.get();
+    }
+
+    /** @param name round-robin, weighted, least-outstanding or p2c **/
+    public static BalancingMode byName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
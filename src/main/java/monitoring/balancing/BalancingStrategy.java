@@ -0,0 +1,9 @@
+package monitoring.balancing;
+
+/**
+ * Chooses server for the next request. Called concurrently without locks, backends array is never empty
+ * and must not be modified.
+ */
+public interface BalancingStrategy {
+    Backend pick(Backend[] backends);
+}
@@ -0,0 +1,124 @@
+package monitoring.balancing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ejects server after failureThreshold consecutive failures (requests or health probes). Open breaker lets
+ * no requests through for openDuration, then one trial request is let through (half-open): its success
+ * closes the breaker, its failure opens it again. Successful health probe lets the trial request through
+ * without waiting for openDuration. Late successes of requests sent before the breaker opened do not close it. The trial is claimed atomically when the server is chosen for a request,
+ * a claim whose request never finished expires after openDuration.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openDuration;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger(0);
+    // time the trial request was claimed at, 0 while there is no trial
+    private final AtomicLong trialClaimedAt = new AtomicLong(0);
+    private volatile long openedAt;
+    // System.nanoTime() of opening, to tell the trial request from the ones sent before
+    private volatile long openedAtNanos;
+
+    public CircuitBreaker(int failureThreshold, long openDuration) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /** @return true if request may be sent to the server, has no side effects except moving from open to half-open **/
+    public boolean isAvailable() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openDuration) {
+                    return false;
+                }
+                state.compareAndSet(State.OPEN, State.HALF_OPEN);
+                return !isTrialClaimed();
+            default:
+                return !isTrialClaimed();
+        }
+    }
+
+    /**
+     * Called when the server is chosen for a request after {@link #isAvailable()}. Closed breaker lets
+     * any request through, half-open one only the request that claims the trial first.
+     * @return true if request may be sent to the server
+     */
+    public boolean tryClaimTrial() {
+        State current = state.get();
+        if (current != State.HALF_OPEN) {
+            return current == State.CLOSED;
+        }
+        long claimed = trialClaimedAt.get();
+        long now = System.currentTimeMillis();
+        if (claimed != 0 && now - claimed < openDuration) {
+            return false;
+        }
+        return trialClaimedAt.compareAndSet(claimed, now);
+    }
+
+    /** Called when request to the server is cancelled, lets another trial request through **/
+    void onCancel() {
+        trialClaimedAt.set(0);
+    }
+
+    /**
+     * Only the trial request closes half-open breaker: open one lets no requests through, so requests
+     * that started before it opened are the only others that may still finish
+     * @param startNanos System.nanoTime() the request was sent at
+     * @return true if breaker was closed by this call
+     */
+    public boolean onSuccess(long startNanos) {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            failures.set(0);
+            return false;
+        }
+        if (current == State.OPEN || startNanos - openedAtNanos < 0) {
+            return false;
+        }
+        trialClaimedAt.set(0);
+        return state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+    }
+
+    /** @return true if breaker was opened by this call **/
+    public boolean onFailure() {
+        trialClaimedAt.set(0);
+        State current = state.get();
+        if (current == State.OPEN) {
+            return false;
+        }
+        if (current == State.HALF_OPEN || failures.incrementAndGet() >= failureThreshold) {
+            open();
+            return true;
+        }
+        return false;
+    }
+
+    public void onProbeSuccess() {
+        state.compareAndSet(State.OPEN, State.HALF_OPEN);
+    }
+
+    private boolean isTrialClaimed() {
+        long claimed = trialClaimedAt.get();
+        return claimed != 0 && System.currentTimeMillis() - claimed < openDuration;
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        openedAtNanos = System.nanoTime();
+        state.set(State.OPEN);
+        failures.set(0);
+    }
+}
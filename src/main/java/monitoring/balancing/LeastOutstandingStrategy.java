@@ -0,0 +1,21 @@
+package monitoring.balancing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks server with the least number of outstanding requests, ties are broken randomly.
+ */
+public class LeastOutstandingStrategy implements BalancingStrategy {
+    @Override
+    public Backend pick(Backend[] backends) {
+        int start = ThreadLocalRandom.current().nextInt(backends.length);
+        Backend best = null;
+        for (int i = 0; i < backends.length; i++) {
+            Backend backend = backends[(start + i) % backends.length];
+            if (best == null || backend.getInFlight() < best.getInFlight()) {
+                best = backend;
+            }
+        }
+        return best;
+    }
+}
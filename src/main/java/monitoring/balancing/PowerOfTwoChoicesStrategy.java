@@ -0,0 +1,43 @@
+package monitoring.balancing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Takes two random servers and picks the one with lower expected cost: average latency multiplied by
+ * number of outstanding requests plus one and divided by share of successful requests. Server without measured
+ * latency is taken to be as fast as the other one, so that neither a new server nor a server whose requests
+ * only fail looks free.
+ */
+public class PowerOfTwoChoicesStrategy implements BalancingStrategy {
+    // server that fails every request still costs finite amount
+    private static final double MIN_SUCCESS_RATE = 0.01;
+
+    @Override
+    public Backend pick(Backend[] backends) {
+        if (backends.length == 1) {
+            return backends[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(backends.length);
+        int second = random.nextInt(backends.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        Backend a = backends[first];
+        Backend b = backends[second];
+        double latencyA = a.getLatency();
+        double latencyB = b.getLatency();
+        if (latencyA == 0 && latencyB == 0) {
+            latencyA = latencyB = 1;
+        } else if (latencyA == 0) {
+            latencyA = latencyB;
+        } else if (latencyB == 0) {
+            latencyB = latencyA;
+        }
+        return cost(a, latencyA) <= cost(b, latencyB) ? a : b;
+    }
+
+    private static double cost(Backend backend, double latency) {
+        return latency * (backend.getInFlight() + 1) / Math.max(1 - backend.getFailureRate(), MIN_SUCCESS_RATE);
+    }
+}
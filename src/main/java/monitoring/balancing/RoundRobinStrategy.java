@@ -0,0 +1,12 @@
+package monitoring.balancing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoundRobinStrategy implements BalancingStrategy {
+    private final AtomicInteger counter = new AtomicInteger(0);
+
+    @Override
+    public Backend pick(Backend[] backends) {
+        return backends[Math.floorMod(counter.getAndIncrement(), backends.length)];
+    }
+}
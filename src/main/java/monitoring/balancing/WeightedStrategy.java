@@ -0,0 +1,31 @@
+package monitoring.balancing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Round robin where every server gets number of requests proportional to its weight.
+ * Weights are validated when servers are added, if they still sum up to no more than zero
+ * (or overflow int), plain round robin is used.
+ */
+public class WeightedStrategy implements BalancingStrategy {
+    private final AtomicInteger counter = new AtomicInteger(0);
+
+    @Override
+    public Backend pick(Backend[] backends) {
+        int total = 0;
+        for (Backend backend : backends) {
+            total += backend.getWeight();
+        }
+        if (total <= 0) {
+            return backends[Math.floorMod(counter.getAndIncrement(), backends.length)];
+        }
+        int position = Math.floorMod(counter.getAndIncrement(), total);
+        for (Backend backend : backends) {
+            position -= backend.getWeight();
+            if (position < 0) {
+                return backend;
+            }
+        }
+        return backends[backends.length - 1];
+    }
+}
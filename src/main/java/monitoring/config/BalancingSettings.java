@@ -0,0 +1,25 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+import monitoring.balancing.BalancingMode;
+
+public class BalancingSettings {
+    public final BalancingMode strategy;
+    public final double ewmaAlpha;
+
+    public BalancingSettings(BalancingMode strategy, double ewmaAlpha) {
+        this.strategy = strategy;
+        this.ewmaAlpha = ewmaAlpha;
+    }
+
+    public BalancingSettings(Config config) {
+        this(BalancingMode.byName(config.getString("strategy")),
+             config.getDouble("ewma-alpha")
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "strategy=" + strategy + "," + "ewma-alpha=" + ewmaAlpha;
+    }
+}
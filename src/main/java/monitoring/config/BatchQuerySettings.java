@@ -0,0 +1,26 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+public class BatchQuerySettings {
+    public final int maxMetrics;
+    public final long deadline;
+
+    public BatchQuerySettings(int maxMetrics, long deadline) {
+        this.maxMetrics = maxMetrics;
+        this.deadline = deadline;
+    }
+
+    public BatchQuerySettings(Config config) {
+        this(config.getInt("max-metrics"),
+             config.getDuration("deadline", TimeUnit.MILLISECONDS)
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "max-metrics=" + maxMetrics + "," + "deadline=" + deadline;
+    }
+}
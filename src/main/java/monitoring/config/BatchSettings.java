@@ -0,0 +1,29 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+public class BatchSettings {
+    public final boolean enabled;
+    public final int maxSize;
+    public final long maxLinger;
+
+    public BatchSettings(boolean enabled, int maxSize, long maxLinger) {
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        this.maxLinger = maxLinger;
+    }
+
+    public BatchSettings(Config config) {
+        this(config.getBoolean("enabled"),
+             config.getInt("max-size"),
+             config.getDuration("max-linger", TimeUnit.MILLISECONDS)
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "enabled=" + enabled + "," + "max-size=" + maxSize + "," + "max-linger=" + maxLinger;
+    }
+}
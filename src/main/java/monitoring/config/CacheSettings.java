@@ -0,0 +1,36 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+public class CacheSettings {
+    public final boolean enabled;
+    public final long maxWeight;
+    public final long ttl;
+    public final int maxNotFound;
+    public final long notFoundTtl;
+
+    public CacheSettings(boolean enabled, long maxWeight, long ttl, int maxNotFound, long notFoundTtl) {
+        this.enabled = enabled;
+        this.maxWeight = maxWeight;
+        this.ttl = ttl;
+        this.maxNotFound = maxNotFound;
+        this.notFoundTtl = notFoundTtl;
+    }
+
+    public CacheSettings(Config config) {
+        this(config.getBoolean("enabled"),
+             config.getBytes("max-weight"),
+             config.getDuration("ttl", TimeUnit.MILLISECONDS),
+             config.getInt("max-not-found"),
+             config.getDuration("not-found-ttl", TimeUnit.MILLISECONDS)
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "enabled=" + enabled + "," + "max-weight=" + maxWeight + "," + "ttl=" + ttl + ","
+                + "max-not-found=" + maxNotFound + "," + "not-found-ttl=" + notFoundTtl;
+    }
+}
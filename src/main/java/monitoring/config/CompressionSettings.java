@@ -0,0 +1,27 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+public class CompressionSettings {
+    public final boolean enabled;
+    public final int minSize;
+    public final int level;
+
+    public CompressionSettings(boolean enabled, int minSize, int level) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.level = level;
+    }
+
+    public CompressionSettings(Config config) {
+        this(config.getBoolean("enabled"),
+             Math.toIntExact(config.getBytes("min-size")),
+             config.getInt("level")
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "enabled=" + enabled + "," + "min-size=" + minSize + "," + "level=" + level;
+    }
+}
@@ -12,17 +12,44 @@ public class Configuration {
     public final List<String> indexes;
 
     public final Timeouts timeouts;
+    public final HttpClientSettings httpClient;
+    public final BalancingSettings balancing;
+    public final HealthSettings health;
+    public final StorageClientSettings storageClient;
+    public final RegistrySettings registry;
+    public final BatchQuerySettings batchQuery;
+    public final TailSettings tail;
+    public final CompressionSettings compression;
 
     public final int maxResultAmount;
+    public final int reorderBufferSize;
+    public final int downsampleInputLimit;
+
+    public final boolean asyncRoutes;
 
     public Configuration(int port, List<String> supportedMetricTypes, List<String> storages,
-                         List<String> indexes, Timeouts timeouts, int maxResultAmount) {
+                         List<String> indexes, Timeouts timeouts, HttpClientSettings httpClient,
+                         BalancingSettings balancing, HealthSettings health, StorageClientSettings storageClient,
+                         RegistrySettings registry, BatchQuerySettings batchQuery, TailSettings tail,
+                         CompressionSettings compression, int maxResultAmount, int reorderBufferSize,
+                         int downsampleInputLimit, boolean asyncRoutes) {
         this.port = port;
         this.supportedMetricTypes = supportedMetricTypes;
         this.storages = storages;
         this.indexes = indexes;
         this.timeouts = timeouts;
+        this.httpClient = httpClient;
+        this.balancing = balancing;
+        this.health = health;
+        this.storageClient = storageClient;
+        this.registry = registry;
+        this.batchQuery = batchQuery;
+        this.tail = tail;
+        this.compression = compression;
         this.maxResultAmount = maxResultAmount;
+        this.reorderBufferSize = reorderBufferSize;
+        this.downsampleInputLimit = downsampleInputLimit;
+        this.asyncRoutes = asyncRoutes;
     }
 
     public Configuration(Config config) {
@@ -31,7 +58,18 @@ public class Configuration {
                 config.getStringList("storages"),
                 config.getStringList("indexes"),
                 new Timeouts(config.getConfig("network")),
-                config.getInt("maxResultAmount")
+                new HttpClientSettings(config.getConfig("network.client")),
+                new BalancingSettings(config.getConfig("network.balancing")),
+                new HealthSettings(config.getConfig("network.health")),
+                new StorageClientSettings(config.getConfig("storage-client")),
+                new RegistrySettings(config.getConfig("registry")),
+                new BatchQuerySettings(config.getConfig("batch-query")),
+                new TailSettings(config.getConfig("tail")),
+                new CompressionSettings(config.getConfig("compression")),
+                config.getInt("maxResultAmount"),
+                config.getInt("reorderBufferSize"),
+                config.getInt("downsampleInputLimit"),
+                config.getBoolean("asyncRoutes")
         );
     }
 
@@ -40,8 +78,17 @@ public class Configuration {
         return "Configuration:\n" +
                 "\tsupported metric types: [" + String.join(",", supportedMetricTypes) + "]\n" +
                 "\tport=" + port + "\n" +
+                "\tasync routes=" + asyncRoutes + "\n" +
                 "\tstorages=[" + storages + "]\n" +
                 "\tindexes=[" + indexes + "]\n" +
-                "\ttimeouts=[" + timeouts + "]\n";
+                "\ttimeouts=[" + timeouts + "]\n" +
+                "\thttp client=[" + httpClient + "]\n" +
+                "\tbalancing=[" + balancing + "]\n" +
+                "\thealth=[" + health + "]\n" +
+                "\tstorage client=[" + storageClient + "]\n" +
+                "\tregistry=[" + registry + "]\n" +
+                "\tbatch query=[" + batchQuery + "]\n" +
+                "\ttail=[" + tail + "]\n" +
+                "\tcompression=[" + compression + "]\n";
     }
 }
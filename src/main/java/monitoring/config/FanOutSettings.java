@@ -0,0 +1,24 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+public class FanOutSettings {
+    public final int maxInFlightPerQuery;
+    public final int maxInFlightPerNode;
+
+    public FanOutSettings(int maxInFlightPerQuery, int maxInFlightPerNode) {
+        this.maxInFlightPerQuery = maxInFlightPerQuery;
+        this.maxInFlightPerNode = maxInFlightPerNode;
+    }
+
+    public FanOutSettings(Config config) {
+        this(config.getInt("max-in-flight-per-query"),
+             config.getInt("max-in-flight-per-node")
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "max-in-flight-per-query=" + maxInFlightPerQuery + "," + "max-in-flight-per-node=" + maxInFlightPerNode;
+    }
+}
@@ -0,0 +1,39 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+public class HealthSettings {
+    public final long probeInterval;
+    public final String probePath;
+    public final long probeTimeout;
+    public final int failureThreshold;
+    public final long openDuration;
+
+    public HealthSettings(long probeInterval, String probePath, long probeTimeout, int failureThreshold, long openDuration) {
+        this.probeInterval = probeInterval;
+        this.probePath = probePath;
+        this.probeTimeout = probeTimeout;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    public HealthSettings(Config config) {
+        this(config.getDuration("probe-interval", TimeUnit.MILLISECONDS),
+             config.getString("probe-path"),
+             config.getDuration("probe-timeout", TimeUnit.MILLISECONDS),
+             config.getInt("failure-threshold"),
+             config.getDuration("open-duration", TimeUnit.MILLISECONDS)
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "probe-interval=" + probeInterval + "," +
+                "probe-path=" + probePath + "," +
+                "probe-timeout=" + probeTimeout + "," +
+                "failure-threshold=" + failureThreshold + "," +
+                "open-duration=" + openDuration;
+    }
+}
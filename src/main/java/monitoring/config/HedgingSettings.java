@@ -0,0 +1,39 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+public class HedgingSettings {
+    public final boolean enabled;
+    public final double percentile;
+    public final long minDelay;
+    public final double budgetRatio;
+    public final int maxBudget;
+
+    public HedgingSettings(boolean enabled, double percentile, long minDelay, double budgetRatio, int maxBudget) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.budgetRatio = budgetRatio;
+        this.maxBudget = maxBudget;
+    }
+
+    public HedgingSettings(Config config) {
+        this(config.getBoolean("enabled"),
+             config.getDouble("percentile"),
+             config.getDuration("min-delay", TimeUnit.MILLISECONDS),
+             config.getDouble("budget-ratio"),
+             config.getInt("max-budget")
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "enabled=" + enabled + "," +
+                "percentile=" + percentile + "," +
+                "min-delay=" + minDelay + "," +
+                "budget-ratio=" + budgetRatio + "," +
+                "max-budget=" + maxBudget;
+    }
+}
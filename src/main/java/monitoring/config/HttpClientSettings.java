@@ -0,0 +1,44 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+public class HttpClientSettings {
+    public final int ioThreads;
+    public final boolean keepAlive;
+    public final int maxConnections;
+    public final int maxConnectionsPerHost;
+    public final long pooledConnectionIdleTimeout;
+    public final long connectTimeout;
+
+    public HttpClientSettings(int ioThreads, boolean keepAlive, int maxConnections, int maxConnectionsPerHost,
+                              long pooledConnectionIdleTimeout, long connectTimeout) {
+        this.ioThreads = ioThreads;
+        this.keepAlive = keepAlive;
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.pooledConnectionIdleTimeout = pooledConnectionIdleTimeout;
+        this.connectTimeout = connectTimeout;
+    }
+
+    public HttpClientSettings(Config config) {
+        this(config.getInt("io-threads"),
+             config.getBoolean("keep-alive"),
+             config.getInt("max-connections"),
+             config.getInt("max-connections-per-host"),
+             config.getDuration("pooled-connection-idle-timeout", TimeUnit.MILLISECONDS),
+             config.getDuration("connect-timeout", TimeUnit.MILLISECONDS)
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "io-threads=" + ioThreads + "," +
+                "keep-alive=" + keepAlive + "," +
+                "max-connections=" + maxConnections + "," +
+                "max-connections-per-host=" + maxConnectionsPerHost + "," +
+                "pooled-connection-idle-timeout=" + pooledConnectionIdleTimeout + "," +
+                "connect-timeout=" + connectTimeout;
+    }
+}
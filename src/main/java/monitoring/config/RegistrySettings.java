@@ -0,0 +1,36 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+public class RegistrySettings {
+    public final boolean enabled;
+    public final String directory;
+    public final long logSize;
+    public final long snapshotInterval;
+    public final boolean fsync;
+
+    public RegistrySettings(boolean enabled, String directory, long logSize, long snapshotInterval, boolean fsync) {
+        this.enabled = enabled;
+        this.directory = directory;
+        this.logSize = logSize;
+        this.snapshotInterval = snapshotInterval;
+        this.fsync = fsync;
+    }
+
+    public RegistrySettings(Config config) {
+        this(config.getBoolean("enabled"),
+             config.getString("directory"),
+             config.getBytes("log-size"),
+             config.getDuration("snapshot-interval", TimeUnit.MILLISECONDS),
+             config.getBoolean("fsync")
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "enabled=" + enabled + "," + "directory=" + directory + "," + "log-size=" + logSize + ","
+                + "snapshot-interval=" + snapshotInterval + "," + "fsync=" + fsync;
+    }
+}
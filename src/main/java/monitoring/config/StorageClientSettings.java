@@ -0,0 +1,31 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+public class StorageClientSettings {
+    public final BatchSettings batch;
+    public final FanOutSettings fanOut;
+    public final CacheSettings cache;
+    public final HedgingSettings hedging;
+
+    public StorageClientSettings(BatchSettings batch, FanOutSettings fanOut, CacheSettings cache, HedgingSettings hedging) {
+        this.batch = batch;
+        this.fanOut = fanOut;
+        this.cache = cache;
+        this.hedging = hedging;
+    }
+
+    public StorageClientSettings(Config config) {
+        this(new BatchSettings(config.getConfig("batch")),
+             new FanOutSettings(config.getConfig("fan-out")),
+             new CacheSettings(config.getConfig("cache")),
+             new HedgingSettings(config.getConfig("hedging"))
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "batch=[" + batch + "]," + "fan-out=[" + fanOut + "]," + "cache=[" + cache + "],"
+                + "hedging=[" + hedging + "]";
+    }
+}
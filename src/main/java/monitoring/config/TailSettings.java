@@ -0,0 +1,29 @@
+package monitoring.config;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+public class TailSettings {
+    public final long pollInterval;
+    public final int bufferSize;
+    public final int maxSubscribers;
+
+    public TailSettings(long pollInterval, int bufferSize, int maxSubscribers) {
+        this.pollInterval = pollInterval;
+        this.bufferSize = bufferSize;
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    public TailSettings(Config config) {
+        this(config.getDuration("poll-interval", TimeUnit.MILLISECONDS),
+             config.getInt("buffer-size"),
+             config.getInt("max-subscribers")
+        );
+    }
+
+    @Override
+    public String toString() {
+        return "poll-interval=" + pollInterval + "," + "buffer-size=" + bufferSize + "," + "max-subscribers=" + maxSubscribers;
+    }
+}
@@ -2,89 +2,71 @@ package monitoring.dataconsuming;
 
 import monitoring.Handler;
 import monitoring.ServerManager;
+import monitoring.config.Configuration;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.http.HttpStatus;
 import spark.Request;
 import spark.Response;
 
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static monitoring.utils.ResponseUtils.getError;
-import static monitoring.utils.ResponseUtils.getOk;
 
 public class DataConsumingHandler extends Handler {
     private static final Logger logger = LogManager.getLogger(DataConsumingHandler.class);
 
-    public DataConsumingHandler(ServerManager manager) {
+    public DataConsumingHandler(Configuration config, ServerManager manager) {
+        this.config = config;
         this.manager = manager;
     }
 
-    public String handle(String method, Request request, Response response)
-        throws ExecutionException, InterruptedException {
+    @Override
+    public CompletableFuture<String> handleAsync(String method, Request request, Response response) {
         switch (method) {
             case "/dataStatus/:id": {
                 String id = request.params(":id");
                 if (id == null) {
-                    return getError("Parameter id is not specified", HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("Parameter id is not specified", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
-                try {
-                    return getOk(makeRequest("status/" + id), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("status/" + id, response, logger);
             }
 
             case "/dataStart": {
                 String port = request.queryParams("port");
                 if (port == null) {
-                    return getError("No port parameter specified", HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("No port parameter specified", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
-                try {
-                    return getOk(makeRequest("start/?port=" + port), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("start/?port=" + port, response, logger);
             }
 
             case "/dataStop/:id": {
                 String id = request.params(":id");
                 if (id == null) {
-                    return getError("No id at stop command", HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("No id at stop command", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
-                try {
-                    return getOk(makeRequest("stop/" + id), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("stop/" + id, response, logger);
             }
 
             case "/dataRestart/:id": {
                 String id = request.params(":id");
                 if (id == null) {
-                    return getError("No id at stop command", HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("No id at stop command", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
-                try {
-                    return getOk(makeRequest("restart/" + id), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("restart/" + id, response, logger);
             }
 
             case "/dataAllstatus": {
-                try {
-                    return getOk(makeRequest("allstatus"), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("allstatus", response, logger);
             }
 
             default:
-                return "Unknown method";
+                return completedFuture("Unknown method");
         }
     }
 }
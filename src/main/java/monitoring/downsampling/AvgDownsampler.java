@@ -0,0 +1,36 @@
+package monitoring.downsampling;
+
+import monitoring.storage.StorageResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits series into max buckets and returns one point per bucket: key and timestamp of the middle point
+ * with metric value replaced by the average of the bucket.
+ */
+public class AvgDownsampler extends SeriesDownsampler {
+    @Override
+    List<StorageResponse> downsample(Series series, int max) {
+        int n = series.size();
+        double[] values = series.values;
+        double size = (double) n / max;
+
+        List<StorageResponse> selected = new ArrayList<>(max);
+        for (int b = 0; b < max; b++) {
+            int start = (int) (b * size);
+            int end = b == max - 1 ? n : (int) ((b + 1) * size);
+            if (start >= end) {
+                continue;
+            }
+            double sum = 0;
+            for (int j = start; j < end; j++) {
+                sum += values[j];
+            }
+            StorageResponse middle = series.points.get((start + end - 1) / 2);
+            selected.add(new StorageResponse(middle.getKey(), middle.getTs(),
+                    MetricValues.withValue(middle.getValue(), sum / (end - start))));
+        }
+        return selected;
+    }
+}
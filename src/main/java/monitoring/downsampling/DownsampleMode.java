@@ -0,0 +1,24 @@
+package monitoring.downsampling;
+
+/**
+ * Downsampling modes selectable with ?downsample= parameter of /getMetrics.
+ */
+public enum DownsampleMode {
+    /** every n-th point, cheapest, keys can be selected before they are fetched from storage **/
+    STRIDE(new StrideDownsampler(), false),
+    /** Largest Triangle Three Buckets, keeps visual shape of the series **/
+    LTTB(new LttbDownsampler(), true),
+    /** minimum and maximum point of every bucket, keeps spikes **/
+    MINMAX(new MinMaxDownsampler(), true),
+    /** average value of every bucket **/
+    AVG(new AvgDownsampler(), true);
+
+    public final Downsampler downsampler;
+    /** if true, downsampler needs all points of the series (up to downsampleInputLimit) to be fetched **/
+    public final boolean needsWholeSeries;
+
+    DownsampleMode(Downsampler downsampler, boolean needsWholeSeries) {
+        this.downsampler = downsampler;
+        this.needsWholeSeries = needsWholeSeries;
+    }
+}
@@ -0,0 +1,17 @@
+package monitoring.downsampling;
+
+import monitoring.storage.StorageResponse;
+
+import java.util.List;
+
+/**
+ * Reduces metric series to at most max points for the client.
+ */
+public interface Downsampler {
+    /**
+     * @param points storage responses of one metric
+     * @param max maximum number of points to return
+     * @return at most max points in timestamp order
+     */
+    List<StorageResponse> downsample(List<StorageResponse> points, int max);
+}
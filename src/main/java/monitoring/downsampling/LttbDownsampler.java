@@ -0,0 +1,66 @@
+package monitoring.downsampling;
+
+import monitoring.storage.StorageResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Largest Triangle Three Buckets (Sveinn Steinarsson, 2013). First and last points are kept, the rest is split
+ * into max - 2 buckets and from every bucket the point forming the largest triangle with the previously
+ * selected point and the average of the next bucket is taken.
+ */
+public class LttbDownsampler extends SeriesDownsampler {
+    @Override
+    List<StorageResponse> downsample(Series series, int max) {
+        if (max < 3) {
+            return StrideDownsampler.selectEvenly(series.points, max);
+        }
+        int n = series.size();
+        long[] ts = series.ts;
+        double[] values = series.values;
+        long origin = ts[0];
+
+        List<StorageResponse> selected = new ArrayList<>(max);
+        selected.add(series.points.get(0));
+
+        double every = (double) (n - 2) / (max - 2);
+        int a = 0;
+        for (int i = 0; i < max - 2; i++) {
+            // average of the next bucket, the last point for the last bucket
+            int avgStart = (int) Math.floor((i + 1) * every) + 1;
+            int avgEnd = Math.min((int) Math.floor((i + 2) * every) + 1, n);
+            if (avgStart >= avgEnd) {
+                avgStart = n - 1;
+                avgEnd = n;
+            }
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += ts[j] - origin;
+                avgY += values[j];
+            }
+            avgX /= avgEnd - avgStart;
+            avgY /= avgEnd - avgStart;
+
+            int rangeStart = (int) Math.floor(i * every) + 1;
+            int rangeEnd = Math.min((int) Math.floor((i + 1) * every) + 1, n - 1);
+            double ax = ts[a] - origin;
+            double ay = values[a];
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((ax - avgX) * (values[j] - ay) - (ax - (ts[j] - origin)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            selected.add(series.points.get(next));
+            a = next;
+        }
+
+        selected.add(series.points.get(n - 1));
+        return selected;
+    }
+}
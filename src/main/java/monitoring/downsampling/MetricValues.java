@@ -0,0 +1,87 @@
+package monitoring.downsampling;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+
+/**
+ * Reads and replaces numeric metric value in storage value, which is either a number
+ * or {"metric_id": ..., "metric": {"value": <number>}}.
+ */
+final class MetricValues {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final JsonFactory factory = mapper.getFactory();
+
+    private MetricValues() { }
+
+    /** @return metric value or NaN if there is no numeric one **/
+    static double parse(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        try (JsonParser parser = factory.createParser(value)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return Double.NaN;
+            }
+            if (token.isNumeric()) {
+                return parser.getDoubleValue();
+            }
+            if (token != JsonToken.START_OBJECT) {
+                return Double.NaN;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                token = parser.nextToken();
+                if ("metric".equals(name) && token == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String inner = parser.getCurrentName();
+                        token = parser.nextToken();
+                        if ("value".equals(inner)) {
+                            return number(parser, token);
+                        }
+                        parser.skipChildren();
+                    }
+                    return Double.NaN;
+                }
+                parser.skipChildren();
+            }
+            return Double.NaN;
+        } catch (IOException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** @return storage value with metric value replaced, other fields are kept **/
+    static String withValue(String value, double metric) {
+        try {
+            JsonNode root = mapper.readTree(value);
+            if (root != null && root.isObject() && root.path("metric").isObject()) {
+                ((ObjectNode) root.get("metric")).put("value", metric);
+                return mapper.writeValueAsString(root);
+            }
+        } catch (IOException e) {
+            // not JSON, plain number is returned below
+        }
+        return String.valueOf(metric);
+    }
+
+    private static double number(JsonParser parser, JsonToken token) throws IOException {
+        if (token.isNumeric()) {
+            return parser.getDoubleValue();
+        }
+        if (token == JsonToken.VALUE_STRING) {
+            try {
+                return Double.parseDouble(parser.getText());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,46 @@
+package monitoring.downsampling;
+
+import monitoring.storage.StorageResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits series into max / 2 buckets and keeps minimum and maximum point of every bucket in timestamp order.
+ */
+public class MinMaxDownsampler extends SeriesDownsampler {
+    @Override
+    List<StorageResponse> downsample(Series series, int max) {
+        if (max < 2) {
+            return StrideDownsampler.selectEvenly(series.points, max);
+        }
+        int n = series.size();
+        double[] values = series.values;
+        int buckets = max / 2;
+        double size = (double) n / buckets;
+
+        List<StorageResponse> selected = new ArrayList<>(max);
+        for (int b = 0; b < buckets; b++) {
+            int start = (int) (b * size);
+            int end = b == buckets - 1 ? n : (int) ((b + 1) * size);
+            if (start >= end) {
+                continue;
+            }
+            int min = start;
+            int maxIdx = start;
+            for (int j = start + 1; j < end; j++) {
+                if (values[j] < values[min]) {
+                    min = j;
+                }
+                if (values[j] > values[maxIdx]) {
+                    maxIdx = j;
+                }
+            }
+            selected.add(series.points.get(Math.min(min, maxIdx)));
+            if (min != maxIdx) {
+                selected.add(series.points.get(Math.max(min, maxIdx)));
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,82 @@
+package monitoring.downsampling;
+
+import monitoring.storage.StorageResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Numeric view of storage responses: timestamps and metric values in primitive arrays, sorted by timestamp.
+ * Points without numeric timestamp or value are dropped.
+ */
+class Series {
+    private static final Logger logger = LogManager.getLogger(Series.class);
+
+    final List<StorageResponse> points;
+    final long[] ts;
+    final double[] values;
+
+    private Series(List<StorageResponse> points, long[] ts, double[] values) {
+        this.points = points;
+        this.ts = ts;
+        this.values = values;
+    }
+
+    static Series of(List<StorageResponse> responses) {
+        int n = responses.size();
+        List<StorageResponse> points = new ArrayList<>(n);
+        long[] ts = new long[n];
+        double[] values = new double[n];
+        int size = 0;
+        boolean sorted = true;
+        for (StorageResponse response : responses) {
+            long t;
+            try {
+                t = Long.parseLong(response.getTs());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            double value = MetricValues.parse(response.getValue());
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            if (size > 0 && t < ts[size - 1]) {
+                sorted = false;
+            }
+            points.add(response);
+            ts[size] = t;
+            values[size] = value;
+            size++;
+        }
+        if (size < n) {
+            logger.warn("Dropped " + (n - size) + " of " + n + " points without numeric timestamp or value");
+        }
+        Series series = new Series(points, Arrays.copyOf(ts, size), Arrays.copyOf(values, size));
+        return sorted ? series : series.sorted();
+    }
+
+    int size() {
+        return ts.length;
+    }
+
+    private Series sorted() {
+        Integer[] order = new Integer[ts.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> ts[i]));
+        List<StorageResponse> sortedPoints = new ArrayList<>(order.length);
+        long[] sortedTs = new long[order.length];
+        double[] sortedValues = new double[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedPoints.add(points.get(order[i]));
+            sortedTs[i] = ts[order[i]];
+            sortedValues[i] = values[order[i]];
+        }
+        return new Series(sortedPoints, sortedTs, sortedValues);
+    }
+}
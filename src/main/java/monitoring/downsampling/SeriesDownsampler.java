@@ -0,0 +1,22 @@
+package monitoring.downsampling;
+
+import monitoring.storage.StorageResponse;
+
+import java.util.List;
+
+/**
+ * Base of downsamplers that look at metric values: parses the series once and works on primitive arrays.
+ */
+abstract class SeriesDownsampler implements Downsampler {
+    @Override
+    public List<StorageResponse> downsample(List<StorageResponse> points, int max) {
+        Series series = Series.of(points);
+        if (series.size() <= max) {
+            return series.points;
+        }
+        return downsample(series, max);
+    }
+
+    /** Called only when series has more than max points **/
+    abstract List<StorageResponse> downsample(Series series, int max);
+}
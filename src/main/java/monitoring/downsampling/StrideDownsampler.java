@@ -0,0 +1,31 @@
+package monitoring.downsampling;
+
+import monitoring.storage.StorageResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StrideDownsampler implements Downsampler {
+    @Override
+    public List<StorageResponse> downsample(List<StorageResponse> points, int max) {
+        return selectEvenly(points, max);
+    }
+
+    /** Picks at most max elements evenly spread over the list, keeping their order **/
+    public static <T> List<T> selectEvenly(List<T> items, int max) {
+        int size = items.size();
+        if (size <= max) {
+            return items;
+        }
+        List<T> selected = new ArrayList<>(max);
+        for (int k = 0; k < max; k++) {
+            selected.add(items.get((int) evenIndex(k, size, max)));
+        }
+        return selected;
+    }
+
+    /** @return index of k-th of max elements picked evenly out of size ones, integer math, so it does not drift **/
+    public static long evenIndex(long k, long size, int max) {
+        return k * size / max;
+    }
+}
@@ -0,0 +1,49 @@
+package monitoring.indexing;
+
+import java.util.List;
+
+/**
+ * Body of POST /getMetricsBatch:
+ * {"metrics": [{"host": "h1", "type": "cpu"}, {"host": "h2"}], "timestamp": "...", "stream": true, "downsample": "lttb"}
+ */
+public class BatchQuery {
+    private List<MetricSelector> metrics;
+    private String timestamp;
+    private boolean stream;
+    private String downsample;
+
+    // needed for fasterxml
+    public BatchQuery() {}
+
+    public List<MetricSelector> getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(List<MetricSelector> metrics) {
+        this.metrics = metrics;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(String timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public boolean isStream() {
+        return stream;
+    }
+
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    public String getDownsample() {
+        return downsample;
+    }
+
+    public void setDownsample(String downsample) {
+        this.downsample = downsample;
+    }
+}
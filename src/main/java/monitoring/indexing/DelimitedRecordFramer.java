@@ -0,0 +1,72 @@
+package monitoring.indexing;
+
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into records separated by a one-byte delimiter. The stream may be cut into chunks
+ * at any position: the tail of a chunk that does not end with delimiter is kept and joined with the next chunk.
+ * Records lying completely inside one chunk are passed to the consumer without copying.
+ * Not thread safe, one instance per stream.
+ */
+public class DelimitedRecordFramer {
+    @FunctionalInterface
+    public interface RecordConsumer {
+        void accept(byte[] buffer, int offset, int length) throws Exception;
+    }
+
+    private final byte delimiter;
+
+    private byte[] carry = new byte[256];
+    private int carryLength = 0;
+
+    public DelimitedRecordFramer(byte delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /** Passes every record completed by this chunk to the consumer, blank records are skipped **/
+    public void feed(byte[] chunk, int offset, int length, RecordConsumer consumer) throws Exception {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (chunk[i] != delimiter) {
+                continue;
+            }
+            if (carryLength == 0) {
+                emit(chunk, start, i - start, consumer);
+            } else {
+                append(chunk, start, i - start);
+                emit(carry, 0, carryLength, consumer);
+                carryLength = 0;
+            }
+            start = i + 1;
+        }
+        if (start < end) {
+            append(chunk, start, end - start);
+        }
+    }
+
+    /** Passes the last record to the consumer if the stream did not end with delimiter **/
+    public void finish(RecordConsumer consumer) throws Exception {
+        if (carryLength > 0) {
+            emit(carry, 0, carryLength, consumer);
+            carryLength = 0;
+        }
+    }
+
+    private void append(byte[] src, int offset, int length) {
+        if (carryLength + length > carry.length) {
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+        }
+        System.arraycopy(src, offset, carry, carryLength, length);
+        carryLength += length;
+    }
+
+    private static void emit(byte[] buffer, int offset, int length, RecordConsumer consumer) throws Exception {
+        for (int i = offset; i < offset + length; i++) {
+            if (!Character.isWhitespace(buffer[i])) {
+                consumer.accept(buffer, offset, length);
+                return;
+            }
+        }
+    }
+}
@@ -1,78 +1,145 @@
 package monitoring.indexing;
 
-import monitoring.ServerManager;
-import monitoring.storage.StorageAsyncRequestHandler;
+import monitoring.metrics.Counter;
+import monitoring.metrics.MetricsRegistry;
+import monitoring.storage.QueryFanOut;
 import monitoring.storage.StorageResponse;
 import monitoring.utils.JsonUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import io.netty.channel.Channel;
 import org.asynchttpclient.*;
+import org.asynchttpclient.handler.AsyncHandlerExtensions;
+import org.asynchttpclient.netty.request.NettyRequest;
 import org.eclipse.jetty.http.HttpStatus;
 
-import java.net.URL;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
- * Класс, отвечающий за поточную обработку ответа от сервиса индексации. При получении очередной части ответа,
- * пытается разделить полученную строку по символу @, после чего для каждого полученного элемента делает запрос
- * к сервису хранения данных и добавляет во внутренний список футуру. После того, как получит полностью ответ от сервиса
- * индексации, возвращает список футур, по которым можно получить ответы от сервиса хранения.
+ * Класс, отвечающий за поточную обработку ответа от сервиса индексации. Полученные части ответа разбираются
+ * на записи, разделенные символом @, прямо в байтах; запись, разрезанная между двумя частями, склеивается.
+ * Записи равномерно прореживаются до заданного количества еще до запроса к хранилищу (см. {@link StreamingKeySelector}),
+ * JSON разбирается только у выбранных записей.
+ * Для каждой выбранной записи делает запрос к сервису хранения данных и добавляет во внутренний список футуру,
+ * которую сразу же получает onSelected, так что ответ хранилища можно отдать клиенту, не дожидаясь конца потока.
+ * Если запросов к хранилищу по этому запросу выполняется уже max-in-flight-per-query, остальные ждут в очереди,
+ * а чтение сокета приостанавливается (autoRead канала Netty выключается) до тех пор, пока очередь не разберется,
+ * так что сервис индексации притормаживается через TCP. Поток HTTP клиента при этом никогда не блокируется.
+ * После того, как получит полностью ответ от сервиса индексации, возвращает список футур, по которым можно
+ * получить ответы от сервиса хранения.
+ * Если задан since, записи с позицией в индексе меньше since пропускаются без разбора. Позиция первой записи
+ * берется из заголовка offset, без него позиции записей неизвестны: ничего не пропускается и курсора нет
+ * (см. {@link MetricsPage}).
  */
-public class IndexingAsyncResponseHandler implements AsyncHandler<List<CompletableFuture<StorageResponse>>> {
+public class IndexingAsyncResponseHandler implements AsyncHandler<List<CompletableFuture<StorageResponse>>>,
+        AsyncHandlerExtensions {
     private static final Logger logger = LogManager.getLogger(IndexingAsyncResponseHandler.class);
+    private static final Counter streamBytes = MetricsRegistry.get().counter("controller_indexing_stream_bytes_total",
+            "Bytes received in streamed indexing responses");
+    private static final Counter streamRecords = MetricsRegistry.get().counter("controller_indexing_stream_records_total",
+            "Records received in streamed indexing responses, selected or not");
+    private static final Counter streamPauses = MetricsRegistry.get().counter("controller_indexing_stream_pauses_total",
+            "Times reading of indexing stream was paused until storage requests of the query caught up");
 
-    private static final String SEPARATOR = "@";
+    private static final byte SEPARATOR = '@';
 
-    private List<CompletableFuture<StorageResponse>> storageFutures = new ArrayList<>();
+    private final DelimitedRecordFramer framer = new DelimitedRecordFramer(SEPARATOR);
 
-    private ServerManager storageManager;
+    private final StreamingKeySelector<StorageResponse> selector;
 
-    public IndexingAsyncResponseHandler(ServerManager storageManager) {
-        this.storageManager = storageManager;
+    private QueryFanOut fanOut;
+
+    // connection the response is read from, reading is paused while storage requests of the query are queued
+    private volatile Channel channel;
+
+    private final long since;
+    // position in the index of the first record from offset header, null if the service did not send it
+    private Long first;
+    // position in the index of the next record, records are not skipped when it is unknown
+    private long position;
+
+    private final Consumer<CompletableFuture<StorageResponse>> onSelected;
+
+    public IndexingAsyncResponseHandler(QueryFanOut fanOut, int fetchLimit) {
+        this(fanOut, fetchLimit, 0);
+    }
+
+    public IndexingAsyncResponseHandler(QueryFanOut fanOut, int fetchLimit, long since) {
+        this(fanOut, fetchLimit, since, f -> { });
+    }
+
+    public IndexingAsyncResponseHandler(QueryFanOut fanOut, int fetchLimit, long since,
+                                        Consumer<CompletableFuture<StorageResponse>> onSelected) {
+        this.fanOut = fanOut;
+        this.selector = new StreamingKeySelector<>(fetchLimit);
+        this.since = since;
+        this.position = since;
+        this.onSelected = onSelected;
+    }
+
+    /**
+     * @return position in the index after the last received record, null if indexing service did not send offset;
+     * valid after the response is completed
+     */
+    public Long getCursor() {
+        return first == null ? null : Math.max(position, since);
     }
 
     @Override
     public void onThrowable(Throwable t) {
         logger.error("error while index", t);
+        resume();
     }
 
     @Override
     public State onBodyPartReceived(HttpResponseBodyPart bodyPart) throws Exception {
-        String str = new String(bodyPart.getBodyPartBytes(), Charset.forName("UTF-8"));
-        logger.debug("String representation: " + str);
-        if (!bodyPart.isLast()) {
-            List<String> splitted = new ArrayList<>(Arrays.asList(str.split(SEPARATOR)));
-            splitted.forEach(s -> {
-                IndexingResponsePart response = JsonUtils.indexingResponse(s);
-                logger.info("POJO representation: " + response);
-                String url = makeStorageUrl(response);
-                if (url == null) {
-                    logger.error("No storage on list while receiving part of indexing response");
-                } else {
-                    logger.debug("URL for request to storage: " + url);
-
-                    CompletableFuture<StorageResponse> f = new CompletableFuture<>();
-                    storageFutures.add(f);
-
-                    new DefaultAsyncHttpClient().prepareGet(url).execute(new StorageAsyncRequestHandler(f));
-                }
-            });
+        byte[] bytes = bodyPart.getBodyPartBytes();
+        streamBytes.add(bytes.length);
+        if (logger.isTraceEnabled()) {
+            logger.trace("String representation: " + new String(bytes, StandardCharsets.UTF_8));
+        }
+        framer.feed(bytes, 0, bytes.length, this::onRecord);
+        if (fanOut.isSaturated()) {
+            pause();
         }
-
         return State.CONTINUE;
     }
 
-    private String makeStorageUrl(IndexingResponsePart indexingResponse) {
-        logger.trace("makeStorageUrl called");
-        URL storage = storageManager.next();
-        if (storage == null) {
-            return null;
+    private void pause() {
+        Channel current = channel;
+        if (current == null) {
+            logger.warn("Connection to indexing service is unknown, can not pause reading of the stream");
+            return;
         }
-        return "http://" + storage.getHost() + ":" + storage.getPort() + "/key/" + indexingResponse.getKey();
+        streamPauses.increment();
+        current.config().setAutoRead(false);
+        fanOut.whenDrained(this::resume);
+    }
+
+    private void resume() {
+        Channel current = channel;
+        if (current != null && !current.config().isAutoRead()) {
+            current.config().setAutoRead(true);
+        }
+    }
+
+    private void onRecord(byte[] buffer, int offset, int length) throws Exception {
+        streamRecords.increment();
+        if (position++ < since || !selector.next()) {
+            return;
+        }
+        IndexingResponsePart response = JsonUtils.indexingResponse(buffer, offset, length);
+        if (logger.isDebugEnabled()) {
+            logger.debug("POJO representation: " + response);
+        }
+        CompletableFuture<StorageResponse> future = fanOut.get(response.getKey());
+        // selector may cancel it right away, so the callback is attached first
+        onSelected.accept(future);
+        selector.add(future);
     }
 
     @Override
@@ -96,14 +163,75 @@ public class IndexingAsyncResponseHandler implements AsyncHandler<List<Completab
             logger.error("Received not-ok status header from indexing service");
             return State.ABORT;
         }
+        first = MetricsPage.firstPosition(headers.getHeaders().get("offset"));
+        position = first == null ? since : first;
+        // optional, lets us pick exactly the same keys as for the whole response
+        String count = headers.getHeaders().get("count");
+        if (count != null) {
+            try {
+                selector.setExpectedCount(Long.parseLong(count.trim()) - Math.max(0, since - position));
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid count header from indexing service: " + count);
+            }
+        }
         return State.CONTINUE;
     }
 
     @Override
     public List<CompletableFuture<StorageResponse>> onCompleted() throws Exception {
-        if (storageFutures.isEmpty()) {
+        // connection goes back to pool, it must be readable for the next request
+        resume();
+        framer.finish(this::onRecord);
+        // indexing service that skips old records sends nothing when there are no new ones
+        if (selector.getSeen() == 0 && since == 0) {
             throw new Exception("No body parts");
         }
-        return storageFutures;
+        return selector.finish();
+    }
+
+    @Override
+    public void onTcpConnectSuccess(InetSocketAddress remoteAddress, Channel connection) {
+        channel = connection;
+    }
+
+    @Override
+    public void onConnectionPooled(Channel connection) {
+        channel = connection;
     }
+
+    @Override
+    public void onHostnameResolutionAttempt(String name) { }
+
+    @Override
+    public void onHostnameResolutionSuccess(String name, List<InetSocketAddress> addresses) { }
+
+    @Override
+    public void onHostnameResolutionFailure(String name, Throwable cause) { }
+
+    @Override
+    public void onTcpConnectAttempt(InetSocketAddress remoteAddress) { }
+
+    @Override
+    public void onTcpConnectFailure(InetSocketAddress remoteAddress, Throwable cause) { }
+
+    @Override
+    public void onTlsHandshakeAttempt() { }
+
+    @Override
+    public void onTlsHandshakeSuccess() { }
+
+    @Override
+    public void onTlsHandshakeFailure(Throwable cause) { }
+
+    @Override
+    public void onConnectionPoolAttempt() { }
+
+    @Override
+    public void onConnectionOffer(Channel connection) { }
+
+    @Override
+    public void onRequestSend(NettyRequest request) { }
+
+    @Override
+    public void onRetry() { }
 }
@@ -1,81 +1,89 @@
 package monitoring.indexing;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
 import monitoring.Handler;
+import monitoring.MetricInfo;
 import monitoring.MetricsInfoTable;
 import monitoring.ServerManager;
 import monitoring.config.Configuration;
+import monitoring.downsampling.DownsampleMode;
+import monitoring.downsampling.Downsampler;
+import monitoring.downsampling.StrideDownsampler;
+import monitoring.metrics.Histogram;
+import monitoring.metrics.MetricsRegistry;
+import monitoring.storage.QueryFanOut;
+import monitoring.storage.StorageClient;
 import monitoring.storage.StorageResponse;
+import monitoring.storage.ValueNotFoundException;
+import monitoring.utils.FutureUtils;
+import monitoring.utils.JsonUtils;
+import monitoring.utils.ResponseBody;
+import monitoring.utils.ResponseEncoding;
+import monitoring.utils.SingleFlight;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.asynchttpclient.AsyncCompletionHandler;
-import org.asynchttpclient.AsyncHttpClient;
-import org.asynchttpclient.DefaultAsyncHttpClient;
-import org.asynchttpclient.ListenableFuture;
 import org.eclipse.jetty.http.HttpStatus;
 import spark.Request;
 import spark.Response;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static monitoring.utils.ResponseUtils.getError;
-import static monitoring.utils.ResponseUtils.getOk;
 
 public class IndexingHandler extends Handler {
     private static final Logger logger = LogManager.getLogger(IndexingHandler.class);
-    private ObjectMapper mapper = new ObjectMapper();
+    private static final Histogram batchSizes = MetricsRegistry.get().sizes("controller_batch_query_metrics",
+            "Number of metrics selected per /getMetricsBatch query");
+    private static final Histogram queryKeys = MetricsRegistry.get().sizes("controller_query_storage_keys",
+            "Number of keys requested from storage per /getMetrics query");
 
-    private ServerManager storageManager;
     private MetricsInfoTable table;
+    private StorageClient storageClient;
+    private final SingleFlight<String, MetricsPage<StorageResponse>> queries = new SingleFlight<>();
 
-    public IndexingHandler(Configuration config, MetricsInfoTable table, ServerManager indexingManager, ServerManager storageManager) {
+    public IndexingHandler(Configuration config, MetricsInfoTable table, ServerManager indexingManager, StorageClient storageClient) {
         this.config = config;
         this.table = table;
         this.manager = indexingManager;
-        this.storageManager = storageManager;
+        this.storageClient = storageClient;
     }
 
-    public String handle(String method, Request request, Response response) {
+    @Override
+    public CompletableFuture<String> handleAsync(String method, Request request, Response response) {
         switch (method) {
             case "/indexCount/:timestamp": {
                 String timestamp = request.params(":timestamp");
                 if (timestamp == null) {
-                    return getError("Timestamp not specified", HttpStatus.BAD_REQUEST_400, response, logger);
-                }
-                try {
-                    return getOk(makeRequest("/getIndexCount/" + timestamp), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+                    return completedFuture(getError("Timestamp not specified", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
+                return proxy("/getIndexCount/" + timestamp, response, logger);
             }
 
             case "/indexState/:timestamp": {
                 String timestamp = request.params(":timestamp");
                 if (timestamp == null) {
-                    return getError("Timestamp not specified", HttpStatus.BAD_REQUEST_400, response, logger);
-                }
-                try {
-                    return getOk(makeRequest("/getIndexState/" + timestamp), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+                    return completedFuture(getError("Timestamp not specified", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
+                return proxy("/getIndexState/" + timestamp, response, logger);
             }
 
             case "/indexKPI": {
-                try {
-                    return getOk(makeRequest("/getKPI"), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("/getKPI", response, logger);
             }
 
             case "/getMetrics": {
@@ -84,15 +92,15 @@ public class IndexingHandler extends Handler {
                 String type = request.queryParams("type");
                 String timestamp = request.queryParams("timestamp");
                 if (host == null || port == null || type == null) {
-                    return getError("Some of mandatory params (host, port, type) are missing for " + method,
-                            HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("Some of mandatory params (host, port, type) are missing for " + method,
+                            HttpStatus.BAD_REQUEST_400, response, logger));
                 }
                 if (timestamp == null) {
                     logger.warn("'timestamp' parameter is not present for " + method);
                 }
                 if (!config.supportedMetricTypes.contains(type.toLowerCase())) {
-                    return getError("Unsupported metric type: " + type + ", supported types are: " + String.join(",", config.supportedMetricTypes),
-                            HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("Unsupported metric type: " + type + ", supported types are: " + String.join(",", config.supportedMetricTypes),
+                            HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
                 // determine if we use streaming mode
@@ -108,152 +116,389 @@ public class IndexingHandler extends Handler {
                 // find ID for metric info record
                 Long id = table.getMetricInfoId(host, port, type);
                 if (id == null) {
-                    return getError("No information about monitored metric for specified params: host=" + host + ", port=" + port + ", type=" + type + " for " + method,
-                            HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("No information about monitored metric for specified params: host=" + host + ", port=" + port + ", type=" + type + " for " + method,
+                            HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
-                // choose indexing service that we will communicate with and make URL
-                String baseUrl = next();
-                String pathUrl = "getIndexData/" + id + (timestamp == null ? "" : "/" + timestamp);
-                if (baseUrl == null) {
-                    return getError("No indexing servers are specified for " + method,
-                            HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger
-                    );
+                // only keys after the cursor returned by previous query are requested, cursor is returned
+                // in response only when since is specified and indexing service tells positions of keys, so 0 starts polling
+                String sinceParam = request.queryParams("since");
+                long since = 0;
+                if (sinceParam != null) {
+                    try {
+                        since = Long.parseLong(sinceParam);
+                    } catch (NumberFormatException e) {
+                        since = -1;
+                    }
+                    if (since < 0) {
+                        return completedFuture(getError("Invalid since: " + sinceParam + ", expected cursor returned by previous query or 0",
+                                HttpStatus.BAD_REQUEST_400, response, logger));
+                    }
                 }
+                boolean withCursor = sinceParam != null;
 
-                // if we dont use streaming, try to receive all data at once
-                if (!isStream) {
-                    logger.debug("Trying to make " + baseUrl + pathUrl + " request without streaming");
+                // determine how we send metrics to the client
+                String outputParam = request.queryParams("output");
+                MetricsStreamWriter.Format output = null;
+                if (outputParam != null && !"json".equalsIgnoreCase(outputParam)) {
                     try {
-                        // make request to indexing service
-                        String responseStr = makeRequest(pathUrl);
-                        List<StorageResponse> storageResponses = new ArrayList<>();
-                        IndexingSyncResponse indexingResponse = mapper.readValue(responseStr, IndexingSyncResponse.class);
-                        // for each key in response from indexing service make request to storage
-                        for (IndexingResponsePart chunk : indexingResponse.getKeys()) {
-                            logger.debug("Chunk of indexing response: " + chunk.toString());
-                            try {
-                                String storageStr = makeStorageKeyRequest(chunk);
-                                if (storageStr.isEmpty()) {
-                                    logger.warn("No value found for key " + chunk.getKey());
-                                } else {
-                                    StorageResponse storageResponse = mapper.readValue(storageStr, StorageResponse.class);
-                                    logger.debug("Storage response: " + storageResponse.toString());
-                                    storageResponses.add(storageResponse);
-                                }
-                            } catch (RuntimeException | IOException e) {
-                                return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                            }
-                        }
-
-                        // make response for client
-                        List<String> lst = agregateResponses(storageResponses);
-                        return getOk("{\"metrics\": [ " + String.join(", ", lst) + " ] }", HttpStatus.OK_200, response, logger);
-                    } catch (RuntimeException | IOException e) {
-                        return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+                        output = MetricsStreamWriter.Format.valueOf(outputParam.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        return completedFuture(getError("Unsupported output: " + outputParam + ", supported outputs are: json,chunked,ndjson",
+                                HttpStatus.BAD_REQUEST_400, response, logger));
                     }
                 }
+                int reorderCapacity = "true".equalsIgnoreCase(request.queryParams("ordered")) ? config.reorderBufferSize : 0;
 
-                // otherwise we work in streaming mode;
-                // prepare handler for processing indexing service response
-                logger.debug("URL for requesting indexing service: " + baseUrl + pathUrl);
-                IndexingAsyncResponseHandler handler = new IndexingAsyncResponseHandler(storageManager);
+                // determine how we reduce metrics to maxResultAmount
+                String downsampleParam = request.queryParams("downsample");
+                DownsampleMode downsample = DownsampleMode.STRIDE;
+                if (downsampleParam != null) {
+                    try {
+                        downsample = DownsampleMode.valueOf(downsampleParam.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        return completedFuture(getError("Unsupported downsample: " + downsampleParam + ", supported modes are: stride,lttb,minmax,avg",
+                                HttpStatus.BAD_REQUEST_400, response, logger));
+                    }
+                }
+                if (output != null && downsample.needsWholeSeries) {
+                    return completedFuture(getError("downsample=" + downsampleParam + " needs the whole series and is supported only with output=json",
+                            HttpStatus.BAD_REQUEST_400, response, logger));
+                }
+                ResponseEncoding encoding = negotiate(request, response);
+                if (output != null) {
+                    // indexing service is chosen only for a valid query, choosing may claim the trial request of a recovering one
+                    URL indexing = manager.next();
+                    if (indexing == null) {
+                        return completedFuture(getError("No indexing servers are specified for " + method,
+                                HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger));
+                    }
+                    MetricsStreamWriter writer;
+                    try {
+                        writer = MetricsStreamWriter.start(response.raw(), output, encoding, reorderCapacity);
+                    } catch (IOException e) {
+                        return completedFuture(getError("Error starting metrics stream: " + e.getMessage(),
+                                HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger));
+                    }
+                    return streamStorage(indexing, indexPath(id, timestamp, since), fetchLimit(downsample), since, isStream,
+                            writer, withCursor)
+                            .thenApply(v -> "");
+                }
 
-                // make request to indexing service
-                AsyncHttpClient client = new DefaultAsyncHttpClient();
-                ListenableFuture<List<CompletableFuture<StorageResponse>>> indexingRequest =
-                        client.prepareGet(baseUrl + pathUrl).addHeader("stream", "true").execute(handler);
-                List<CompletableFuture<StorageResponse>> storageResponses;
+                // identical queries running at the same time share indexing request, storage requests and result
+                return queryMetric(id, timestamp, isStream, downsample, since).handle((page, t) -> {
+                    if (t != null) {
+                        return completedFuture(getError(FutureUtils.unwrap(t).getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger));
+                    }
+                    MetricsStreamWriter writer;
+                    try {
+                        writer = MetricsStreamWriter.start(response.raw(), MetricsStreamWriter.Format.CHUNKED, encoding, 0);
+                    } catch (IOException e) {
+                        return completedFuture(getError("Error writing metrics: " + e.getMessage(),
+                                HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger));
+                    }
+                    writer.writeAll(page.metrics);
+                    return writer.finish(withCursor && page.cursor != null ? String.valueOf(page.cursor) : null).thenApply(v -> {
+                        logger.debug("Sent " + page.metrics.size() + " metrics for " + method);
+                        return "";
+                    });
+                }).thenCompose(result -> result);
+            }
 
-                // try to wait for indexing service response that we received
-                // all keys and sent all of them to storage service
+            case "/getMetricsBatch": {
+                BatchQuery query;
                 try {
-                    storageResponses = indexingRequest.get(config.timeouts.indexingTimeout, TimeUnit.MILLISECONDS);
-                    logger.debug(
-                            "Received " + storageResponses.size() + " messages from indexing, sent all to storage"
-                    );
-                } catch (TimeoutException e) {
-                    return getError(
-                            "Timeout while requesting indexing service: " + e.getMessage(),
-                            HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger
-                    );
-                } catch (InterruptedException | ExecutionException e) {
-                    return getError(
-                            "Unexpected error while requesting indexing service: " + e.getMessage(),
-                            HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger
-                    );
+                    query = JsonUtils.batchQuery(request.body());
+                } catch (IOException e) {
+                    return completedFuture(getError("Invalid batch query: " + e.getMessage(), HttpStatus.BAD_REQUEST_400, response, logger));
+                }
+                if (query == null || query.getMetrics() == null || query.getMetrics().isEmpty()) {
+                    return completedFuture(getError("No metric selectors in batch query", HttpStatus.BAD_REQUEST_400, response, logger));
+                }
+                DownsampleMode downsample = DownsampleMode.STRIDE;
+                if (query.getDownsample() != null) {
+                    try {
+                        downsample = DownsampleMode.valueOf(query.getDownsample().toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        return completedFuture(getError("Unsupported downsample: " + query.getDownsample() + ", supported modes are: stride,lttb,minmax,avg",
+                                HttpStatus.BAD_REQUEST_400, response, logger));
+                    }
+                }
+
+                // resolve selectors, metrics matched by several of them are queried once
+                Set<MetricInfo> metrics = new LinkedHashSet<>();
+                List<MetricSelector> unmatched = new ArrayList<>();
+                for (MetricSelector selector : query.getMetrics()) {
+                    List<MetricInfo> selected = table.select(MetricSelector.exact(selector.getHost()),
+                            MetricSelector.exact(selector.getPort()), MetricSelector.exact(selector.getType()));
+                    if (selected.isEmpty()) {
+                        unmatched.add(selector);
+                    }
+                    metrics.addAll(selected);
+                    if (metrics.size() > config.batchQuery.maxMetrics) {
+                        return completedFuture(getError("Batch query selects more than " + config.batchQuery.maxMetrics + " metrics",
+                                HttpStatus.BAD_REQUEST_400, response, logger));
+                    }
                 }
 
-                // some magic with futures to transform List<Future> to Future<List>
-                CompletableFuture<Void> listFuture = CompletableFuture.allOf(
-                        storageResponses.toArray(new CompletableFuture[storageResponses.size()])
-                );
-                CompletableFuture<List<StorageResponse>> ff = listFuture.thenApply(v ->
-                        storageResponses.stream().map(CompletableFuture::join).collect(Collectors.toList())
-                );
+                ResponseEncoding encoding = negotiate(request, response);
 
-                try {
-                    List<StorageResponse> responses = ff.get(config.timeouts.storageTimeout, TimeUnit.MILLISECONDS);
-
-                    // make response for client
-                    List<String> lst = agregateResponses(responses);
-                    return getOk("{\"metrics\": [ " + String.join(", ", lst) + " ] }", HttpStatus.OK_200, response, logger);
-                } catch (TimeoutException e) {
-                    return getError(
-                            "Error while waiting for storage service responses: " + e.getMessage(),
-                            HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger
-                    );
-                } catch (ExecutionException | InterruptedException e) {
-                    return getError(
-                            "Unexpected error while waiting for storage service responses: " + e.getMessage(),
-                            HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger
-                    );
+                // all metrics are queried at once and share one deadline
+                List<CompletableFuture<List<StorageResponse>>> results = new ArrayList<>(metrics.size());
+                for (MetricInfo info : metrics) {
+                    CompletableFuture<List<StorageResponse>> result = queryMetric(info.getId(), query.getTimestamp(),
+                            query.isStream(), downsample, 0).thenApply(page -> page.metrics);
+                    results.add(FutureUtils.withTimeout(result, config.batchQuery.deadline,
+                            "Batch query deadline of " + config.batchQuery.deadline + " ms exceeded"));
                 }
+                batchSizes.record(metrics.size());
+                return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+                        .handle((v, ignored) -> writeBatch(response, encoding, new ArrayList<>(metrics), results, unmatched));
             }
 
             default: {
-                return "Unknown method";
+                return completedFuture("Unknown method");
             }
         }
     }
 
-    public List<String> agregateResponses(List<StorageResponse> responses) {
-        float step = (float) responses.size() / (float) config.maxResultAmount;
-        if (step <= 1) {
-            return responses.stream().map(this::getJsonString).collect(Collectors.toList());
-        }
-        List<String> agregateResponses = new ArrayList<>();
-        for (float i = 0; i < responses.size(); i += step) {
-            StorageResponse resp = responses.get((int) i);
-            agregateResponses.add(getJsonString(resp));
+    /**
+     * Buffered query of one metric: keys after since from indexing, values from storage, downsampled to maxResultAmount.
+     * Identical queries running at the same time share indexing request, storage requests and result,
+     * indexing service is chosen only by the query that sends the request.
+     */
+    private CompletableFuture<MetricsPage<StorageResponse>> queryMetric(long id, String timestamp, boolean isStream,
+                                                                        DownsampleMode downsample, long since) {
+        String pathUrl = indexPath(id, timestamp, since);
+        int fetchLimit = fetchLimit(downsample);
+        String queryKey = id + "/" + timestamp + "/" + downsample + "/" + since;
+        return queries.run(queryKey, () -> {
+            URL indexing = manager.next();
+            if (indexing == null) {
+                return FutureUtils.failed(new RuntimeException("No indexing servers are specified"));
+            }
+            return (isStream
+                    ? requestStreaming(indexing, pathUrl, fetchLimit, since, f -> { })
+                    : requestWhole(indexing, pathUrl, fetchLimit, since, f -> { }))
+                    .thenCompose(keys -> waitForStorage(keys.metrics).thenApply(responses ->
+                            new MetricsPage<>(agregateResponses(responses, downsample.downsampler), keys.cursor)));
+        });
+    }
+
+    /** Points of one metric added after since, thinned out to maxResultAmount, for {@link LiveTail} **/
+    CompletableFuture<MetricsPage<StorageResponse>> poll(long id, String timestamp, boolean isStream, long since) {
+        return queryMetric(id, timestamp, isStream, DownsampleMode.STRIDE, since);
+    }
+
+    /** Indexing services that do not support since return all keys, the controller skips old ones itself **/
+    private static String indexPath(long id, String timestamp, long since) {
+        return "getIndexData/" + id + (timestamp == null ? "" : "/" + timestamp) + (since > 0 ? "?since=" + since : "");
+    }
+
+    /** Stride can be applied to keys, other modes need values of (almost) all of them **/
+    private int fetchLimit(DownsampleMode downsample) {
+        return downsample.needsWholeSeries
+                ? Math.max(config.maxResultAmount, config.downsampleInputLimit)
+                : config.maxResultAmount;
+    }
+
+    /**
+     * Writes {"results": [{"metricId": ..., "host": ..., "port": ..., "metricType": ..., "metrics": [...]}, ...],
+     * "unmatched": [selectors]}, metric that failed or missed deadline has "error" instead of "metrics"
+     */
+    private String writeBatch(Response response, ResponseEncoding encoding, List<MetricInfo> metrics,
+                              List<CompletableFuture<List<StorageResponse>>> results, List<MetricSelector> unmatched) {
+        HttpServletResponse raw = response.raw();
+        raw.setStatus(HttpStatus.OK_200);
+        raw.setContentType(encoding.contentType);
+        try (JsonGenerator generator = encoding.generator(ResponseBody.output(raw))) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("results");
+            for (int i = 0; i < metrics.size(); i++) {
+                MetricInfo info = metrics.get(i);
+                generator.writeStartObject();
+                generator.writeStringField("metricId", Long.toString(info.getId()));
+                generator.writeStringField("host", info.getHost());
+                generator.writeStringField("port", info.getPort());
+                generator.writeStringField("metricType", info.getType());
+                try {
+                    List<StorageResponse> values = results.get(i).join();
+                    generator.writeArrayFieldStart("metrics");
+                    for (StorageResponse value : values) {
+                        MetricsStreamWriter.writeMetric(generator, value, encoding.isBinary());
+                    }
+                    generator.writeEndArray();
+                } catch (CompletionException | CancellationException e) {
+                    String error = FutureUtils.unwrap(e).getMessage();
+                    logger.error("Batch query of metric " + info + " failed: " + error);
+                    generator.writeStringField("error", error);
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeArrayFieldStart("unmatched");
+            for (MetricSelector selector : unmatched) {
+                generator.writeStartObject();
+                generator.writeStringField("host", selector.getHost());
+                generator.writeStringField("port", selector.getPort());
+                generator.writeStringField("type", selector.getType());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            logger.warn("Client went away while writing batch query result: " + e.getMessage());
         }
-        return agregateResponses;
+        return "";
+    }
+
+    /**
+     * Receives all keys from indexing service at once, picks at most fetchLimit of them evenly
+     * and requests only those from storage, at most max-in-flight-per-query at once.
+     * Keys that have no value in storage are skipped, as well as keys before since (see {@link MetricsPage}).
+     * @param onRequested gets every storage future as soon as it is created
+     */
+    private CompletableFuture<MetricsPage<CompletableFuture<StorageResponse>>> requestWhole(URL indexing, String pathUrl,
+                                                                                         int fetchLimit, long since,
+                                                                                         Consumer<CompletableFuture<StorageResponse>> onRequested) {
+        logger.debug("Trying to make " + pathUrl + " request without streaming");
+        return makeRequest(indexing, pathUrl, JsonUtils::indexingSyncResponse).handle((indexingResponse, t) -> {
+            if (t != null) {
+                throw new RuntimeException("Error: " + FutureUtils.unwrap(t).getMessage());
+            }
+            return indexingResponse;
+        }).thenApply(indexingResponse -> {
+            // for each key in response from indexing service make request to storage,
+            // futures of keys that have no value are completed with null
+            List<IndexingResponsePart> received = indexingResponse.getKeys() == null
+                    ? Collections.emptyList() : indexingResponse.getKeys();
+            Long first = MetricsPage.firstPosition(indexingResponse.getOffset());
+            int skip = MetricsPage.skipped(first, since, received.size());
+            List<IndexingResponsePart> keys = StrideDownsampler.selectEvenly(received.subList(skip, received.size()), fetchLimit);
+            logger.debug("Requesting " + keys.size() + " of " + (received.size() - skip) + " new keys from storage");
+            queryKeys.record(keys.size());
+            QueryFanOut fanOut = storageClient.newQuery();
+            List<CompletableFuture<StorageResponse>> futures = new ArrayList<>();
+            for (IndexingResponsePart chunk : keys) {
+                logger.debug("Chunk of indexing response: " + chunk.toString());
+                CompletableFuture<StorageResponse> future = fanOut.get(chunk.getKey()).handle((storageResponse, e) -> {
+                    if (e == null) {
+                        logger.debug("Storage response: " + storageResponse.toString());
+                        return storageResponse;
+                    } else if (FutureUtils.unwrap(e) instanceof ValueNotFoundException) {
+                        logger.warn("No value found for key " + chunk.getKey());
+                        return null;
+                    }
+                    throw new RuntimeException("Error: " + FutureUtils.unwrap(e).getMessage());
+                });
+                onRequested.accept(future);
+                futures.add(future);
+            }
+            return new MetricsPage<>(futures, MetricsPage.cursor(first, since, received.size()));
+        });
+    }
+
+    /**
+     * Receives keys from indexing service as a stream and requests each of them from storage as soon as it arrives.
+     * Keys are thinned out to fetchLimit while the stream is read, see {@link StreamingKeySelector}.
+     * When max-in-flight-per-query keys are being requested, reading of the socket is paused until they catch up.
+     * @param onRequested gets every storage future as soon as it is created, futures of keys dropped
+     *                    by the selector later are cancelled
+     */
+    private CompletableFuture<MetricsPage<CompletableFuture<StorageResponse>>> requestStreaming(URL indexing, String pathUrl,
+                                                                                             int fetchLimit, long since,
+                                                                                             Consumer<CompletableFuture<StorageResponse>> onRequested) {
+        String url = baseUrl(indexing) + pathUrl;
+        // prepare handler for processing indexing service response
+        logger.debug("URL for requesting indexing service: " + url);
+        IndexingAsyncResponseHandler handler = new IndexingAsyncResponseHandler(storageClient.newQuery(), fetchLimit, since, onRequested);
+
+        // make request to indexing service, it is completed when we received
+        // all keys and sent all of them to storage service
+        CompletableFuture<List<CompletableFuture<StorageResponse>>> indexingRequest = manager.call(indexing, () -> manager.getClient()
+                .prepareGet(url)
+                .addHeader("stream", "true")
+                .setRequestTimeout((int) config.timeouts.indexingTimeout)
+                .execute(handler)
+                .toCompletableFuture());
+
+        return indexingRequest.handle((storageResponses, t) -> {
+            if (t != null) {
+                throw new RuntimeException(indexingErrorMessage(t));
+            }
+            logger.debug("Received " + storageResponses.size() + " messages from indexing, sent all to storage");
+            queryKeys.record(storageResponses.size());
+            return new MetricsPage<>(storageResponses, handler.getCursor());
+        });
     }
 
-    private String getJsonString(StorageResponse resp) {
-        return "{" +
-            "\"key\": \"" + resp.getKey() + "\", " +
-            "\"timestamp\": \"" + resp.getTs() + "\", " +
-            "\"value\": \"" + resp.getValue() + "\"" +
-        "}";
+    private CompletableFuture<List<StorageResponse>> waitForStorage(List<CompletableFuture<StorageResponse>> futures) {
+        return FutureUtils.withTimeout(FutureUtils.allAsList(futures), config.timeouts.storageTimeout, "storage timeout")
+                .handle((responses, t) -> {
+                    if (t == null) {
+                        return responses.stream().filter(Objects::nonNull).collect(Collectors.toList());
+                    }
+                    Throwable cause = FutureUtils.unwrap(t);
+                    if (cause instanceof TimeoutException) {
+                        throw new RuntimeException("Error while waiting for storage service responses: " + cause.getMessage());
+                    }
+                    throw new RuntimeException("Unexpected error while waiting for storage service responses: " + cause.getMessage());
+                });
     }
 
     /**
-     * @throws RuntimeException if anything goes wrong
+     * Requests keys from indexing and writes every storage response to the client as soon as it arrives,
+     * while indexing response is still being read. Keys that have no value in storage are skipped, as well as
+     * keys dropped by streaming selector before their value arrived; values that arrived earlier are written
+     * already, so without count header the stream may have more than fetchLimit points.
+     * Any other error ends the stream with error message.
+     * @param withCursor whether the stream ends with cursor for the next query
+     * @return future completed when indexing response is read and all storage requests are done
      */
-    private String makeStorageKeyRequest(IndexingResponsePart chunk) {
-        URL storage = storageManager.next();
-        String storageUrl = "http://" + storage.getHost() + ":" + storage.getPort() + "/key/" + chunk.getKey();
-        try {
-            return new DefaultAsyncHttpClient().prepareGet(storageUrl).execute(new AsyncCompletionHandler<String>() {
-                @Override
-                public String onCompleted(org.asynchttpclient.Response response) throws Exception {
-                    logger.trace("Received response from storage: status=" + response.getStatusCode());
-                    return response.getResponseBody(Charset.forName("UTF-8"));
+    private CompletableFuture<Void> streamStorage(URL indexing, String pathUrl, int fetchLimit, long since, boolean isStream,
+                                                  MetricsStreamWriter writer, boolean withCursor) {
+        List<CompletableFuture<StorageResponse>> written = Collections.synchronizedList(new ArrayList<>());
+        Consumer<CompletableFuture<StorageResponse>> onRequested = f -> written.add(f.handle((storageResponse, t) -> {
+            if (t == null) {
+                if (storageResponse != null) {
+                    writer.write(storageResponse);
                 }
-            }).get(config.timeouts.storageTimeout, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            throw new RuntimeException(e);
+                return storageResponse;
+            }
+            Throwable cause = FutureUtils.unwrap(t);
+            if (cause instanceof ValueNotFoundException) {
+                logger.warn(cause.getMessage());
+                return null;
+            } else if (cause instanceof CancellationException) {
+                return null;
+            }
+            throw new RuntimeException(cause.getMessage());
+        }));
+        CompletableFuture<MetricsPage<CompletableFuture<StorageResponse>>> storageRequests = isStream
+                ? requestStreaming(indexing, pathUrl, fetchLimit, since, onRequested)
+                : requestWhole(indexing, pathUrl, fetchLimit, since, onRequested);
+        return storageRequests.thenCompose(page -> {
+            // all storage futures are created before indexing response is completed
+            List<CompletableFuture<StorageResponse>> all;
+            synchronized (written) {
+                all = new ArrayList<>(written);
+            }
+            return waitForStorage(all).thenApply(responses -> page.cursor);
+        }).handle((cursor, t) -> t == null
+                ? writer.finish(withCursor && cursor != null ? String.valueOf(cursor) : null)
+                : writer.fail(FutureUtils.unwrap(t).getMessage())
+        ).thenCompose(ended -> ended);
+    }
+
+    private String indexingErrorMessage(Throwable t) {
+        Throwable cause = FutureUtils.unwrap(t);
+        if (cause instanceof TimeoutException) {
+            return "Timeout while requesting indexing service: " + cause.getMessage();
         }
+        return "Unexpected error while requesting indexing service: " + cause.getMessage();
+    }
+
+    public List<StorageResponse> agregateResponses(List<StorageResponse> responses, Downsampler downsampler) {
+        return downsampler.downsample(responses, config.maxResultAmount);
     }
 }
@@ -6,6 +6,8 @@ public class IndexingSyncResponse {
     private String status;
     private String timestamp;
     private String count;
+    // position of the first key in the index, see MetricsPage for how missing offset is treated
+    private String offset;
     private List<IndexingResponsePart> keys;
 
     public IndexingSyncResponse(String status, String timestamp, String count, List<IndexingResponsePart> keys) {
@@ -42,6 +44,14 @@ public class IndexingSyncResponse {
         this.count = count;
     }
 
+    public String getOffset() {
+        return offset;
+    }
+
+    public void setOffset(String offset) {
+        this.offset = offset;
+    }
+
     public List<IndexingResponsePart> getKeys() {
         return keys;
     }
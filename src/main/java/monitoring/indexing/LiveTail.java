@@ -0,0 +1,257 @@
+package monitoring.indexing;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import monitoring.MetricsInfoTable;
+import monitoring.config.Configuration;
+import monitoring.config.TailSettings;
+import monitoring.metrics.MetricsRegistry;
+import monitoring.storage.StorageResponse;
+import monitoring.utils.FutureUtils;
+import monitoring.utils.JsonUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.http.HttpStatus;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static monitoring.utils.ResponseUtils.getError;
+
+/**
+ * GET /tailMetrics?host=...&port=...&type=...: pushes new points of a monitored metric as server-sent events.
+ * Every followed metric is polled by one {@link MetricTail} with since cursor of /getMetrics, so indexing
+ * and storage are asked only for new keys, once per poll however many clients follow the metric. Every point
+ * is serialized once and the same bytes are queued to all subscribers. New subscriber gets the last
+ * buffer-size points first. Polling stops when the last subscriber of the metric goes away.
+ */
+public class LiveTail implements Route {
+    private static final Logger logger = LogManager.getLogger(LiveTail.class);
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "metric-tail-poll");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TailSettings settings;
+    private final MetricsInfoTable table;
+    private final IndexingHandler indexing;
+
+    private final ConcurrentHashMap<String, MetricTail> tails = new ConcurrentHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger(0);
+
+    public LiveTail(Configuration config, MetricsInfoTable table, IndexingHandler indexing) {
+        this.settings = config.tail;
+        this.table = table;
+        this.indexing = indexing;
+        MetricsRegistry.get().gauge("controller_tail_subscribers", "Clients following live tail of a metric", subscribers::get);
+        MetricsRegistry.get().gauge("controller_tail_metrics", "Metrics polled for live tail", tails::size);
+    }
+
+    @Override
+    public Object handle(Request request, Response response) throws IOException {
+        String host = request.queryParams("host");
+        String port = request.queryParams("port");
+        String type = request.queryParams("type");
+        String timestamp = request.queryParams("timestamp");
+        if (host == null || port == null || type == null) {
+            return getError("Some of mandatory params (host, port, type) are missing for /tailMetrics",
+                    HttpStatus.BAD_REQUEST_400, response, logger);
+        }
+        Long id = table.getMetricInfoId(host, port, type);
+        if (id == null) {
+            return getError("No information about monitored metric for specified params: host=" + host + ", port=" + port + ", type=" + type + " for /tailMetrics",
+                    HttpStatus.BAD_REQUEST_400, response, logger);
+        }
+        if (subscribers.incrementAndGet() > settings.maxSubscribers) {
+            subscribers.decrementAndGet();
+            return getError("Too many live tail subscribers, limit is " + settings.maxSubscribers,
+                    HttpStatus.SERVICE_UNAVAILABLE_503, response, logger);
+        }
+        boolean isStream = "true".equalsIgnoreCase(request.queryParams("stream"));
+
+        // response is committed before route returns, so Spark leaves the stream to us
+        HttpServletResponse raw = response.raw();
+        TailSubscriber subscriber;
+        try {
+            raw.setStatus(HttpStatus.OK_200);
+            raw.setContentType("text/event-stream; charset=utf-8");
+            raw.setHeader("Cache-Control", "no-cache");
+            AsyncContext context = request.raw().startAsync();
+            context.setTimeout(0);
+            raw.flushBuffer();
+            subscriber = new TailSubscriber(context, raw.getOutputStream(), settings.bufferSize);
+            subscriber.start();
+        } catch (IOException | RuntimeException e) {
+            subscribers.decrementAndGet();
+            throw e;
+        }
+        String tailKey = id + "/" + timestamp + "/" + isStream;
+        tails.compute(tailKey, (key, tail) -> {
+            if (tail == null) {
+                tail = new MetricTail(key, id, timestamp, isStream);
+                tail.schedule(0);
+            }
+            tail.subscribe(subscriber);
+            return tail;
+        });
+        logger.debug("New live tail subscriber of " + tailKey);
+        return "";
+    }
+
+    /** Ends all live tails, clients see "end" event **/
+    public void close() {
+        for (MetricTail tail : tails.values()) {
+            tail.end("Server is shutting down");
+        }
+        tails.clear();
+    }
+
+    /** One followed metric: polls it and fans new points out to its subscribers **/
+    private class MetricTail {
+        private final String key;
+        private final long id;
+        private final String timestamp;
+        private final boolean isStream;
+
+        // guarded by this
+        private final List<TailSubscriber> subscribed = new ArrayList<>();
+        private final ArrayDeque<byte[]> recent = new ArrayDeque<>();
+        private boolean stopped = false;
+
+        // used only by the running poll
+        private long cursor = 0;
+
+        MetricTail(String key, long id, String timestamp, boolean isStream) {
+            this.key = key;
+            this.id = id;
+            this.timestamp = timestamp;
+            this.isStream = isStream;
+        }
+
+        synchronized void subscribe(TailSubscriber subscriber) {
+            for (byte[] event : recent) {
+                subscriber.offer(event);
+            }
+            subscribed.add(subscriber);
+        }
+
+        void schedule(long delay) {
+            timer.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void poll() {
+            if (!prune()) {
+                return;
+            }
+            if (table.getMetricInfo(id) == null) {
+                tails.remove(key, this);
+                end("Metric is not monitored anymore");
+                return;
+            }
+            indexing.poll(id, timestamp, isStream, cursor).whenComplete((page, t) -> {
+                if (t == null && page.cursor == null) {
+                    // without positions of keys every poll would publish the whole window again
+                    tails.remove(key, this);
+                    end("Indexing service does not send offset, new points can not be told from old ones");
+                    return;
+                }
+                try {
+                    if (t == null) {
+                        cursor = page.cursor;
+                        publish(page.metrics);
+                    } else {
+                        logger.warn("Error polling live tail of " + key + ": " + FutureUtils.unwrap(t).getMessage());
+                        publish(Collections.emptyList());
+                    }
+                } finally {
+                    schedule(settings.pollInterval);
+                }
+            });
+        }
+
+        /**
+         * Forgets subscribers that went away, the last one stops the tail
+         * @return false if the tail is stopped
+         */
+        private boolean prune() {
+            tails.computeIfPresent(key, (k, tail) -> {
+                if (tail != this) {
+                    return tail;
+                }
+                synchronized (this) {
+                    int before = subscribed.size();
+                    subscribed.removeIf(TailSubscriber::isClosed);
+                    subscribers.addAndGet(subscribed.size() - before);
+                    if (subscribed.isEmpty()) {
+                        stopped = true;
+                        return null;
+                    }
+                    return this;
+                }
+            });
+            synchronized (this) {
+                return !stopped;
+            }
+        }
+
+        private synchronized void publish(List<StorageResponse> metrics) {
+            if (stopped) {
+                return;
+            }
+            if (metrics.isEmpty()) {
+                subscribed.forEach(TailSubscriber::ping);
+                return;
+            }
+            for (StorageResponse metric : metrics) {
+                byte[] event;
+                try {
+                    event = TailSubscriber.SseEvents.event("metric", serialize(metric));
+                } catch (IOException e) {
+                    logger.error("Error serializing metric " + metric.getKey() + " for live tail", e);
+                    continue;
+                }
+                recent.add(event);
+                if (recent.size() > settings.bufferSize) {
+                    recent.poll();
+                }
+                for (TailSubscriber subscriber : subscribed) {
+                    subscriber.offer(event);
+                }
+            }
+        }
+
+        synchronized void end(String reason) {
+            stopped = true;
+            byte[] event = TailSubscriber.SseEvents.event("end",
+                    ("{\"reason\":" + JsonUtils.serialize(reason) + "}").getBytes(StandardCharsets.UTF_8));
+            for (TailSubscriber subscriber : subscribed) {
+                subscriber.end(event);
+            }
+            subscribers.addAndGet(-subscribed.size());
+            subscribed.clear();
+        }
+    }
+
+    private static byte[] serialize(StorageResponse metric) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try (JsonGenerator generator = JsonUtils.generator(out)) {
+            MetricsStreamWriter.writeMetric(generator, metric);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,53 @@
+package monitoring.indexing;
+
+/** Selects monitored metrics of a batch query, missing or "*" host, port or type matches any **/
+public class MetricSelector {
+    public static final String ANY = "*";
+
+    private String host;
+    private String port;
+    private String type;
+
+    public MetricSelector(String host, String port, String type) {
+        this.host = host;
+        this.port = port;
+        this.type = type;
+    }
+
+    // needed for fasterxml
+    public MetricSelector() {}
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    public void setPort(String port) {
+        this.port = port;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    /** @return value of field or null if it matches any **/
+    static String exact(String value) {
+        return value == null || ANY.equals(value) ? null : value;
+    }
+
+    @Override
+    public String toString() {
+        return "host=" + host + ", port=" + port + ", type=" + type;
+    }
+}
@@ -0,0 +1,54 @@
+package monitoring.indexing;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+
+/**
+ * Metrics received for one query and position in the index after the last key of the query.
+ * Position is returned to the client as cursor and sent back as since parameter of the next query.
+ *
+ * Contract with indexing service: since is passed to it as query parameter. A service that sends
+ * offset (field of the whole response, header of the streamed one) tells the position of its first key,
+ * and the controller skips keys before since itself, so a service may ignore since as long as it sends offset 0.
+ * Without offset positions of keys are unknown: nothing is skipped and there is no cursor.
+ */
+class MetricsPage<T> {
+    private static final Logger logger = LogManager.getLogger(MetricsPage.class);
+
+    final List<T> metrics;
+    // null if indexing service did not send offset
+    final Long cursor;
+
+    MetricsPage(List<T> metrics, Long cursor) {
+        this.metrics = metrics;
+        this.cursor = cursor;
+    }
+
+    /**
+     * @param offset offset sent by indexing service, null if there was none
+     * @return position in the index of the first key received from indexing service, null if it is unknown
+     */
+    static Long firstPosition(String offset) {
+        if (offset == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid offset from indexing service: " + offset + ", response has no cursor");
+            return null;
+        }
+    }
+
+    /** @return number of received keys that are before since, none if their positions are unknown **/
+    static int skipped(Long first, long since, int received) {
+        return first == null ? 0 : (int) Math.min(received, Math.max(0, since - first));
+    }
+
+    /** @return position after the last received key, null if positions are unknown **/
+    static Long cursor(Long first, long since, long received) {
+        return first == null ? null : Math.max(since, first + received);
+    }
+}
@@ -0,0 +1,330 @@
+package monitoring.indexing;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import monitoring.storage.StorageResponse;
+import monitoring.utils.JsonUtils;
+import monitoring.utils.ResponseBody;
+import monitoring.utils.ResponseEncoding;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.http.HttpStatus;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes storage responses to the client one by one as they arrive. Supports two formats: the same JSON document
+ * that is returned in buffered mode ({"metrics": [...]}) sent with chunked transfer encoding, and NDJSON with one
+ * metric per line. Metrics are written with Jackson generator straight to the servlet stream, storage values
+ * (which are JSON themselves) are copied as is. If reorder capacity is positive, up to that many metrics are held
+ * back and released in timestamp order, so output is sorted as long as no metric arrives later than capacity others.
+ * CHUNKED document can be written in binary {@link ResponseEncoding}, NDJSON is always JSON text.
+ * Can be used from several threads. Writes are queued and done by a dedicated thread, so a slow client never
+ * blocks HTTP client threads that complete storage requests; metrics queued meanwhile are written together
+ * and flushed at most once per flush interval.
+ */
+public class MetricsStreamWriter {
+    private static final Logger logger = LogManager.getLogger(MetricsStreamWriter.class);
+
+    public enum Format {
+        CHUNKED("application/json; charset=utf-8"),
+        NDJSON("application/x-ndjson; charset=utf-8");
+
+        final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+    }
+
+    // every flush of compressed response is a sync flush, which costs compression ratio
+    static final long FLUSH_INTERVAL = 50;
+
+    private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "metrics-stream-write");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "metrics-stream-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Comparator<StorageResponse> BY_TIMESTAMP = Comparator.comparingLong(r -> parseTs(r.getTs()));
+
+    private final JsonGenerator out;
+    private final Format format;
+    private final boolean nativeValues;
+    private final int reorderCapacity;
+    private final PriorityQueue<StorageResponse> reorder;
+
+    // writes waiting for the writer thread, only one thread runs them at a time (see drainQueued)
+    private final ConcurrentLinkedQueue<Runnable> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger drains = new AtomicInteger(0);
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    // used only by the thread running queued writes
+    private boolean closed = false;
+    private boolean unflushed = false;
+    private boolean flushScheduled = false;
+    private long flushedAt = 0;
+
+    private MetricsStreamWriter(JsonGenerator out, Format format, boolean nativeValues, int reorderCapacity) {
+        this.out = out;
+        this.format = format;
+        this.nativeValues = nativeValues;
+        this.reorderCapacity = reorderCapacity;
+        this.reorder = reorderCapacity > 0 ? new PriorityQueue<>(reorderCapacity + 1, BY_TIMESTAMP) : null;
+    }
+
+    /** Commits response with status 200, so it must be called only after request is validated **/
+    public static MetricsStreamWriter start(HttpServletResponse raw, Format format, int reorderCapacity) throws IOException {
+        return start(raw, format, ResponseEncoding.JSON, reorderCapacity);
+    }
+
+    public static MetricsStreamWriter start(HttpServletResponse raw, Format format, ResponseEncoding encoding,
+                                            int reorderCapacity) throws IOException {
+        boolean binary = format == Format.CHUNKED && encoding.isBinary();
+        raw.setStatus(HttpStatus.OK_200);
+        raw.setContentType(binary ? encoding.contentType : format.contentType);
+        JsonGenerator generator;
+        if (binary) {
+            generator = encoding.generator(ResponseBody.output(raw));
+        } else {
+            generator = JsonUtils.generator(ResponseBody.output(raw));
+            // NDJSON lines are ended explicitly, CHUNKED is one root value
+            generator.setRootValueSeparator(null);
+        }
+        MetricsStreamWriter writer = new MetricsStreamWriter(generator, format, binary, reorderCapacity);
+        if (format == Format.CHUNKED) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("metrics");
+        }
+        generator.flush();
+        return writer;
+    }
+
+    /** Writes {"key": ..., "timestamp": ..., "value": ...}, value is embedded as raw JSON **/
+    public static void writeMetric(JsonGenerator generator, StorageResponse response) throws IOException {
+        writeMetric(generator, response, false);
+    }
+
+    /** @param nativeValues write timestamp as number and value as parsed structure, for binary encodings **/
+    public static void writeMetric(JsonGenerator generator, StorageResponse response, boolean nativeValues) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("key", response.getKey());
+        generator.writeFieldName("timestamp");
+        if (nativeValues) {
+            JsonUtils.writeTimestamp(generator, response.getTs());
+        } else {
+            generator.writeString(response.getTs());
+        }
+        generator.writeFieldName("value");
+        if (nativeValues) {
+            JsonUtils.writeNativeValue(generator, response.getValue());
+        } else {
+            JsonUtils.writeRawOrString(generator, response.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    public void write(StorageResponse response) {
+        submit(() -> add(response));
+    }
+
+    /** Writes already complete result at once, metrics are not flushed one by one **/
+    public void writeAll(List<StorageResponse> responses) {
+        submit(() -> {
+            for (StorageResponse response : responses) {
+                add(response);
+            }
+        });
+    }
+
+    /** Writes held back metrics and the end of the document **/
+    public CompletableFuture<Void> finish() {
+        return finish(null);
+    }
+
+    /**
+     * Writes held back metrics and the end of the document with cursor for the next query,
+     * as "cursor" field of the document or as the last NDJSON line
+     * @return future completed when everything is written and the stream is closed
+     */
+    public CompletableFuture<Void> finish(String cursor) {
+        submit(() -> {
+            if (closed) {
+                done.complete(null);
+                return;
+            }
+            drain();
+            write(() -> {
+                if (format == Format.CHUNKED) {
+                    out.writeEndArray();
+                    if (cursor != null) {
+                        out.writeStringField("cursor", cursor);
+                    }
+                    out.writeEndObject();
+                } else if (cursor != null) {
+                    out.writeStartObject();
+                    out.writeStringField("cursor", cursor);
+                    out.writeEndObject();
+                    out.writeRaw('\n');
+                }
+            });
+            close();
+        });
+        return done;
+    }
+
+    /**
+     * Ends the document with an error, status of the response can not be changed at this point
+     * @return future completed when everything is written and the stream is closed
+     */
+    public CompletableFuture<Void> fail(String message) {
+        logger.error(message);
+        submit(() -> {
+            if (closed) {
+                done.complete(null);
+                return;
+            }
+            drain();
+            write(() -> {
+                if (format == Format.CHUNKED) {
+                    out.writeEndArray();
+                    out.writeStringField("error", message);
+                    out.writeEndObject();
+                } else {
+                    out.writeStartObject();
+                    out.writeStringField("error", message);
+                    out.writeEndObject();
+                    out.writeRaw('\n');
+                }
+            });
+            close();
+        });
+        return done;
+    }
+
+    private void submit(Runnable write) {
+        queued.add(write);
+        if (drains.getAndIncrement() == 0) {
+            writers.execute(this::drainQueued);
+        }
+    }
+
+    /** Runs queued writes until none is left, then flushes them together unless the last flush was too recent **/
+    private void drainQueued() {
+        int missed = 1;
+        do {
+            for (Runnable write = queued.poll(); write != null; write = queued.poll()) {
+                write.run();
+            }
+            if (unflushed && !closed && !flushScheduled) {
+                long wait = flushedAt + FLUSH_INTERVAL - System.currentTimeMillis();
+                if (wait <= 0) {
+                    flush();
+                } else {
+                    flushScheduled = true;
+                    timer.schedule(() -> submit(() -> {
+                        flushScheduled = false;
+                        flush();
+                    }), wait, TimeUnit.MILLISECONDS);
+                }
+            }
+            missed = drains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void add(StorageResponse response) {
+        if (closed) {
+            return;
+        }
+        if (reorder == null) {
+            emit(response);
+        } else {
+            reorder.add(response);
+            if (reorder.size() > reorderCapacity) {
+                emit(reorder.poll());
+            }
+        }
+    }
+
+    private void drain() {
+        if (reorder != null) {
+            while (!reorder.isEmpty()) {
+                emit(reorder.poll());
+            }
+        }
+    }
+
+    private void emit(StorageResponse response) {
+        write(() -> {
+            writeMetric(out, response, nativeValues);
+            if (format == Format.NDJSON) {
+                out.writeRaw('\n');
+            }
+        });
+    }
+
+    private void write(JsonWrite write) {
+        if (closed) {
+            return;
+        }
+        try {
+            write.run();
+            unflushed = true;
+        } catch (IOException e) {
+            logger.warn("Client went away while streaming metrics: " + e.getMessage());
+            closed = true;
+        }
+    }
+
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            logger.warn("Client went away while streaming metrics: " + e.getMessage());
+            closed = true;
+        }
+        unflushed = false;
+        flushedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.warn("Error closing metrics stream: " + e.getMessage());
+        }
+        closed = true;
+        done.complete(null);
+    }
+
+    private interface JsonWrite {
+        void run() throws IOException;
+    }
+
+    private static long parseTs(String ts) {
+        try {
+            return Long.parseLong(ts);
+        } catch (NumberFormatException | NullPointerException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package monitoring.indexing;
+
+import monitoring.downsampling.StrideDownsampler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Picks at most max records evenly spread over indexing stream before their values are requested from storage.
+ * If total count of records is known, picks the same records as {@link StrideDownsampler#selectEvenly}.
+ * Otherwise every stride-th record is picked, and each time 2 * max records are picked the stride is doubled
+ * and every second picked record is dropped (its storage request is cancelled if it is still queued), so at most
+ * 2 * max keys are kept at once and about max * log2(n / max) are requested in total instead of n.
+ */
+class StreamingKeySelector<T> {
+    private final int max;
+    private final List<CompletableFuture<T>> selected = new ArrayList<>();
+
+    private long index = 0;
+    private long stride = 1;
+
+    // used when total count is known
+    private long expectedCount = 0;
+    private int picked = 0;
+    private long nextPick = 0;
+
+    StreamingKeySelector(int max) {
+        this.max = max;
+    }
+
+    /** Switches to exact selection, must be called before the first record **/
+    void setExpectedCount(long count) {
+        if (index == 0 && count > max) {
+            expectedCount = count;
+        }
+    }
+
+    /** @return true if the next record should be fetched, in that case it must be passed to {@link #add} **/
+    boolean next() {
+        long current = index++;
+        if (expectedCount > 0) {
+            // records over announced count are ignored, picks are always below it
+            if (picked < max && current == nextPick) {
+                picked++;
+                nextPick = StrideDownsampler.evenIndex(picked, expectedCount, max);
+                return true;
+            }
+            return false;
+        }
+        return current % stride == 0;
+    }
+
+    void add(CompletableFuture<T> future) {
+        selected.add(future);
+        if (expectedCount == 0 && selected.size() >= 2 * max) {
+            stride *= 2;
+            List<CompletableFuture<T>> kept = new ArrayList<>(max + 1);
+            for (int i = 0; i < selected.size(); i++) {
+                if (i % 2 == 0) {
+                    kept.add(selected.get(i));
+                } else {
+                    selected.get(i).cancel(false);
+                }
+            }
+            selected.clear();
+            selected.addAll(kept);
+        }
+    }
+
+    /** @return number of records seen, picked or not **/
+    long getSeen() {
+        return index;
+    }
+
+    /** @return at most max picked records, storage requests of the rest are cancelled **/
+    List<CompletableFuture<T>> finish() {
+        List<CompletableFuture<T>> result = StrideDownsampler.selectEvenly(selected, max);
+        if (result.size() != selected.size()) {
+            List<CompletableFuture<T>> dropped = new ArrayList<>(selected);
+            dropped.removeAll(result);
+            for (CompletableFuture<T> f : dropped) {
+                f.cancel(false);
+            }
+        }
+        return result;
+    }
+}
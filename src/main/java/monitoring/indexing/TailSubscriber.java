@@ -0,0 +1,187 @@
+package monitoring.indexing;
+
+import monitoring.metrics.Counter;
+import monitoring.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * One client of {@link LiveTail}: events are queued and written with non-blocking servlet output, so neither
+ * the thread that publishes points nor Jetty threads wait for a slow client. When the client falls behind
+ * by more than capacity events, the oldest are dropped and replaced with one "dropped" event with their count.
+ * Closed subscribers are noticed and removed by their tail on the next poll.
+ */
+class TailSubscriber implements WriteListener, AsyncListener {
+    private static final Logger logger = LogManager.getLogger(TailSubscriber.class);
+    private static final Counter droppedEvents = MetricsRegistry.get().counter("controller_tail_dropped_events_total",
+            "Events dropped because a live tail client did not read them in time");
+
+    private final AsyncContext context;
+    private final ServletOutputStream out;
+    private final int capacity;
+    private final ArrayDeque<byte[]> queue;
+
+    private long dropped = 0;
+    // output accepted the last write, so the next one may go right away, otherwise onWritePossible follows
+    private boolean ready = false;
+    private boolean unflushed = false;
+    private boolean ending = false;
+    private volatile boolean closed = false;
+
+    TailSubscriber(AsyncContext context, ServletOutputStream out, int capacity) {
+        this.context = context;
+        this.out = out;
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    /** Switches output to non-blocking mode, container calls {@link #onWritePossible} when it can be written **/
+    void start() {
+        context.addListener(this);
+        out.setWriteListener(this);
+    }
+
+    synchronized void offer(byte[] event) {
+        if (closed || ending) {
+            return;
+        }
+        if (queue.size() >= capacity) {
+            queue.poll();
+            dropped++;
+            droppedEvents.increment();
+        }
+        queue.add(event);
+        if (ready) {
+            drain();
+        }
+    }
+
+    /** Keeps idle connection alive and finds clients that went away, sent only if nothing is waiting **/
+    synchronized void ping() {
+        if (queue.isEmpty() && dropped == 0) {
+            offer(SseEvents.PING);
+        }
+    }
+
+    /** Sends the last event and completes the response once everything before it is written **/
+    synchronized void end(byte[] event) {
+        if (closed || ending) {
+            return;
+        }
+        queue.add(event);
+        ending = true;
+        if (ready) {
+            drain();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void onWritePossible() {
+        ready = true;
+        drain();
+    }
+
+    private void drain() {
+        try {
+            while (out.isReady()) {
+                byte[] next;
+                if (dropped > 0) {
+                    next = SseEvents.dropped(dropped);
+                    dropped = 0;
+                } else {
+                    next = queue.poll();
+                }
+                if (next == null) {
+                    if (unflushed) {
+                        unflushed = false;
+                        out.flush();
+                        continue;
+                    }
+                    if (ending) {
+                        close();
+                    }
+                    return;
+                }
+                out.write(next);
+                unflushed = true;
+            }
+            ready = false;
+        } catch (IOException e) {
+            logger.debug("Live tail client went away: " + e.getMessage());
+            close();
+        }
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        try {
+            context.complete();
+        } catch (IllegalStateException e) {
+            // already completed by container
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.debug("Error writing live tail: " + t.getMessage());
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        closed = true;
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) { }
+
+    /** Server-sent events of live tail, data is one line of JSON **/
+    static class SseEvents {
+        static final byte[] PING = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+        static byte[] event(String name, byte[] json) {
+            byte[] head = ("event: " + name + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+            byte[] event = new byte[head.length + json.length + 2];
+            System.arraycopy(head, 0, event, 0, head.length);
+            // storage values are embedded as is and may be pretty-printed, JSON stays valid without line breaks
+            for (int i = 0; i < json.length; i++) {
+                byte b = json[i];
+                event[head.length + i] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+            }
+            event[event.length - 2] = '\n';
+            event[event.length - 1] = '\n';
+            return event;
+        }
+
+        static byte[] dropped(long count) {
+            return event("dropped", ("{\"dropped\":" + count + "}").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -39,7 +39,9 @@ public class IndexingStub {
                 logger.error("Stream header not equals true: " + streamHeader);
             }
 
+            // since is not supported, offset 0 tells the controller to skip old keys itself
             if (isStream) {
+                res.header("offset", "0");
                 IndexingResponsePart part1 = new IndexingResponsePart("key1");
                 IndexingResponsePart part2 = new IndexingResponsePart("key2");
                 IndexingResponsePart part3 = new IndexingResponsePart("key3");
@@ -61,7 +63,7 @@ public class IndexingStub {
                 return null;
             } else {
                 res.status(HttpStatus.OK_200);
-                return "{\"status\": \"ok\", \"timestamp\": \"12345\"," +
+                return "{\"status\": \"ok\", \"timestamp\": \"12345\", \"offset\": \"0\"," +
                         "\"count\": \"3\", \"keys\": [{\"key\":\"key1\"}, {\"key\":\"key2\"}, {\"key\":\"key3\"}]}";
             }
         });
@@ -0,0 +1,126 @@
+package monitoring.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram in the manner of HdrHistogram: every power of two is split into SUB_BUCKETS
+ * equal buckets, so relative error is below 1 / SUB_BUCKETS for any value. Bucket bounds are inclusive
+ * upper ones, as "le" bounds of Prometheus, so the exported ones are exact: every power of two in the export
+ * range and exportedSubBuckets equal steps between them. Recording is a couple of atomic increments
+ * and never allocates.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 2;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    /** how many recorded units make one exported unit, e.g. 1e6 for microseconds exported as seconds **/
+    final double unit;
+    /** upper bounds of exported buckets in recorded units, ascending **/
+    final long[] exportedBounds;
+    private final int[] exportedBuckets;
+
+    /**
+     * @param minExportExponent exported bounds start at 2^minExportExponent units
+     * @param maxExportExponent and end at 2^maxExportExponent units, at most 2^MAX_EXPONENT
+     * @param exportedSubBuckets how many bounds are exported per power of two: 1 exports powers of two only,
+     *                           SUB_BUCKETS exports all of them
+     */
+    Histogram(double unit, int minExportExponent, int maxExportExponent, int exportedSubBuckets) {
+        if (maxExportExponent > MAX_EXPONENT || minExportExponent < 0 || minExportExponent > maxExportExponent) {
+            throw new IllegalArgumentException("Export range 2^" + minExportExponent + "..2^" + maxExportExponent
+                    + " is outside of 1..2^" + MAX_EXPONENT);
+        }
+        if (exportedSubBuckets < 1 || exportedSubBuckets > SUB_BUCKETS || SUB_BUCKETS % exportedSubBuckets != 0) {
+            throw new IllegalArgumentException("Exported sub-buckets must divide " + SUB_BUCKETS + ": " + exportedSubBuckets);
+        }
+        this.unit = unit;
+        List<Integer> exported = new ArrayList<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            long bound = upperBound(i);
+            if (bound >= 1L << minExportExponent && bound <= 1L << maxExportExponent && isExported(bound, exportedSubBuckets)) {
+                exported.add(i);
+            }
+        }
+        exportedBuckets = new int[exported.size()];
+        exportedBounds = new long[exported.size()];
+        for (int i = 0; i < exportedBuckets.length; i++) {
+            exportedBuckets[i] = exported.get(i);
+            exportedBounds[i] = upperBound(exportedBuckets[i]);
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        count.increment();
+    }
+
+    /** Records time passed since startNanos, for histograms created as latency ones **/
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /** @return number of recorded values not above each of exportedBounds **/
+    long[] exportedCounts() {
+        long[] result = new long[exportedBuckets.length];
+        long cumulative = 0;
+        int bucket = 0;
+        for (int i = 0; i < result.length; i++) {
+            for (; bucket <= exportedBuckets[i]; bucket++) {
+                cumulative += counts.get(bucket);
+            }
+            result[i] = cumulative;
+        }
+        return result;
+    }
+
+    /** @return bucket whose inclusive upper bound is the smallest one not below value **/
+    static int index(long value) {
+        if (value <= SUB_BUCKETS) {
+            return value <= 1 ? 0 : (int) value - 1;
+        }
+        // bounds are inclusive, so value - 1 is split as exclusive bounds are
+        long below = value - 1;
+        int exponent = 63 - Long.numberOfLeadingZeros(below);
+        int shift = exponent - SUB_BITS;
+        int index = (shift + 1) * SUB_BUCKETS + (int) ((below >> shift) - SUB_BUCKETS);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /** @return inclusive upper bound of bucket **/
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+        return (mantissa + 1) << shift;
+    }
+
+    /** @return true if bound is one of exportedSubBuckets equal steps of its power of two **/
+    private static boolean isExported(long bound, int exportedSubBuckets) {
+        long octave = Long.highestOneBit(bound - 1);
+        long step = bound == 1 ? 1 : Math.max(1, octave / exportedSubBuckets);
+        return (bound - octave) % step == 0;
+    }
+}
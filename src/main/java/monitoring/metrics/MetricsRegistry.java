@@ -0,0 +1,134 @@
+package monitoring.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges and histograms of the controller, exposed in Prometheus text format by GET /metrics.
+ * Metrics are created once (usually when the owning object is created) and then updated without
+ * lookups or allocation. Creating metric with the same name and labels twice returns the same object.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public static MetricsRegistry get() {
+        return instance;
+    }
+
+    /** @param labels label names and values one after another **/
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(labels(labels), l -> new Counter());
+    }
+
+    /** Gauge that reads its value from supplier when scraped **/
+    public void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        family(name, help, "gauge").series.put(labels(labels), supplier);
+    }
+
+    /**
+     * Histogram of durations in microseconds (see {@link Histogram#recordSince}), exported in seconds
+     * from 16us to 67s with all sub-buckets, so quantiles are estimated within 25%
+     */
+    public Histogram latency(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").series.computeIfAbsent(labels(labels),
+                l -> new Histogram(1e6, 4, 26, Histogram.SUB_BUCKETS));
+    }
+
+    /** Histogram of sizes, e.g. number of keys per query, exported up to 2^20 with two buckets per power of two **/
+    public Histogram sizes(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").series.computeIfAbsent(labels(labels),
+                l -> new Histogram(1, 0, 20, 2));
+    }
+
+    /** @return all metrics in Prometheus text exposition format 0.0.4 **/
+    public String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                write(out, name, series.getKey(), series.getValue());
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        return family;
+    }
+
+    private static void write(StringBuilder out, String name, String labels, Object metric) {
+        if (metric instanceof Counter) {
+            sample(out, name, labels, null, ((Counter) metric).get());
+        } else if (metric instanceof DoubleSupplier) {
+            sample(out, name, labels, null, ((DoubleSupplier) metric).getAsDouble());
+        } else if (metric instanceof Histogram) {
+            Histogram histogram = (Histogram) metric;
+            // snapshot is not atomic, count is taken last so that +Inf is never below other buckets
+            long[] counts = histogram.exportedCounts();
+            for (int i = 0; i < counts.length; i++) {
+                sample(out, name + "_bucket", labels, format(histogram.exportedBounds[i] / histogram.unit), counts[i]);
+            }
+            double sum = histogram.getSum() / histogram.unit;
+            long count = histogram.getCount();
+            sample(out, name + "_bucket", labels, "+Inf", count);
+            sample(out, name + "_sum", labels, null, sum);
+            sample(out, name + "_count", labels, null, count);
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String le, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || le != null) {
+            out.append('{').append(labels);
+            if (le != null) {
+                out.append(labels.isEmpty() ? "" : ",").append("le=\"").append(le).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return result.toString();
+    }
+
+    private static class Family {
+        final String help;
+        final String type;
+        final ConcurrentSkipListMap<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
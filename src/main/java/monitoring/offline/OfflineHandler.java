@@ -2,49 +2,39 @@ package monitoring.offline;
 
 import monitoring.Handler;
 import monitoring.ServerManager;
+import monitoring.config.Configuration;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.http.HttpStatus;
 import spark.Request;
 import spark.Response;
 
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static monitoring.utils.ResponseUtils.getError;
-import static monitoring.utils.ResponseUtils.getOk;
 
 public class OfflineHandler extends Handler {
     private static final Logger logger = LogManager.getLogger(OfflineHandler.class);
 
-    public OfflineHandler(ServerManager manager) {
+    public OfflineHandler(Configuration config, ServerManager manager) {
+        this.config = config;
         this.manager = manager;
     }
 
-    public String handle(String method, Request request, Response response)
-        throws ExecutionException, InterruptedException {
+    @Override
+    public CompletableFuture<String> handleAsync(String method, Request request, Response response) {
         switch (method) {
             case "/offlineStatus": {
-                try {
-                    return getOk(makeRequest("status"), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("status", response, logger);
             }
 
             case "/offlineStart": {
-                try {
-                    return getOk(makeRequest("start"), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("start", response, logger);
             }
 
             case "/offlineStop": {
-                try {
-                    return getOk(makeRequest("stop"), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("stop", response, logger);
             }
 
             case "/offlineNewTask": {
@@ -54,65 +44,49 @@ public class OfflineHandler extends Handler {
                 String to = request.queryParams("to");
                 String calcStart = request.queryParams("calcStart");
                 if (task == null || metric == null || from == null || to == null || calcStart == null) {
-                    return getError("Not enough parameters", HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("Not enough parameters", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
-                try {
-                    return getOk(makeRequest(
-                            "task/new?task=" + task + "&" + "metric=" + metric + "&" +
-                            "from=" + from + "&" + "to=" + to + "&" + "calcStart=" + calcStart), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy(
+                        "task/new?task=" + task + "&" + "metric=" + metric + "&" +
+                        "from=" + from + "&" + "to=" + to + "&" + "calcStart=" + calcStart, response, logger);
             }
 
             case "/offlineTask/:id/discard": {
                 String id = request.params(":id");
                 if (id == null) {
-                    return getError(
+                    return completedFuture(getError(
                         "No id parameter in task status request", HttpStatus.BAD_REQUEST_400, response, logger
-                    );
+                    ));
                 }
 
-                try {
-                    return getOk(makeRequest("task/" + id + "/discard"), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("task/" + id + "/discard", response, logger);
             }
 
             case "/offlineTask/:id/status": {
                 String id = request.params(":id");
                 if (id == null) {
-                    return getError(
+                    return completedFuture(getError(
                         "No id parameter in task status request", HttpStatus.BAD_REQUEST_400, response, logger
-                    );
+                    ));
                 }
 
-                try {
-                    return getOk(makeRequest("task/" + id + "/status"), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("task/" + id + "/status", response, logger);
             }
 
             case "/offlineTask/:id/result": {
                 String id = request.params(":id");
                 if (id == null) {
-                    return getError(
+                    return completedFuture(getError(
                         "No id parameter in task result request", HttpStatus.BAD_REQUEST_400, response, logger
-                    );
+                    ));
                 }
 
-                try {
-                    return getOk(makeRequest("task/" + id + "/result"), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy("task/" + id + "/result", response, logger);
             }
 
             default:
-                return "Unknown method";
+                return completedFuture("Unknown method");
         }
     }
 }
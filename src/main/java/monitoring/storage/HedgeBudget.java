@@ -0,0 +1,48 @@
+package monitoring.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that limits hedged requests to a share of all requests: every request adds ratio of a token,
+ * every hedge takes one whole token. Bucket holds at most max tokens, so a burst of hedges after a quiet
+ * period is bounded too.
+ */
+class HedgeBudget {
+    private static final long SCALE = 1000;
+
+    private final long perRequest;
+    private final long max;
+    private final AtomicLong tokens;
+
+    HedgeBudget(double ratio, int max) {
+        this.perRequest = Math.round(ratio * SCALE);
+        this.max = max * SCALE;
+        this.tokens = new AtomicLong(this.max);
+    }
+
+    void onRequest() {
+        while (true) {
+            long current = tokens.get();
+            long next = Math.min(max, current + perRequest);
+            if (current == next || tokens.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            long current = tokens.get();
+            if (current < SCALE) {
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    double getTokens() {
+        return (double) tokens.get() / SCALE;
+    }
+}
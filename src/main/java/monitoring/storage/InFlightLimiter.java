@@ -0,0 +1,87 @@
+package monitoring.storage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Limits number of concurrently running asynchronous operations. Operations over the limit wait in a queue
+ * and are started from the thread that completes one of running operations, so nothing blocks.
+ */
+class InFlightLimiter {
+    private final int limit;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<Supplier<? extends CompletableFuture<?>>> waiting = new ConcurrentLinkedQueue<>();
+    // drain requests not handled yet, only the thread that made it non-zero drains
+    private final AtomicInteger drains = new AtomicInteger(0);
+
+    InFlightLimiter(int limit) {
+        this.limit = limit;
+    }
+
+    /** Starts operation now if limit allows, otherwise when one of running operations completes **/
+    void submit(Supplier<? extends CompletableFuture<?>> operation) {
+        queued.incrementAndGet();
+        waiting.add(operation);
+        drain();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Operation that completes synchronously drains again from its callback: nested calls only count themselves
+     * and the outer call loops, so the stack does not grow with the queue. Error of starting an operation is
+     * thrown to the draining thread once the queue is drained.
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+        RuntimeException error = null;
+        int missed = 1;
+        do {
+            while (true) {
+                int current = inFlight.get();
+                if (current >= limit || waiting.isEmpty()) {
+                    break;
+                }
+                if (!inFlight.compareAndSet(current, current + 1)) {
+                    continue;
+                }
+                Supplier<? extends CompletableFuture<?>> operation = waiting.poll();
+                if (operation == null) {
+                    // somebody else took it, give permit back and check again
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                queued.decrementAndGet();
+                CompletableFuture<?> f;
+                try {
+                    f = operation.get();
+                } catch (RuntimeException e) {
+                    inFlight.decrementAndGet();
+                    if (error == null) {
+                        error = e;
+                    }
+                    continue;
+                }
+                f.whenComplete((v, t) -> {
+                    inFlight.decrementAndGet();
+                    drain();
+                });
+            }
+            missed = drains.addAndGet(-missed);
+        } while (missed != 0);
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package monitoring.storage;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies of the last SIZE requests to one storage node. Percentile is recomputed at most once
+ * per RECOMPUTE_EVERY samples, so reading it is cheap.
+ */
+class LatencyWindow {
+    private static final int SIZE = 512;
+    private static final int RECOMPUTE_EVERY = 64;
+    static final int MIN_SAMPLES = 32;
+
+    private final double percentile;
+    private final AtomicLongArray samples = new AtomicLongArray(SIZE);
+    // samples recorded so far, long so that it never wraps around
+    private final AtomicLong count = new AtomicLong(0);
+
+    private volatile long cached = -1;
+    private volatile long cachedAt = 0;
+
+    LatencyWindow(double percentile) {
+        this.percentile = percentile;
+    }
+
+    void record(long nanos) {
+        long n = count.getAndIncrement();
+        samples.set((int) (n % SIZE), nanos);
+    }
+
+    /** @return latency percentile in nanoseconds, or -1 if there are not enough samples yet **/
+    long get() {
+        long n = count.get();
+        if (n < MIN_SAMPLES) {
+            return -1;
+        }
+        if (cached < 0 || n - cachedAt >= RECOMPUTE_EVERY) {
+            int size = (int) Math.min(n, SIZE);
+            long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            cached = sorted[Math.min(size - 1, (int) Math.ceil(percentile * size) - 1)];
+            cachedAt = n;
+        }
+        return cached;
+    }
+}
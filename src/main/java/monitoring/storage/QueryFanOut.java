@@ -0,0 +1,111 @@
+package monitoring.storage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Storage requests of one query. At most max-in-flight-per-query keys are requested at once, keys over the limit
+ * wait in a queue. Nothing here blocks: reader of indexing stream checks {@link #isSaturated} and stops reading
+ * the socket until {@link #whenDrained} callback, so indexing service is slowed down by TCP flow control.
+ */
+public class QueryFanOut {
+    private final StorageClient storageClient;
+    private final Semaphore permits;
+    private final AtomicInteger globalInFlight;
+
+    private final ConcurrentLinkedQueue<Pending> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Runnable> onDrained = new AtomicReference<>();
+    // drain requests not handled yet, only the thread that made it non-zero drains
+    private final AtomicInteger drains = new AtomicInteger(0);
+
+    QueryFanOut(StorageClient storageClient, int limit, AtomicInteger globalInFlight) {
+        this.storageClient = storageClient;
+        this.permits = new Semaphore(limit);
+        this.globalInFlight = globalInFlight;
+    }
+
+    /** Never blocks, key is requested as soon as one of permits is free **/
+    public CompletableFuture<StorageResponse> get(String key) {
+        CompletableFuture<StorageResponse> f = new CompletableFuture<>();
+        waiting.add(new Pending(key, f));
+        drain();
+        return f;
+    }
+
+    /** @return true if all permits are taken and keys wait for them **/
+    public boolean isSaturated() {
+        return !waiting.isEmpty();
+    }
+
+    /**
+     * Runs callback once when no key waits for a permit anymore, right away if none waits now.
+     * Callback is run by the thread that released the permit, usually HTTP client thread of storage response.
+     */
+    public void whenDrained(Runnable callback) {
+        onDrained.set(callback);
+        if (waiting.isEmpty()) {
+            runDrained();
+        }
+    }
+
+    /**
+     * Keys answered from cache complete right in {@link #dispatch}, whose callback drains again: nested calls
+     * only count themselves and the outer call loops, so the stack does not grow with the queue
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (!waiting.isEmpty() && permits.tryAcquire()) {
+                Pending p = waiting.poll();
+                if (p == null || p.future.isDone()) {
+                    // lost the race or cancelled by caller while waiting
+                    permits.release();
+                    continue;
+                }
+                dispatch(p);
+            }
+            if (waiting.isEmpty()) {
+                runDrained();
+            }
+            missed = drains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void runDrained() {
+        Runnable callback = onDrained.getAndSet(null);
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /** Must be called with permit acquired **/
+    private void dispatch(Pending p) {
+        globalInFlight.incrementAndGet();
+        storageClient.get(p.key).whenComplete((value, t) -> {
+            globalInFlight.decrementAndGet();
+            permits.release();
+            drain();
+            if (t == null) {
+                p.future.complete(value);
+            } else {
+                p.future.completeExceptionally(t);
+            }
+        });
+    }
+
+    private static class Pending {
+        final String key;
+        final CompletableFuture<StorageResponse> future;
+
+        Pending(String key, CompletableFuture<StorageResponse> future) {
+            this.key = key;
+            this.future = future;
+        }
+    }
+}
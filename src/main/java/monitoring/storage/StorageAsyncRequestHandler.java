@@ -1,29 +1,39 @@
 package monitoring.storage;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import monitoring.utils.BodyPartsCompletionHandler;
+import monitoring.utils.JsonUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.asynchttpclient.AsyncCompletionHandler;
 import org.asynchttpclient.Response;
 import org.eclipse.jetty.http.HttpStatus;
 
 import java.util.concurrent.CompletableFuture;
 
-public class StorageAsyncRequestHandler extends AsyncCompletionHandler<Void> {
+/** Completes future with value parsed right from received body parts **/
+public class StorageAsyncRequestHandler extends BodyPartsCompletionHandler<Void> {
     private static final Logger logger = LogManager.getLogger(StorageAsyncRequestHandler.class);
 
     private CompletableFuture<StorageResponse> fut;
-    private ObjectMapper mapper = new ObjectMapper();
 
     public StorageAsyncRequestHandler(CompletableFuture<StorageResponse> fut) {
         this.fut = fut;
     }
 
+    @Override
+    public void onThrowable(Throwable t) {
+        if (fut.isCancelled()) {
+            // aborted on purpose, e.g. hedged request lost the race
+            return;
+        }
+        logger.error("Error requesting storage", t);
+        fut.completeExceptionally(t);
+    }
+
     @Override
     public Void onCompleted(Response response) throws Exception {
         if (response.getStatusCode() == HttpStatus.NO_CONTENT_204) {
             logger.error("Value not found: " + response.getUri().toString());
-            fut.completeExceptionally(new Exception(
+            fut.completeExceptionally(new ValueNotFoundException(
                     "Value not found for URI " + response.getUri().toString()
             ));
         } else if (response.getStatusCode() != HttpStatus.OK_200) {
@@ -34,12 +44,10 @@ public class StorageAsyncRequestHandler extends AsyncCompletionHandler<Void> {
                     ", response body: " + response.getResponseBody())
             );
         } else {
-            String rawBody = response.getResponseBody();
-            StorageResponse res = mapper.readValue(rawBody, StorageResponse.class);
-
-            logger.info("Received response from storage " + response.getRemoteAddress() + ":"
-                    + rawBody + " with status " + response.getStatusCode()
-            );
+            StorageResponse res = JsonUtils.storageResponse(body());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received response from storage " + response.getRemoteAddress() + " for key " + res.getKey());
+            }
             fut.complete(res);
         }
 
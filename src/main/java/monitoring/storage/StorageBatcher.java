@@ -0,0 +1,255 @@
+package monitoring.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import monitoring.ServerManager;
+import monitoring.config.BatchSettings;
+import monitoring.config.Timeouts;
+import monitoring.utils.BodyPartsCompletionHandler;
+import monitoring.utils.JsonUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.asynchttpclient.Response;
+import org.eclipse.jetty.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups keys requested from the same storage node and fetches them with one multi-get request
+ * (POST /keys with JSON array of keys, answered with JSON array of values). Batch is sent when it reaches
+ * max size or when its first key has waited for max linger time. Nodes that do not know /keys are remembered
+ * and asked for every key separately.
+ */
+class StorageBatcher {
+    private static final Logger logger = LogManager.getLogger(StorageBatcher.class);
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "storage-batch-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final StorageClient storageClient;
+    private final ServerManager storageManager;
+    private final Timeouts timeouts;
+    private final BatchSettings settings;
+
+    private final ConcurrentHashMap<URL, NodeBatch> batches = new ConcurrentHashMap<>();
+    private final Set<URL> unsupported = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    StorageBatcher(StorageClient storageClient, ServerManager storageManager, Timeouts timeouts, BatchSettings settings) {
+        this.storageClient = storageClient;
+        this.storageManager = storageManager;
+        this.timeouts = timeouts;
+        this.settings = settings;
+    }
+
+    boolean supports(URL storage) {
+        return !unsupported.contains(storage);
+    }
+
+    CompletableFuture<StorageResponse> get(URL storage, String key) {
+        CompletableFuture<StorageResponse> f = new CompletableFuture<>();
+        batches.computeIfAbsent(storage, NodeBatch::new).add(new Pending(key, f));
+        return f;
+    }
+
+    /** Fails keys waiting for their batch and keys requested later, batches already sent complete as usual **/
+    void close() {
+        closed = true;
+        for (NodeBatch batch : batches.values()) {
+            batch.close();
+        }
+    }
+
+    private void send(URL storage, List<Pending> batch) {
+        if (!supports(storage)) {
+            fallback(storage, batch);
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            keys.add(p.key);
+        }
+        byte[] body;
+        try {
+            body = mapper.writeValueAsBytes(keys);
+        } catch (IOException e) {
+            failAll(batch, e);
+            return;
+        }
+
+        String url = "http://" + storage.getHost() + ":" + storage.getPort() + "/keys";
+        logger.debug("Requesting " + batch.size() + " keys from " + url);
+        storageClient.limit(storage, () -> {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            storageManager.getClient().preparePost(url)
+                    .setHeader("Content-Type", "application/json")
+                    .setBody(body)
+                    .setRequestTimeout((int) timeouts.storageTimeout)
+                    .execute(new BodyPartsCompletionHandler<Void>() {
+                        @Override
+                        public Void onCompleted(Response response) throws Exception {
+                            // node slot is freed before falling back, so fallback requests can take it
+                            done.complete(null);
+                            onBatchResponse(storage, batch, response, body());
+                            return null;
+                        }
+
+                        @Override
+                        public void onThrowable(Throwable t) {
+                            logger.error("Error requesting batch of keys from " + url, t);
+                            done.complete(null);
+                            failAll(batch, t);
+                        }
+                    });
+            return done;
+        });
+    }
+
+    private void onBatchResponse(URL storage, List<Pending> batch, Response response, InputStream body) {
+        int status = response.getStatusCode();
+        if (status == HttpStatus.NOT_FOUND_404 || status == HttpStatus.METHOD_NOT_ALLOWED_405
+                || status == HttpStatus.NOT_IMPLEMENTED_501) {
+            logger.warn("Storage " + storage + " does not support batch requests (status " + status
+                    + "), will request keys one by one");
+            unsupported.add(storage);
+            fallback(storage, batch);
+            return;
+        }
+        if (status != HttpStatus.OK_200) {
+            failAll(batch, new Exception("Invalid status code " + status + " from server " + response.getRemoteAddress()
+                    + ", response body: " + response.getResponseBody()));
+            return;
+        }
+
+        StorageResponse[] values;
+        try {
+            values = JsonUtils.storageResponses(body);
+        } catch (IOException e) {
+            failAll(batch, e);
+            return;
+        }
+        Map<String, StorageResponse> byKey = new HashMap<>(values.length * 2);
+        for (StorageResponse value : values) {
+            byKey.put(value.getKey(), value);
+        }
+        for (Pending p : batch) {
+            StorageResponse value = byKey.get(p.key);
+            if (value == null) {
+                p.future.completeExceptionally(new ValueNotFoundException(
+                        "Value not found for key " + p.key + " at " + storage
+                ));
+            } else {
+                p.future.complete(value);
+            }
+        }
+    }
+
+    private void fallback(URL storage, List<Pending> batch) {
+        for (Pending p : batch) {
+            storageClient.getSingle(storage, p.key).whenComplete((value, t) -> {
+                if (t == null) {
+                    p.future.complete(value);
+                } else {
+                    p.future.completeExceptionally(t);
+                }
+            });
+        }
+    }
+
+    private static void failAll(List<Pending> batch, Throwable t) {
+        for (Pending p : batch) {
+            p.future.completeExceptionally(t);
+        }
+    }
+
+    private static class Pending {
+        final String key;
+        final CompletableFuture<StorageResponse> future;
+
+        Pending(String key, CompletableFuture<StorageResponse> future) {
+            this.key = key;
+            this.future = future;
+        }
+    }
+
+    /** Keys waiting to be sent to one storage node **/
+    private class NodeBatch {
+        private final URL storage;
+        private List<Pending> pending = new ArrayList<>();
+        private ScheduledFuture<?> linger;
+
+        NodeBatch(URL storage) {
+            this.storage = storage;
+        }
+
+        void add(Pending p) {
+            List<Pending> full = null;
+            synchronized (this) {
+                if (closed) {
+                    p.future.completeExceptionally(new IllegalStateException("Storage client is closed"));
+                    return;
+                }
+                pending.add(p);
+                if (pending.size() >= settings.maxSize) {
+                    full = take();
+                } else if (pending.size() == 1) {
+                    linger = timer.schedule(this::flush, settings.maxLinger, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (full != null) {
+                send(storage, full);
+            }
+        }
+
+        private void flush() {
+            List<Pending> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = take();
+            }
+            send(storage, batch);
+        }
+
+        void close() {
+            List<Pending> batch;
+            synchronized (this) {
+                batch = take();
+            }
+            failAll(batch, new IllegalStateException("Storage client is closed"));
+        }
+
+        /** Must be called under lock **/
+        private List<Pending> take() {
+            List<Pending> batch = pending;
+            pending = new ArrayList<>();
+            if (linger != null) {
+                linger.cancel(false);
+                linger = null;
+            }
+            return batch;
+        }
+    }
+}
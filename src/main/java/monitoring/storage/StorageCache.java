@@ -0,0 +1,105 @@
+package monitoring.storage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import monitoring.config.CacheSettings;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Values fetched from storage by key, bounded by approximate memory weight (Caffeine, W-TinyLFU eviction),
+ * and keys storage answered "value not found" for, remembered for a short time.
+ */
+class StorageCache {
+    // object headers and fields of StorageResponse and its strings
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Cache<String, StorageResponse> values;
+    private final Cache<String, Boolean> notFound;
+    private final AtomicLong notFoundHits = new AtomicLong(0);
+
+    StorageCache(CacheSettings settings) {
+        this(settings, Ticker.systemTicker(), ForkJoinPool.commonPool());
+    }
+
+    /** @param executor runs eviction and expiration, tests pass the calling thread **/
+    StorageCache(CacheSettings settings, Ticker ticker, Executor executor) {
+        Caffeine<String, StorageResponse> builder = Caffeine.newBuilder()
+                .ticker(ticker)
+                .executor(executor)
+                .maximumWeight(settings.maxWeight)
+                .weigher(StorageCache::weigh);
+        if (settings.ttl > 0) {
+            builder.expireAfterWrite(settings.ttl, TimeUnit.MILLISECONDS);
+        }
+        this.values = builder.recordStats().build();
+        this.notFound = settings.notFoundTtl > 0
+                ? Caffeine.newBuilder()
+                        .ticker(ticker)
+                        .executor(executor)
+                        .maximumSize(settings.maxNotFound)
+                        .expireAfterWrite(settings.notFoundTtl, TimeUnit.MILLISECONDS)
+                        .build()
+                : null;
+    }
+
+    /** @return cached value or null **/
+    StorageResponse get(String key) {
+        return values.getIfPresent(key);
+    }
+
+    /** @return true if storage recently had no value for key **/
+    boolean isNotFound(String key) {
+        if (notFound != null && notFound.getIfPresent(key) != null) {
+            notFoundHits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    void put(String key, StorageResponse value) {
+        values.put(key, value);
+    }
+
+    void putNotFound(String key) {
+        if (notFound != null) {
+            notFound.put(key, Boolean.TRUE);
+        }
+    }
+
+    void clear() {
+        values.invalidateAll();
+        if (notFound != null) {
+            notFound.invalidateAll();
+        }
+    }
+
+    Map<String, Object> getStats() {
+        CacheStats stats = values.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", values.estimatedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        result.put("evictedWeight", stats.evictionWeight());
+        result.put("notFoundSize", notFound == null ? 0 : notFound.estimatedSize());
+        result.put("notFoundHits", notFoundHits.get());
+        return result;
+    }
+
+    static int weigh(String key, StorageResponse value) {
+        return ENTRY_OVERHEAD + 2 * (key.length() + length(value.getKey()) + length(value.getTs()) + length(value.getValue()));
+    }
+
+    private static int length(String str) {
+        return str == null ? 0 : str.length();
+    }
+}
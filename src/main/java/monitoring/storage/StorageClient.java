@@ -0,0 +1,188 @@
+package monitoring.storage;
+
+import monitoring.ServerManager;
+import monitoring.config.FanOutSettings;
+import monitoring.config.StorageClientSettings;
+import monitoring.config.Timeouts;
+import monitoring.metrics.MetricsRegistry;
+import monitoring.utils.FutureUtils;
+import monitoring.utils.SingleFlight;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.asynchttpclient.ListenableFuture;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Fetches values by key from storage services. All requests are asynchronous, returned futures are completed
+ * from HTTP client threads. Values are immutable, so they are cached, and a key requested while it is already
+ * being fetched is not fetched again. Number of concurrent HTTP requests
+ * to every storage node is limited, requests over the limit wait in a per-node queue.
+ */
+public class StorageClient {
+    private static final Logger logger = LogManager.getLogger(StorageClient.class);
+
+    private final ServerManager storageManager;
+    private final Timeouts timeouts;
+    private final FanOutSettings fanOut;
+    private final StorageBatcher batcher;
+    private final StorageCache cache;
+    private final StorageHedger hedger;
+    private final SingleFlight<String, StorageResponse> fetches = new SingleFlight<>();
+
+    private final ConcurrentHashMap<URL, InFlightLimiter> nodeLimiters = new ConcurrentHashMap<>();
+    private final AtomicInteger queryKeysInFlight = new AtomicInteger(0);
+    private volatile boolean closed = false;
+
+    public StorageClient(ServerManager storageManager, Timeouts timeouts, StorageClientSettings settings) {
+        this.storageManager = storageManager;
+        this.timeouts = timeouts;
+        this.fanOut = settings.fanOut;
+        this.batcher = settings.batch.enabled
+                ? new StorageBatcher(this, storageManager, timeouts, settings.batch)
+                : null;
+        this.cache = settings.cache.enabled ? new StorageCache(settings.cache) : null;
+        this.hedger = settings.hedging.enabled ? new StorageHedger(this, storageManager, settings.hedging) : null;
+        MetricsRegistry.get().gauge("controller_storage_query_keys_in_flight",
+                "Keys being requested from storage by running queries", queryKeysInFlight::get);
+        MetricsRegistry.get().gauge("controller_storage_keys_fetching",
+                "Distinct keys being fetched from storage", fetches::getInFlight);
+    }
+
+    /** Starts a query, keys requested through it are limited by max-in-flight-per-query **/
+    public QueryFanOut newQuery() {
+        return new QueryFanOut(this, fanOut.maxInFlightPerQuery, queryKeysInFlight);
+    }
+
+    /**
+     * @return future completed with value for key, or failed with {@link ValueNotFoundException} if storage
+     * has no value for it
+     */
+    public CompletableFuture<StorageResponse> get(String key) {
+        if (cache == null) {
+            return fetches.run(key, () -> fetch(key));
+        }
+        StorageResponse cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        if (cache.isNotFound(key)) {
+            return FutureUtils.failed(new ValueNotFoundException("Value not found for key " + key + " (cached)"));
+        }
+        return fetches.run(key, () -> fetch(key).whenComplete((value, t) -> {
+            if (t == null) {
+                cache.put(key, value);
+            } else if (FutureUtils.unwrap(t) instanceof ValueNotFoundException) {
+                cache.putNotFound(key);
+            }
+        }));
+    }
+
+    private CompletableFuture<StorageResponse> fetch(String key) {
+        if (closed) {
+            return FutureUtils.failed(new IllegalStateException("Storage client is closed"));
+        }
+        URL storage = storageManager.next();
+        if (storage == null) {
+            return FutureUtils.failed(new RuntimeException("No available storage on list while requesting key " + key));
+        }
+        if (hedger != null) {
+            return hedger.fetch(storage, key);
+        }
+        return fetchFrom(storage, key);
+    }
+
+    CompletableFuture<StorageResponse> fetchFrom(URL storage, String key) {
+        if (batcher != null && batcher.supports(storage)) {
+            return batcher.get(storage, key);
+        }
+        return getSingle(storage, key);
+    }
+
+    /** Requests one key with GET /key/:key, cancelling returned future aborts the request **/
+    CompletableFuture<StorageResponse> getSingle(URL storage, String key) {
+        String url = "http://" + storage.getHost() + ":" + storage.getPort() + "/key/" + key;
+        logger.debug("URL for request to storage: " + url);
+
+        CompletableFuture<StorageResponse> f = new CompletableFuture<>();
+        limit(storage, () -> {
+            if (f.isDone()) {
+                // cancelled while waiting in queue
+                return f;
+            }
+            ListenableFuture<Void> request = storageManager.getClient().prepareGet(url)
+                    .setRequestTimeout((int) timeouts.storageTimeout)
+                    .execute(new StorageAsyncRequestHandler(f));
+            f.whenComplete((value, t) -> {
+                if (f.isCancelled()) {
+                    request.cancel(true);
+                }
+            });
+            return f;
+        });
+        return f;
+    }
+
+    /**
+     * Runs HTTP request to storage node when the node has less than max-in-flight-per-node requests running.
+     * Running request is counted as outstanding for balancing.
+     */
+    <T> void limit(URL storage, Supplier<CompletableFuture<T>> request) {
+        nodeLimiters.computeIfAbsent(storage, s -> new InFlightLimiter(fanOut.maxInFlightPerNode))
+                .submit(() -> storageManager.call(storage, request,
+                        t -> !(t instanceof ValueNotFoundException)));
+    }
+
+    /**
+     * Fails keys waiting to be batched, stops hedging and drops cached values. Must be called before
+     * HTTP client of storage manager is closed, keys requested later fail.
+     */
+    public void close() {
+        closed = true;
+        if (batcher != null) {
+            batcher.close();
+        }
+        if (hedger != null) {
+            hedger.close();
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /** Hit/miss/eviction counters of value cache, null if cache is disabled **/
+    public Map<String, Object> getCacheStats() {
+        return cache == null ? null : cache.getStats();
+    }
+
+    /** Current depth of storage fan-out: keys requested by running queries and requests to every node **/
+    public Map<String, Object> getFanOutStats() {
+        List<Map<String, Object>> nodes = new ArrayList<>();
+        nodeLimiters.forEach((storage, limiter) -> {
+            Map<String, Object> node = new LinkedHashMap<>();
+            node.put("storage", storage.toString());
+            node.put("inFlight", limiter.getInFlight());
+            node.put("queued", limiter.getQueued());
+            nodes.add(node);
+        });
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxInFlightPerQuery", fanOut.maxInFlightPerQuery);
+        stats.put("maxInFlightPerNode", fanOut.maxInFlightPerNode);
+        stats.put("queryKeysInFlight", queryKeysInFlight.get());
+        stats.put("keysFetching", fetches.getInFlight());
+        stats.put("keysShared", fetches.getShared());
+        stats.put("nodes", nodes);
+        if (hedger != null) {
+            stats.put("hedging", hedger.getStats());
+        }
+        return stats;
+    }
+}
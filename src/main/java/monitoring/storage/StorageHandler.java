@@ -2,62 +2,74 @@ package monitoring.storage;
 
 import monitoring.Handler;
 import monitoring.ServerManager;
-import monitoring.utils.ResponseUtils;
+import monitoring.config.Configuration;
+import monitoring.utils.JsonUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.http.HttpStatus;
 import spark.Request;
 import spark.Response;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static monitoring.utils.ResponseUtils.*;
 
 public class StorageHandler extends Handler {
     private static final Logger logger = LogManager.getLogger(StorageHandler.class);
-    private ServerManager storageManager;
 
-    public StorageHandler(ServerManager manager) {
+    private final StorageClient storageClient;
+
+    public StorageHandler(Configuration config, ServerManager manager, StorageClient storageClient) {
+        this.config = config;
         this.manager = manager;
+        this.storageClient = storageClient;
     }
 
     @Override
-    public String handle(String method, Request request, Response response) throws Exception {
+    public CompletableFuture<String> handleAsync(String method, Request request, Response response) {
         switch (method) {
             case "/storageData": {
                 String start = request.queryParams("start");
                 String count = request.queryParams("count");
                 if (start == null) {
-                    return getError("'start' query parameter not specified", HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("'start' query parameter not specified", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
                 if (count == null) {
-                    return getError("'count' query parameter not specified", HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("'count' query parameter not specified", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
                 String url = "timestamp/" + start + "/" + count;
                 logger.debug("Parameters for /storageData: count=" + count + ", start=" + start);
 
-                try {
-                    return getOk(makeRequest(url), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    return getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
-                }
+                return proxy(url, request, response, logger);
             }
 
             case "/storageGetByKey/:key": {
                 String key = request.params(":key");
                 if (key == null) {
-                    return getError("'key' parameter not specified", HttpStatus.BAD_REQUEST_400, response, logger);
+                    return completedFuture(getError("'key' parameter not specified", HttpStatus.BAD_REQUEST_400, response, logger));
                 }
 
-                try {
-                    return getOk(makeRequest("key/" + key), HttpStatus.OK_200, response, logger);
-                } catch (RuntimeException e) {
-                    getError("Error: " + e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR_500, response, logger);
+                return proxy("key/" + key, request, response, logger);
+            }
+
+            case "/storageCache": {
+                Map<String, Object> stats = storageClient.getCacheStats();
+                if (stats == null) {
+                    return completedFuture(getError("Storage cache is disabled", HttpStatus.NOT_FOUND_404, response, logger));
                 }
+                return completedFuture(getOk(JsonUtils.serialize(stats), HttpStatus.OK_200, response, logger));
+            }
+
+            case "/storageFanOut": {
+                return completedFuture(getOk(JsonUtils.serialize(storageClient.getFanOutStats()), HttpStatus.OK_200, response, logger));
             }
 
             default:
                 response.status(404);
-                return "Unknown method";
+                return completedFuture("Unknown method");
         }
     }
 }
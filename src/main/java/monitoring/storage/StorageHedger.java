@@ -0,0 +1,145 @@
+package monitoring.storage;
+
+import monitoring.ServerManager;
+import monitoring.config.HedgingSettings;
+import monitoring.utils.FutureUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends a duplicate request for a key to another storage node if the first node has not answered within
+ * its latency percentile. The first answer wins and the other request is cancelled. "Value not found" is
+ * an answer too; other errors wait for the second request if it was sent. Number of duplicates is limited
+ * by {@link HedgeBudget}.
+ */
+class StorageHedger {
+    private static final Logger logger = LogManager.getLogger(StorageHedger.class);
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "storage-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final StorageClient storageClient;
+    private final ServerManager storageManager;
+    private final HedgingSettings settings;
+    private final HedgeBudget budget;
+
+    private final ConcurrentHashMap<URL, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final AtomicLong hedged = new AtomicLong(0);
+    private final AtomicLong won = new AtomicLong(0);
+    private final AtomicLong noBudget = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    StorageHedger(StorageClient storageClient, ServerManager storageManager, HedgingSettings settings) {
+        this.storageClient = storageClient;
+        this.storageManager = storageManager;
+        this.settings = settings;
+        this.budget = new HedgeBudget(settings.budgetRatio, settings.maxBudget);
+    }
+
+    CompletableFuture<StorageResponse> fetch(URL storage, String key) {
+        budget.onRequest();
+        CompletableFuture<StorageResponse> primary = measure(storage, storageClient.fetchFrom(storage, key));
+        long threshold = latencies.computeIfAbsent(storage, s -> new LatencyWindow(settings.percentile)).get();
+        if (primary.isDone() || threshold < 0) {
+            // answered from memory or not enough samples to know what is slow for this node
+            return primary;
+        }
+        long delay = Math.max(settings.minDelay, TimeUnit.NANOSECONDS.toMillis(threshold));
+
+        Race race = new Race();
+        race.attach(primary, false);
+        ScheduledFuture<?> hedge = timer.schedule(() -> hedge(race, storage, key), delay, TimeUnit.MILLISECONDS);
+        race.result.whenComplete((value, t) -> hedge.cancel(false));
+        return race.result;
+    }
+
+    /** Hedges that are due later are not sent, running races complete with their primary request **/
+    void close() {
+        closed = true;
+    }
+
+    private void hedge(Race race, URL storage, String key) {
+        if (closed || race.result.isDone()) {
+            return;
+        }
+        URL other = storageManager.next(storage);
+        if (other == null) {
+            return;
+        }
+        if (!budget.tryAcquire()) {
+            noBudget.incrementAndGet();
+            return;
+        }
+        hedged.incrementAndGet();
+        logger.debug("Key " + key + " is slow at " + storage + ", hedging to " + other);
+        race.pending.incrementAndGet();
+        race.attach(measure(other, storageClient.getSingle(other, key)), true);
+    }
+
+    private CompletableFuture<StorageResponse> measure(URL storage, CompletableFuture<StorageResponse> request) {
+        long start = System.nanoTime();
+        request.whenComplete((value, t) -> {
+            if (t == null || FutureUtils.unwrap(t) instanceof ValueNotFoundException) {
+                latencies.computeIfAbsent(storage, s -> new LatencyWindow(settings.percentile))
+                        .record(System.nanoTime() - start);
+            }
+        });
+        return request;
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hedged", hedged.get());
+        stats.put("hedgesWon", won.get());
+        stats.put("skippedNoBudget", noBudget.get());
+        stats.put("budgetTokens", budget.getTokens());
+        Map<String, Object> thresholds = new LinkedHashMap<>();
+        latencies.forEach((storage, window) -> thresholds.put(storage.toString(), window.get() / 1e6));
+        stats.put("thresholdMs", thresholds);
+        return stats;
+    }
+
+    /** Primary request and maybe a hedge, result is completed by the first answer **/
+    private class Race {
+        final CompletableFuture<StorageResponse> result = new CompletableFuture<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        void attach(CompletableFuture<StorageResponse> request, boolean isHedge) {
+            // loser is cancelled, which aborts its HTTP request if it was not batched
+            result.whenComplete((value, t) -> request.cancel(false));
+            request.whenComplete((value, t) -> {
+                if (t == null || FutureUtils.unwrap(t) instanceof ValueNotFoundException) {
+                    boolean first = t == null ? result.complete(value) : result.completeExceptionally(t);
+                    if (first && isHedge) {
+                        won.incrementAndGet();
+                    }
+                    return;
+                }
+                error.compareAndSet(null, t);
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(error.get());
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package monitoring.storage;
+
+/** Storage answered 204, i.e. there is no value for requested key **/
+public class ValueNotFoundException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ValueNotFoundException(String message) {
+        super(message);
+    }
+}
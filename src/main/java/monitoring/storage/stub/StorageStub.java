@@ -7,8 +7,12 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.http.HttpStatus;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static spark.Spark.get;
 import static spark.Spark.port;
+import static spark.Spark.post;
 
 public class StorageStub {
     private static final Logger logger = LogManager.getLogger(StorageStub.class);
@@ -29,15 +33,30 @@ public class StorageStub {
 
             logger.info("received /key/" + key);
 
-            // "{\"metric_id\": <id>, \"metric\":{\"value\": <float от 1.0 до 100.0 >}}"
-            return mapper.writeValueAsString(
-                    new StorageResponse(key, String.valueOf(System.currentTimeMillis()),
-                        "{ \"metric_id\": " + String.valueOf(System.currentTimeMillis()) + ", " +
-                        "\"metric\": {\"value\": " + 66.6 + "}}")
-            );
+            return mapper.writeValueAsString(makeResponse(key));
+        });
+
+        // multi-get: JSON array of keys in body, JSON array of values in response
+        post("/keys", (req, res) -> {
+            String[] keys = mapper.readValue(req.body(), String[].class);
+            logger.info("received /keys for " + keys.length + " keys");
+
+            List<StorageResponse> values = new ArrayList<>(keys.length);
+            for (String key : keys) {
+                values.add(makeResponse(key));
+            }
+            res.type("application/json");
+            return mapper.writeValueAsString(values);
         });
 
         logger.info("Started to listen on localhost:" + port);
     }
 
+    private static StorageResponse makeResponse(String key) {
+        // "{\"metric_id\": <id>, \"metric\":{\"value\": <float от 1.0 до 100.0 >}}"
+        return new StorageResponse(key, String.valueOf(System.currentTimeMillis()),
+                "{ \"metric_id\": " + String.valueOf(System.currentTimeMillis()) + ", " +
+                "\"metric\": {\"value\": " + 66.6 + "}}");
+    }
+
 }
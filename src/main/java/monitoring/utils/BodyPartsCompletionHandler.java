@@ -0,0 +1,27 @@
+package monitoring.utils;
+
+import org.asynchttpclient.AsyncCompletionHandler;
+import org.asynchttpclient.HttpResponseBodyPart;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Completion handler that keeps received body parts, so {@link #body()} can be parsed right from them.
+ * Parts are still given to the response, which only keeps references to them.
+ */
+public abstract class BodyPartsCompletionHandler<T> extends AsyncCompletionHandler<T> {
+    private final List<HttpResponseBodyPart> parts = new ArrayList<>();
+
+    @Override
+    public State onBodyPartReceived(HttpResponseBodyPart content) throws Exception {
+        parts.add(content);
+        return super.onBodyPartReceived(content);
+    }
+
+    /** Must be called from {@link #onCompleted(org.asynchttpclient.Response)} **/
+    protected InputStream body() {
+        return new BodyPartsInputStream(parts);
+    }
+}
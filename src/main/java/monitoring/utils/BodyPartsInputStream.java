@@ -0,0 +1,59 @@
+package monitoring.utils;
+
+import org.asynchttpclient.HttpResponseBodyPart;
+
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Reads response body from the parts it was received in, so it can be parsed without joining parts
+ * into one array or decoding it to String first.
+ */
+public class BodyPartsInputStream extends InputStream {
+    private final List<HttpResponseBodyPart> parts;
+    private int part = -1;
+    private byte[] current = new byte[0];
+    private int position = 0;
+
+    public BodyPartsInputStream(List<HttpResponseBodyPart> parts) {
+        this.parts = parts;
+    }
+
+    @Override
+    public int read() {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int n = Math.min(length, current.length - position);
+        System.arraycopy(current, position, buffer, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    private boolean ensureAvailable() {
+        while (position == current.length) {
+            if (part + 1 >= parts.size()) {
+                return false;
+            }
+            current = parts.get(++part).getBodyPartBytes();
+            position = 0;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,129 @@
+package monitoring.utils;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Body of one response, compressed if it turns out big enough. The first min-size bytes are held back: if the body
+ * ends before that, it is sent as is, otherwise Content-Encoding header is set and everything is compressed.
+ * Flush means the body is streamed, so it starts compression right away and pushes compressed data out with
+ * sync flush, so the client gets every flushed part without waiting for the end of the stream.
+ */
+class CompressingOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final HttpServletResponse raw;
+    private final ResponseCompression.Coding coding;
+    private final int minSize;
+    private final int level;
+
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private OutputStream target;
+    // not ended by DeflaterOutputStream, since it is not its default one
+    private Deflater deflater;
+    private boolean closed = false;
+
+    CompressingOutputStream(HttpServletResponse raw, ResponseCompression.Coding coding, int minSize, int level) {
+        this.raw = raw;
+        this.coding = coding;
+        this.minSize = minSize;
+        this.level = level;
+    }
+
+    int getMinSize() {
+        return minSize;
+    }
+
+    /** @return true if nothing was written to the stream yet **/
+    boolean isUntouched() {
+        return target == null && pending.size() == 0 && !closed;
+    }
+
+    /** Sets Content-Encoding header and starts compression, must be called before response is committed **/
+    private void compress() throws IOException {
+        if (target != null) {
+            return;
+        }
+        raw.setHeader("Content-Encoding", coding.name);
+        OutputStream out = raw.getOutputStream();
+        if (coding == ResponseCompression.Coding.GZIP) {
+            target = new GZIPOutputStream(out, BUFFER_SIZE, true) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        } else {
+            deflater = new Deflater(level);
+            target = new DeflaterOutputStream(out, deflater, BUFFER_SIZE, true);
+        }
+        writePending();
+    }
+
+    private void sendAsIs() throws IOException {
+        target = raw.getOutputStream();
+        writePending();
+    }
+
+    private void writePending() throws IOException {
+        if (pending.size() > 0) {
+            pending.writeTo(target);
+        }
+        pending = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (target != null) {
+            target.write(b, off, len);
+            return;
+        }
+        pending.write(b, off, len);
+        if (pending.size() >= minSize) {
+            compress();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        compress();
+        target.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (target == null) {
+            if (pending.size() >= minSize) {
+                compress();
+            } else {
+                sendAsIs();
+            }
+        }
+        closed = true;
+        try {
+            target.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package monitoring.utils;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+public class FutureUtils {
+    /** Single daemon thread that only fires timeouts, never runs user code **/
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "future-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private FutureUtils() { }
+
+    /**
+     * Returns future that completes as the given one, or fails with {@link TimeoutException} with specified message
+     * if the given future is not completed in time. Does not block any thread while waiting.
+     */
+    public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeoutMs, String message) {
+        if (future.isDone()) {
+            return future;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = timer.schedule(
+                () -> result.completeExceptionally(new TimeoutException(message)), timeoutMs, TimeUnit.MILLISECONDS
+        );
+        future.whenComplete((value, t) -> {
+            timeout.cancel(false);
+            if (t == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /** Transforms list of futures to future of list, fails as soon as any of futures fails **/
+    public static <T> CompletableFuture<List<T>> allAsList(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(v -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    public static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /** Strips wrappers added by CompletableFuture machinery **/
+    public static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+}
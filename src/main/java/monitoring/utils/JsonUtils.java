@@ -1,14 +1,32 @@
 package monitoring.utils;
 
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import monitoring.indexing.BatchQuery;
 import monitoring.indexing.IndexingResponsePart;
+import monitoring.indexing.IndexingSyncResponse;
+import monitoring.storage.StorageResponse;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
 
 public class JsonUtils {
     private static ObjectMapper mapper = new ObjectMapper();
+    // readers are immutable and cache deserializers, so they are built once and shared by all threads
+    private static ObjectReader indexingResponseReader = mapper.readerFor(IndexingResponsePart.class);
+    private static ObjectReader indexingSyncResponseReader = mapper.readerFor(IndexingSyncResponse.class);
+    private static ObjectReader storageResponseReader = mapper.readerFor(StorageResponse.class);
+    private static ObjectReader storageResponsesReader = mapper.readerFor(StorageResponse[].class);
+    private static ObjectReader batchQueryReader = mapper.readerFor(BatchQuery.class);
 
     private JsonUtils() { }
 
@@ -24,16 +42,158 @@ public class JsonUtils {
         }
     }
 
+    /** Generator writing UTF-8 straight to the stream, closing generator closes the stream **/
+    public static JsonGenerator generator(OutputStream out) throws IOException {
+        return mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+    }
+
+    public static JsonGenerator generator(Writer writer) throws IOException {
+        return mapper.getFactory().createGenerator(writer);
+    }
+
+    /**
+     * Writes value that is already JSON text (object, array or string) as is, it is only tokenized to check
+     * that it is valid, no tree is built. Anything else is written as JSON string, so output stays valid.
+     */
+    public static void writeRawOrString(JsonGenerator generator, String value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (isJsonText(value)) {
+            generator.writeRawValue(value);
+        } else {
+            generator.writeString(value);
+        }
+    }
+
+    /** Writes integer timestamp as number, anything else as string **/
+    public static void writeTimestamp(JsonGenerator generator, String timestamp) throws IOException {
+        if (timestamp == null) {
+            generator.writeNull();
+            return;
+        }
+        try {
+            generator.writeNumber(Long.parseLong(timestamp.trim()));
+        } catch (NumberFormatException e) {
+            generator.writeString(timestamp);
+        }
+    }
+
+    /**
+     * Writes value that is JSON text as parsed structure and value that is a number as number,
+     * anything else as string. Used for binary encodings, where embedding JSON text would only add size.
+     */
+    public static void writeNativeValue(JsonGenerator generator, String value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        if (isJsonText(value)) {
+            JsonNode tree;
+            try {
+                tree = mapper.readTree(value);
+            } catch (IOException e) {
+                generator.writeString(value);
+                return;
+            }
+            mapper.writeTree(generator, tree);
+            return;
+        }
+        String trimmed = value.trim();
+        try {
+            generator.writeNumber(Long.parseLong(trimmed));
+            return;
+        } catch (NumberFormatException e) {
+            // not an integer
+        }
+        try {
+            double number = Double.parseDouble(trimmed);
+            if (!Double.isInfinite(number) && !Double.isNaN(number)) {
+                generator.writeNumber(number);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // not a number
+        }
+        generator.writeString(value);
+    }
+
     /**
-     * @param string
-     * @return
+     * Copies JSON document to generator of another encoding. String fields named timestamp or ts are written
+     * with {@link #writeTimestamp} and fields named value with {@link #writeNativeValue}, the rest as is.
+     * @throws IOException if document is not valid JSON
+     */
+    public static void transcode(String json, JsonGenerator generator) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(json)) {
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                String field = token == JsonToken.VALUE_STRING ? parser.getCurrentName() : null;
+                if ("timestamp".equals(field) || "ts".equals(field)) {
+                    writeTimestamp(generator, parser.getText());
+                } else if ("value".equals(field)) {
+                    writeNativeValue(generator, parser.getText());
+                } else {
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+        }
+    }
+
+    /** @return true if value is exactly one valid JSON object, array or string **/
+    private static boolean isJsonText(String value) {
+        if (!looksLikeJsonText(value)) {
+            return false;
+        }
+        try (JsonParser parser = mapper.getFactory().createParser(value)) {
+            parser.nextToken();
+            parser.skipChildren();
+            return parser.nextToken() == null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Cheap check of the first and the last character, so plain values are never tokenized **/
+    private static boolean looksLikeJsonText(String value) {
+        int start = 0;
+        int end = value.length() - 1;
+        while (start <= end && Character.isWhitespace(value.charAt(start))) {
+            start++;
+        }
+        while (end >= start && Character.isWhitespace(value.charAt(end))) {
+            end--;
+        }
+        if (start >= end) {
+            return false;
+        }
+        char first = value.charAt(start);
+        char last = value.charAt(end);
+        return first == '{' && last == '}' || first == '[' && last == ']' || first == '"' && last == '"';
+    }
+
+    /**
+     * Parses one record of indexing stream right from the bytes it was received in
      * @throws RuntimeException if deserialization failed
      */
-    public static IndexingResponsePart indexingResponse(String string) {
+    public static IndexingResponsePart indexingResponse(byte[] buffer, int offset, int length) {
         try {
-            return mapper.readValue(string, IndexingResponsePart.class);
+            return indexingResponseReader.readValue(buffer, offset, length);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    public static IndexingSyncResponse indexingSyncResponse(InputStream in) throws IOException {
+        return indexingSyncResponseReader.readValue(in);
+    }
+
+    public static StorageResponse storageResponse(InputStream in) throws IOException {
+        return storageResponseReader.readValue(in);
+    }
+
+    public static StorageResponse[] storageResponses(InputStream in) throws IOException {
+        return storageResponsesReader.readValue(in);
+    }
+
+    public static BatchQuery batchQuery(String body) throws IOException {
+        return batchQueryReader.readValue(body);
+    }
 }
@@ -0,0 +1,152 @@
+package monitoring.utils;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Body that handlers write to the response themselves. While {@link monitoring.RouteExecutor} decides whether
+ * the request is suspended, and until suspended request is dispatched again, response output drops what is
+ * written to it, so such body is held in memory (see {@link #hold}) and sent by the executor. Handlers get
+ * the stream to write to with {@link #output}. Body goes to the client through {@link ResponseCompression}.
+ */
+public final class ResponseBody {
+    // servlet response objects are reused by Jetty only after the request they belong to is completed
+    private static final ConcurrentHashMap<HttpServletResponse, HeldStream> streams = new ConcurrentHashMap<>();
+
+    private ResponseBody() { }
+
+    /**
+     * Keeps everything written to {@link #output} in memory until {@link #send}, so the response stays
+     * uncommitted and its status may still be changed
+     */
+    public static void hold(HttpServletResponse raw) {
+        streams.put(raw, new HeldStream(raw));
+    }
+
+    /** Stream response body should be written to, held one if the response is held **/
+    public static OutputStream output(HttpServletResponse raw) throws IOException {
+        HeldStream stream = streams.get(raw);
+        return stream != null ? stream : ResponseCompression.output(raw);
+    }
+
+    /**
+     * Held body that was flushed is streamed by its handler: what is written so far is sent, which commits
+     * the response, and the rest goes to the client as it is written
+     * @return true if body was flushed
+     */
+    public static boolean sendIfFlushed(HttpServletResponse raw) throws IOException {
+        HeldStream stream = streams.get(raw);
+        if (stream == null || !stream.isFlushed()) {
+            return false;
+        }
+        send(raw);
+        return true;
+    }
+
+    /** Sends held body and stops holding the response, body is ended if handler has closed it already **/
+    public static void send(HttpServletResponse raw) throws IOException {
+        HeldStream stream = streams.remove(raw);
+        if (stream != null) {
+            stream.send();
+        }
+    }
+
+    /** Forgets held body, so that error message is sent alone, what is written to it later is dropped too **/
+    public static void discard(HttpServletResponse raw) {
+        HeldStream stream = streams.get(raw);
+        if (stream != null) {
+            stream.discard();
+        }
+    }
+
+    /** Stops holding the response without sending anything, e.g. when route failed or request is completed **/
+    public static void forget(HttpServletResponse raw) {
+        streams.remove(raw);
+    }
+
+    /**
+     * Keeps the body in memory until it is sent, then writes straight to the response. Handler thread may write
+     * while Jetty thread sends the body, so methods are synchronized.
+     */
+    private static class HeldStream extends OutputStream {
+        private final HttpServletResponse raw;
+
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private OutputStream target;
+        private boolean flushed = false;
+        private boolean closed = false;
+        private boolean discarded = false;
+
+        HeldStream(HttpServletResponse raw) {
+            this.raw = raw;
+        }
+
+        synchronized boolean isFlushed() {
+            return flushed;
+        }
+
+        synchronized void send() throws IOException {
+            if (target != null || discarded) {
+                return;
+            }
+            target = ResponseCompression.output(raw);
+            pending.writeTo(target);
+            pending = null;
+            if (closed) {
+                target.close();
+            } else if (flushed) {
+                target.flush();
+            }
+        }
+
+        synchronized void discard() {
+            if (target == null) {
+                discarded = true;
+                pending = null;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            if (target != null) {
+                target.write(b, off, len);
+            } else if (!discarded) {
+                pending.write(b, off, len);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (target != null) {
+                target.flush();
+            } else {
+                flushed = true;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (target != null) {
+                target.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package monitoring.utils;
+
+import monitoring.config.CompressionSettings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compresses response bodies with gzip or deflate chosen by Accept-Encoding header. Spark does not let routes
+ * wrap the servlet response, so {@link monitoring.RouteExecutor} registers a compressing stream for every
+ * request it handles, code that writes response body itself gets it through {@link ResponseBody#output},
+ * and string bodies returned by routes are written to it by the executor. Bodies smaller than min-size
+ * are sent as is.
+ */
+public class ResponseCompression {
+    private static final Logger logger = LogManager.getLogger(ResponseCompression.class);
+
+    // servlet response objects are reused by Jetty only after the request they belong to is completed
+    private static final ConcurrentHashMap<HttpServletResponse, CompressingOutputStream> streams = new ConcurrentHashMap<>();
+
+    public enum Coding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        final String name;
+
+        Coding(String name) {
+            this.name = name;
+        }
+    }
+
+    private final CompressionSettings settings;
+
+    public ResponseCompression(CompressionSettings settings) {
+        this.settings = settings;
+    }
+
+    /** Registers compressing stream for the response if client accepts one of supported codings **/
+    public void start(Request request, Response response) {
+        start(response.raw(), request.headers("Accept-Encoding"));
+    }
+
+    void start(HttpServletResponse raw, String acceptEncoding) {
+        if (!settings.enabled) {
+            return;
+        }
+        raw.addHeader("Vary", "Accept-Encoding");
+        Coding coding = negotiate(acceptEncoding);
+        if (coding != null) {
+            streams.put(raw, new CompressingOutputStream(raw, coding, settings.minSize, settings.level));
+        }
+    }
+
+    /**
+     * Writes string body returned by route and ends the compressed body
+     * @return body that is left to be sent by Spark, empty if it was written here
+     */
+    public static String finish(HttpServletResponse raw, String body) {
+        CompressingOutputStream stream = streams.remove(raw);
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        if (stream == null || stream.isUntouched() && bytes.length < stream.getMinSize()) {
+            // nothing to compress or route is streaming itself, Spark sends the body as usual
+            return body;
+        }
+        try {
+            if (bytes.length > 0) {
+                if (raw.getContentType() == null) {
+                    // Spark default, Spark does not touch response that is already sent
+                    raw.setContentType("text/html; charset=utf-8");
+                }
+                stream.write(bytes);
+            }
+            stream.close();
+        } catch (IOException e) {
+            logger.warn("Client went away while sending compressed response: " + e.getMessage());
+        }
+        return "";
+    }
+
+    /** Forgets compressing stream of the response if it is still registered, e.g. when route failed **/
+    public static void release(HttpServletResponse raw) {
+        streams.remove(raw);
+    }
+
+    /** Stream response body should be written to, compressing one if compression was negotiated **/
+    public static OutputStream output(HttpServletResponse raw) throws IOException {
+        CompressingOutputStream stream = streams.get(raw);
+        return stream != null ? stream : raw.getOutputStream();
+    }
+
+    /**
+     * Supported coding with the highest quality, on equal quality gzip, null if none is acceptable.
+     * "*" gives its quality to codings that are not listed explicitly, q=0 means "not acceptable".
+     */
+    static Coding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String range : acceptEncoding.split(",")) {
+            String[] params = range.split(";");
+            String name = params[0].trim().toLowerCase();
+            float quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip = Math.max(gzip, quality);
+            } else if (name.equals("deflate")) {
+                deflate = Math.max(deflate, quality);
+            } else if (name.equals("*")) {
+                any = Math.max(any, quality);
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? Coding.GZIP : Coding.DEFLATE;
+    }
+}
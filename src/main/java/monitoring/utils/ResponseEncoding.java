@@ -0,0 +1,91 @@
+package monitoring.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encoding of response body chosen by Accept header, JSON by default. Binary encodings carry the same documents
+ * written with Jackson dataformat modules, timestamps and storage values in them are native numbers and
+ * structures instead of strings (see {@link JsonUtils#writeTimestamp} and {@link JsonUtils#writeNativeValue}).
+ */
+public enum ResponseEncoding {
+    JSON("application/json; charset=utf-8", null, "application/json"),
+    CBOR("application/cbor", new CBORFactory(), "application/cbor"),
+    SMILE("application/x-jackson-smile", new SmileFactory(), "application/x-jackson-smile", "application/smile"),
+    MSGPACK("application/x-msgpack", new MessagePackFactory(), "application/x-msgpack", "application/msgpack");
+
+    public final String contentType;
+    private final JsonFactory factory;
+    private final String[] mediaTypes;
+
+    ResponseEncoding(String contentType, JsonFactory factory, String... mediaTypes) {
+        this.contentType = contentType;
+        this.factory = factory;
+        this.mediaTypes = mediaTypes;
+    }
+
+    public boolean isBinary() {
+        return factory != null;
+    }
+
+    /** Generator writing straight to the stream, closing generator closes the stream **/
+    public JsonGenerator generator(OutputStream out) throws IOException {
+        return factory == null ? JsonUtils.generator(out) : factory.createGenerator(out);
+    }
+
+    /**
+     * Picks supported media type with the highest quality, on equal quality the first listed one.
+     * Wildcards stand for JSON, but a listed type of the same quality is preferred to them.
+     * Unknown types and missing header give JSON.
+     */
+    public static ResponseEncoding negotiate(String accept) {
+        if (accept == null) {
+            return JSON;
+        }
+        ResponseEncoding best = JSON;
+        float bestQuality = 0;
+        float wildcardQuality = 0;
+        for (String range : accept.split(",")) {
+            String[] params = range.split(";");
+            String mediaType = params[0].trim().toLowerCase();
+            float quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (mediaType.equals("*/*") || mediaType.equals("application/*")) {
+                wildcardQuality = Math.max(wildcardQuality, quality);
+                continue;
+            }
+            ResponseEncoding encoding = byMediaType(mediaType);
+            if (encoding != null && quality > bestQuality) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return bestQuality >= wildcardQuality ? best : JSON;
+    }
+
+    private static ResponseEncoding byMediaType(String mediaType) {
+        for (ResponseEncoding encoding : values()) {
+            for (String type : encoding.mediaTypes) {
+                if (type.equals(mediaType)) {
+                    return encoding;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -1,8 +1,12 @@
 package monitoring.utils;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.apache.logging.log4j.Logger;
 import spark.Response;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
 /**
  * @author Ilya Sapachev <a href="mailto:sid-hugo@yandex-team.ru"></a>
  * @date 31.10.16
@@ -21,4 +25,30 @@ public class ResponseUtils {
         response.status(httpCode);
         return msg;
     }
+
+    /**
+     * Same as {@link #getOk(String, int, Response, Logger)}, but JSON message is written to the response
+     * in the given encoding and empty string is returned. Message that is not JSON is returned as is.
+     */
+    public static String getOk(String msg, int httpCode, ResponseEncoding encoding, Response response, Logger logger) {
+        if (!encoding.isBinary()) {
+            return getOk(msg, httpCode, response, logger);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(msg.length() / 2, 32));
+        try (JsonGenerator generator = encoding.generator(bytes)) {
+            JsonUtils.transcode(msg, generator);
+        } catch (IOException e) {
+            logger.debug("Response is not JSON, sending it as is: " + e.getMessage());
+            return getOk(msg, httpCode, response, logger);
+        }
+        logger.info(msg);
+        response.status(httpCode);
+        response.raw().setContentType(encoding.contentType);
+        try {
+            ResponseBody.output(response.raw()).write(bytes.toByteArray());
+        } catch (IOException e) {
+            logger.warn("Client went away while sending response: " + e.getMessage());
+        }
+        return "";
+    }
 }
@@ -0,0 +1,63 @@
+package monitoring.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most one asynchronous call per key at a time: callers that come while the call is in flight
+ * get its result instead of making their own call. Key is forgotten as soon as the call completes,
+ * so results are not cached.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong shared = new AtomicLong(0);
+
+    /**
+     * @return future completed with result of the call in flight for this key or of the new one.
+     * Every caller gets its own future, so cancelling it does not affect the others.
+     */
+    public CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> existing = inFlight.get(key);
+        if (existing == null) {
+            CompletableFuture<V> mine = new CompletableFuture<>();
+            existing = inFlight.putIfAbsent(key, mine);
+            if (existing == null) {
+                start(key, mine, call);
+                return mine.thenApply(Function.identity());
+            }
+        }
+        shared.incrementAndGet();
+        return existing.thenApply(Function.identity());
+    }
+
+    /** @return number of callers that got result of somebody else's call **/
+    public long getShared() {
+        return shared.get();
+    }
+
+    /** @return number of calls in flight **/
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private void start(K key, CompletableFuture<V> mine, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> f;
+        try {
+            f = call.get();
+        } catch (RuntimeException e) {
+            f = FutureUtils.failed(e);
+        }
+        f.whenComplete((value, t) -> {
+            // removed first, so callers that come after completion make a new call
+            inFlight.remove(key, mine);
+            if (t == null) {
+                mine.complete(value);
+            } else {
+                mine.completeExceptionally(t);
+            }
+        });
+    }
+}
@@ -0,0 +1,181 @@
+package monitoring;
+
+import monitoring.config.RegistrySettings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Crash is simulated by opening a new table over the same directory without closing the old one: writes to
+ * the mapped log are already in the page cache, so the new table sees exactly what a restarted process would.
+ */
+public class MetricsInfoStoreTest {
+    // header and checksum of a log record without its strings
+    private static final int RECORD_OVERHEAD = 1 + 8 + 3 * 2 + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void idsSurviveCleanRestart() throws IOException {
+        MetricsInfoTable table = open();
+        long cpu = table.addMetricInfo("host1", "80", "cpu");
+        long mem = table.addMetricInfo("host2", "80", "mem");
+        table.close();
+        assertFalse(Files.exists(snapshotTemp()));
+
+        MetricsInfoTable restored = open();
+        assertEquals(2, restored.size());
+        assertEquals(Long.valueOf(cpu), restored.getMetricInfoId("host1", "80", "cpu"));
+        assertEquals(Long.valueOf(mem), restored.getMetricInfoId("host2", "80", "mem"));
+        assertEquals("host1", restored.getMetricInfo(cpu).getHost());
+        assertEquals(1, restored.getByType("mem").size());
+    }
+
+    @Test
+    public void logIsReplayedAfterCrash() throws IOException {
+        MetricsInfoTable table = open();
+        long cpu = table.addMetricInfo("host1", "80", "cpu");
+        table.addMetricInfo("host1", "80", "mem");
+        long replaced = table.addMetricInfo("host2", "80", "disk");
+        long disk = table.addMetricInfo("host2", "80", "disk");
+        table.removeMetricInfo("host1", "80", "mem");
+
+        MetricsInfoTable restored = open();
+        assertEquals(2, restored.size());
+        assertEquals(Long.valueOf(cpu), restored.getMetricInfoId("host1", "80", "cpu"));
+        assertEquals(Long.valueOf(disk), restored.getMetricInfoId("host2", "80", "disk"));
+        assertNull(restored.getMetricInfoId("host1", "80", "mem"));
+        assertNull(restored.getMetricInfo(replaced));
+        assertEquals(1, restored.getByHost("host1", null).size());
+    }
+
+    @Test
+    public void restartRightAfterSnapshot() throws IOException {
+        MetricsInfoTable table = open();
+        long cpu = table.addMetricInfo("host1", "80", "cpu");
+        table.compact();
+        assertTrue(Files.exists(snapshot()));
+        assertEquals(0, readLog()[0]);
+
+        MetricsInfoTable restored = open();
+        assertEquals(1, restored.size());
+        assertEquals(Long.valueOf(cpu), restored.getMetricInfoId("host1", "80", "cpu"));
+        long mem = restored.addMetricInfo("host1", "80", "mem");
+
+        MetricsInfoTable again = open();
+        assertEquals(2, again.size());
+        assertEquals(Long.valueOf(cpu), again.getMetricInfoId("host1", "80", "cpu"));
+        assertEquals(Long.valueOf(mem), again.getMetricInfoId("host1", "80", "mem"));
+    }
+
+    @Test
+    public void replayOverSnapshotIsIdempotent() throws IOException {
+        MetricsInfoTable table = open();
+        long cpu = table.addMetricInfo("host1", "80", "cpu");
+        table.addMetricInfo("host1", "80", "mem");
+        table.removeMetricInfo("host1", "80", "mem");
+        byte[] logBeforeSnapshot = readLog();
+        table.compact();
+        // crash after snapshot was renamed but before log was cleared
+        writeLog(0, logBeforeSnapshot);
+
+        MetricsInfoTable restored = open();
+        assertEquals(1, restored.size());
+        assertEquals(Long.valueOf(cpu), restored.getMetricInfoId("host1", "80", "cpu"));
+        assertNull(restored.getMetricInfoId("host1", "80", "mem"));
+    }
+
+    @Test
+    public void tornLastRecordIsDropped() throws IOException {
+        MetricsInfoTable table = open();
+        long cpu = table.addMetricInfo("host1", "80", "cpu");
+        table.addMetricInfo("host1", "80", "mem");
+        // checksum of the second record is overwritten, as if the crash happened in the middle of it
+        int second = RECORD_OVERHEAD + "host1".length() + "80".length() + "cpu".length();
+        int secondChecksum = second + RECORD_OVERHEAD - 4 + "host1".length() + "80".length() + "mem".length();
+        writeLog(secondChecksum, new byte[]{1, 2, 3, 4});
+
+        MetricsInfoTable restored = open();
+        assertEquals(1, restored.size());
+        assertEquals(Long.valueOf(cpu), restored.getMetricInfoId("host1", "80", "cpu"));
+        assertNull(restored.getMetricInfoId("host1", "80", "mem"));
+
+        // torn record is zeroed, so records appended after it are replayed next time
+        byte[] log = readLog();
+        for (int i = second; i < secondChecksum + 4; i++) {
+            assertEquals(0, log[i]);
+        }
+        long disk = restored.addMetricInfo("host2", "80", "disk");
+        MetricsInfoTable again = open();
+        assertEquals(2, again.size());
+        assertEquals(Long.valueOf(disk), again.getMetricInfoId("host2", "80", "disk"));
+    }
+
+    @Test
+    public void partiallyWrittenLastRecordIsDropped() throws IOException {
+        MetricsInfoTable table = open();
+        long cpu = table.addMetricInfo("host1", "80", "cpu");
+        int end = RECORD_OVERHEAD + "host1".length() + "80".length() + "cpu".length();
+        // only op and id of the next record reached the disk
+        writeLog(end, ByteBuffer.allocate(9).put((byte) 1).putLong(42).array());
+
+        MetricsInfoTable restored = open();
+        assertEquals(1, restored.size());
+        assertEquals(Long.valueOf(cpu), restored.getMetricInfoId("host1", "80", "cpu"));
+        assertNull(restored.getMetricInfo(42));
+    }
+
+    @Test
+    public void fullLogIsCompactedOnAppend() throws IOException {
+        // log of minimal size fits one record of maximal length, a few thousand short ones fill it
+        MetricsInfoTable table = open(1);
+        for (int i = 0; i < 10000; i++) {
+            table.addMetricInfo("host" + i, "80", "cpu");
+        }
+        assertTrue(Files.exists(snapshot()));
+
+        MetricsInfoTable restored = open();
+        assertEquals(10000, restored.size());
+        assertEquals(table.getMetricInfoId("host9999", "80", "cpu"), restored.getMetricInfoId("host9999", "80", "cpu"));
+    }
+
+    private MetricsInfoTable open() throws IOException {
+        return open(64 * 1024);
+    }
+
+    private MetricsInfoTable open(long logSize) throws IOException {
+        return new MetricsInfoTable(new MetricsInfoStore(
+                new RegistrySettings(true, folder.getRoot().getPath(), logSize, 0, false)));
+    }
+
+    private Path snapshot() {
+        return folder.getRoot().toPath().resolve("metrics.snapshot");
+    }
+
+    private Path snapshotTemp() {
+        return folder.getRoot().toPath().resolve("metrics.snapshot.tmp");
+    }
+
+    private byte[] readLog() throws IOException {
+        return Files.readAllBytes(folder.getRoot().toPath().resolve("metrics.log"));
+    }
+
+    private void writeLog(long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(folder.getRoot().toPath().resolve("metrics.log"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+}
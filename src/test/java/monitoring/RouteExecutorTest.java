@@ -0,0 +1,288 @@
+package monitoring;
+
+import com.typesafe.config.ConfigFactory;
+import monitoring.config.Configuration;
+import monitoring.utils.ResponseBody;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.http.HttpStatus;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+import spark.Spark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static monitoring.utils.ResponseUtils.getError;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Runs routes in embedded Jetty and checks what client gets in both execution modes **/
+public class RouteExecutorTest {
+    private static final Logger logger = LogManager.getLogger(RouteExecutorTest.class);
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    // above compression min-size of config/application.conf
+    private static final String LARGE_BODY = String.join("", Collections.nCopies(200, "{\"value\":\"42\"},"));
+    private static int port;
+    // released by the test once it has read the first part of /paced
+    private static volatile CountDownLatch firstPartRead = new CountDownLatch(0);
+    private static volatile boolean secondPartWritten;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Spark.port(port);
+        RouteExecutor async = new RouteExecutor(configuration(true));
+        RouteExecutor sync = new RouteExecutor(configuration(false));
+        Handler handler = new TestHandler();
+        for (String method : new String[]{"/later", "/now", "/fail", "/badRequest", "/never", "/written", "/streamed", "/paced"}) {
+            Spark.get("/async" + method, async.route(handler, method));
+            Spark.get("/sync" + method, sync.route(handler, method));
+        }
+        Spark.get("/timed", sync.timed("/timed", (req, res) -> LARGE_BODY));
+        Spark.get("/timedRaw", sync.timedRaw("/timedRaw", (req, res) -> {
+            res.raw().getOutputStream().write(LARGE_BODY.getBytes(StandardCharsets.UTF_8));
+            return "";
+        }));
+        Spark.awaitInitialization();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        Spark.stop();
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void suspendedRequestGetsHandlerResult() throws IOException {
+        assertResponse(HttpStatus.OK_200, "done later", "/async/later");
+    }
+
+    @Test
+    public void completedRequestIsNotSuspended() throws IOException {
+        assertResponse(HttpStatus.OK_200, "done now", "/async/now");
+    }
+
+    @Test
+    public void failureOfSuspendedRequestIsServerError() throws IOException {
+        assertResponse(HttpStatus.INTERNAL_SERVER_ERROR_500, "Unexpected error: backend failed", "/async/fail");
+    }
+
+    @Test
+    public void suspendedRequestGetsStatusSetByHandler() throws IOException {
+        assertResponse(HttpStatus.BAD_REQUEST_400, "Bad parameter", "/async/badRequest");
+    }
+
+    @Test
+    public void suspendedRequestTimesOut() throws IOException {
+        assertResponse(HttpStatus.INTERNAL_SERVER_ERROR_500, "Request timed out", "/async/never");
+    }
+
+    @Test
+    public void bodyWrittenByHandlerOfSuspendedRequestIsSent() throws IOException {
+        assertResponse(HttpStatus.OK_200, "written later", "/async/written");
+    }
+
+    @Test
+    public void streamedBodyIsSentAsItIsWritten() throws IOException {
+        assertResponse(HttpStatus.OK_200, "first part, second part", "/async/streamed");
+    }
+
+    @Test
+    public void synchronousModeGetsTheSameResponses() throws IOException {
+        assertResponse(HttpStatus.OK_200, "done later", "/sync/later");
+        assertResponse(HttpStatus.INTERNAL_SERVER_ERROR_500, "Unexpected error: backend failed", "/sync/fail");
+        assertResponse(HttpStatus.BAD_REQUEST_400, "Bad parameter", "/sync/badRequest");
+        assertResponse(HttpStatus.INTERNAL_SERVER_ERROR_500, "Request timed out", "/sync/never");
+        assertResponse(HttpStatus.OK_200, "written later", "/sync/written");
+        assertResponse(HttpStatus.OK_200, "first part, second part", "/sync/streamed");
+    }
+
+    @Test
+    public void compressedStreamSendsEveryFlushedPart() throws Exception {
+        for (String path : new String[]{"/async/paced", "/sync/paced"}) {
+            firstPartRead = new CountDownLatch(1);
+            secondPartWritten = false;
+            HttpURLConnection connection = open(path, "gzip");
+            try {
+                assertEquals(path, HttpStatus.OK_200, connection.getResponseCode());
+                assertEquals(path, "gzip", connection.getHeaderField("Content-Encoding"));
+                InputStream in = new GZIPInputStream(connection.getInputStream());
+                byte[] first = new byte["first part".length()];
+                for (int read = 0; read < first.length; ) {
+                    read += in.read(first, read, first.length - read);
+                }
+                // handler waits for this, so the first part came with sync flush and not with the end of stream
+                assertFalse(path, secondPartWritten);
+                assertEquals(path, "first part", new String(first, StandardCharsets.UTF_8));
+                firstPartRead.countDown();
+                assertEquals(path, ", second part", new String(readAll(in), StandardCharsets.UTF_8));
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void timedRouteIsCompressedAndRawOneIsNot() throws IOException {
+        HttpURLConnection timed = open("/timed", "gzip");
+        try {
+            assertEquals("gzip", timed.getHeaderField("Content-Encoding"));
+            assertEquals("Accept-Encoding", timed.getHeaderField("Vary"));
+            assertEquals(LARGE_BODY, new String(readAll(new GZIPInputStream(timed.getInputStream())), StandardCharsets.UTF_8));
+        } finally {
+            timed.disconnect();
+        }
+        HttpURLConnection raw = open("/timedRaw", "gzip");
+        try {
+            assertNull(raw.getHeaderField("Content-Encoding"));
+            assertNull(raw.getHeaderField("Vary"));
+            assertEquals(LARGE_BODY, new String(readAll(raw.getInputStream()), StandardCharsets.UTF_8));
+        } finally {
+            raw.disconnect();
+        }
+    }
+
+    private static Configuration configuration(boolean asyncRoutes) {
+        return new Configuration(ConfigFactory.parseString(
+                "asyncRoutes = " + asyncRoutes + "\n" +
+                "network.indexing-timeout = 200 ms\n" +
+                "network.storage-timeout = 200 ms")
+                .withFallback(ConfigFactory.parseFile(new File("config/application.conf")).getConfig("monitoring-controller")));
+    }
+
+    private static void assertResponse(int status, String body, String path) throws IOException {
+        HttpURLConnection connection = open(path, null);
+        try {
+            assertEquals(path, status, connection.getResponseCode());
+            InputStream in = status < HttpStatus.BAD_REQUEST_400 ? connection.getInputStream() : connection.getErrorStream();
+            assertTrue(path + " has no body", in != null);
+            assertEquals(path, body, new String(readAll(in), StandardCharsets.UTF_8));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(String path, String acceptEncoding) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        return connection;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            received.write(buffer, 0, n);
+        }
+        return received.toByteArray();
+    }
+
+    private static class TestHandler extends Handler {
+        @Override
+        public CompletionStage<String> handleAsync(String method, Request request, Response response) {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            switch (method) {
+                case "/now":
+                    result.complete("done now");
+                    break;
+                case "/later":
+                    later(() -> result.complete("done later"));
+                    break;
+                case "/fail":
+                    later(() -> result.completeExceptionally(new RuntimeException("backend failed")));
+                    break;
+                case "/badRequest":
+                    later(() -> result.complete(getError("Bad parameter", HttpStatus.BAD_REQUEST_400, response, logger)));
+                    break;
+                case "/written":
+                    // whole body is written and closed by handler, like buffered /getMetrics
+                    later(() -> {
+                        try (OutputStream out = ResponseBody.output(response.raw())) {
+                            response.raw().setStatus(HttpStatus.OK_200);
+                            out.write("written later".getBytes(StandardCharsets.UTF_8));
+                        } catch (IOException e) {
+                            result.completeExceptionally(e);
+                            return;
+                        }
+                        result.complete("");
+                    });
+                    break;
+                case "/streamed":
+                    // first part is flushed before route returns, like streamed /getMetrics
+                    try {
+                        response.raw().setStatus(HttpStatus.OK_200);
+                        OutputStream out = ResponseBody.output(response.raw());
+                        out.write("first part".getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                        later(() -> {
+                            try {
+                                out.write(", second part".getBytes(StandardCharsets.UTF_8));
+                                out.close();
+                                result.complete("");
+                            } catch (IOException e) {
+                                result.completeExceptionally(e);
+                            }
+                        });
+                    } catch (IOException e) {
+                        result.completeExceptionally(e);
+                    }
+                    break;
+                case "/paced":
+                    // like streamed /getMetrics, the second part is written only after the client got the first one
+                    try {
+                        response.raw().setStatus(HttpStatus.OK_200);
+                        OutputStream out = ResponseBody.output(response.raw());
+                        out.write("first part".getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                        CountDownLatch read = firstPartRead;
+                        timer.execute(() -> {
+                            try {
+                                read.await(1, TimeUnit.SECONDS);
+                                secondPartWritten = true;
+                                out.write(", second part".getBytes(StandardCharsets.UTF_8));
+                                out.close();
+                                result.complete("");
+                            } catch (IOException | InterruptedException e) {
+                                result.completeExceptionally(e);
+                            }
+                        });
+                    } catch (IOException e) {
+                        result.completeExceptionally(e);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return result;
+        }
+
+        private static void later(Runnable action) {
+            timer.schedule(action, 50, TimeUnit.MILLISECONDS);
+        }
+    }
+}
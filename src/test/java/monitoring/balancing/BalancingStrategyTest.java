@@ -0,0 +1,143 @@
+package monitoring.balancing;
+
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BalancingStrategyTest {
+    @Test
+    public void roundRobinVisitsServersInTurn() throws MalformedURLException {
+        Backend[] backends = {backend(1, 1), backend(2, 1), backend(3, 1)};
+        BalancingStrategy strategy = new RoundRobinStrategy();
+        for (int i = 0; i < 6; i++) {
+            assertSame(backends[i % 3], strategy.pick(backends));
+        }
+    }
+
+    @Test
+    public void weightedSplitsRequestsByWeight() throws MalformedURLException {
+        Backend[] backends = {backend(1, 1), backend(2, 3)};
+        Map<Backend, Integer> picks = count(new WeightedStrategy(), backends, 400);
+        assertEquals(100, (int) picks.get(backends[0]));
+        assertEquals(300, (int) picks.get(backends[1]));
+    }
+
+    @Test
+    public void weightedFallsBackToRoundRobinWhenTotalOverflows() throws MalformedURLException {
+        Backend[] backends = {backend(1, Integer.MAX_VALUE), backend(2, Integer.MAX_VALUE)};
+        Map<Backend, Integer> picks = count(new WeightedStrategy(), backends, 10);
+        assertEquals(5, (int) picks.get(backends[0]));
+        assertEquals(5, (int) picks.get(backends[1]));
+    }
+
+    @Test
+    public void leastOutstandingPicksLeastBusyServer() throws MalformedURLException {
+        Backend[] backends = {backend(1, 1), backend(2, 1), backend(3, 1)};
+        backends[0].start();
+        backends[2].start();
+        backends[2].start();
+        BalancingStrategy strategy = new LeastOutstandingStrategy();
+        for (int i = 0; i < 20; i++) {
+            assertSame(backends[1], strategy.pick(backends));
+        }
+    }
+
+    @Test
+    public void powerOfTwoChoicesPicksCheaperOfTwo() throws MalformedURLException {
+        Backend slow = backend(1, 1);
+        Backend fast = backend(2, 1);
+        slow.start();
+        slow.finish(System.nanoTime() - 1_000_000_000L, null);
+        fast.start();
+        fast.finish(System.nanoTime() - 1_000_000L, null);
+        Backend[] backends = {slow, fast};
+        BalancingStrategy strategy = new PowerOfTwoChoicesStrategy();
+        for (int i = 0; i < 20; i++) {
+            assertSame(fast, strategy.pick(backends));
+        }
+
+        // fast server with many outstanding requests costs more than slow idle one
+        for (int i = 0; i < 5000; i++) {
+            fast.start();
+        }
+        for (int i = 0; i < 20; i++) {
+            assertSame(slow, strategy.pick(backends));
+        }
+    }
+
+    @Test
+    public void powerOfTwoChoicesTakesUnmeasuredServerAsFastAsTheOther() throws MalformedURLException {
+        Backend measured = backend(1, 1);
+        measured.start();
+        measured.finish(System.nanoTime() - 1_000_000L, null);
+        Backend fresh = backend(2, 1);
+        Backend[] backends = {measured, fresh};
+        BalancingStrategy strategy = new PowerOfTwoChoicesStrategy();
+        measured.start();
+        assertSame(fresh, strategy.pick(backends));
+
+        // new server is not flooded while its first requests are in flight
+        fresh.start();
+        fresh.start();
+        assertSame(measured, strategy.pick(backends));
+        assertSame(measured, strategy.pick(new Backend[]{measured}));
+    }
+
+    @Test
+    public void powerOfTwoChoicesAvoidsFailingServer() throws MalformedURLException {
+        Backend healthy = backend(1, 1);
+        healthy.start();
+        healthy.finish(System.nanoTime() - 1_000_000L, null);
+        // fails fast and never gets latency, but stays in rotation below failure threshold
+        Backend failing = backend(2, 1);
+        for (int i = 0; i < 3; i++) {
+            failing.start();
+            failing.finish(System.nanoTime(), new RuntimeException("refused"));
+        }
+        assertEquals(0, failing.getLatency(), 0);
+        Backend[] backends = {failing, healthy};
+        BalancingStrategy strategy = new PowerOfTwoChoicesStrategy();
+        for (int i = 0; i < 20; i++) {
+            assertSame(healthy, strategy.pick(backends));
+        }
+
+        // the same for servers without any latency measured
+        Backend fresh = backend(3, 1);
+        for (int i = 0; i < 20; i++) {
+            assertSame(fresh, strategy.pick(new Backend[]{failing, fresh}));
+        }
+
+        // server that recovered is picked again
+        for (int i = 0; i < 20; i++) {
+            failing.start();
+            failing.finish(System.nanoTime() - 500_000L, null);
+        }
+        assertTrue(failing.getFailureRate() < 0.01);
+        assertSame(failing, strategy.pick(backends));
+    }
+
+    @Test
+    public void modesAreFoundByName() {
+        assertEquals(BalancingMode.LEAST_OUTSTANDING, BalancingMode.byName(" least-outstanding "));
+        assertEquals(BalancingMode.P2C, BalancingMode.byName("p2c"));
+    }
+
+    private static Map<Backend, Integer> count(BalancingStrategy strategy, Backend[] backends, int requests) {
+        Map<Backend, Integer> picks = new HashMap<>();
+        for (int i = 0; i < requests; i++) {
+            picks.merge(strategy.pick(backends), 1, Integer::sum);
+        }
+        return picks;
+    }
+
+    private static Backend backend(int n, int weight) throws MalformedURLException {
+        return new Backend("test", new URL("http://server" + n + ":8080"), weight, 0.3, new CircuitBreaker(5, 30_000));
+    }
+}
@@ -0,0 +1,154 @@
+package monitoring.balancing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60_000);
+        assertFalse(breaker.onFailure());
+        assertFalse(breaker.onFailure());
+        assertTrue(breaker.onFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isAvailable());
+        assertFalse(breaker.onFailure());
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 60_000);
+        breaker.onFailure();
+        assertFalse(breaker.onSuccess(System.nanoTime()));
+        assertFalse(breaker.onFailure());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.isAvailable());
+    }
+
+    @Test
+    public void letsSingleTrialThroughAfterOpenDuration() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.onFailure();
+        assertFalse(breaker.isAvailable());
+        Thread.sleep(40);
+        assertTrue(breaker.isAvailable());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryClaimTrial());
+        assertFalse(breaker.isAvailable());
+        long trialStart = System.nanoTime();
+        assertFalse(breaker.tryClaimTrial());
+        assertTrue(breaker.onSuccess(trialStart));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.isAvailable());
+    }
+
+    @Test
+    public void lateSuccessOfRequestSentBeforeOpeningDoesNotClose() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60_000);
+        long sentBefore = System.nanoTime();
+        breaker.onFailure();
+        assertFalse(breaker.onSuccess(sentBefore));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isAvailable());
+
+        breaker.onProbeSuccess();
+        assertTrue(breaker.tryClaimTrial());
+        long trialStart = System.nanoTime();
+        assertFalse(breaker.onSuccess(sentBefore));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryClaimTrial());
+        assertTrue(breaker.onSuccess(trialStart));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void failedTrialOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(5, 20);
+        for (int i = 0; i < 5; i++) {
+            breaker.onFailure();
+        }
+        Thread.sleep(40);
+        assertTrue(breaker.isAvailable());
+        assertTrue(breaker.tryClaimTrial());
+        assertTrue(breaker.onFailure());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isAvailable());
+    }
+
+    @Test
+    public void probeSuccessSkipsOpenDuration() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60_000);
+        breaker.onFailure();
+        assertFalse(breaker.isAvailable());
+        breaker.onProbeSuccess();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.isAvailable());
+    }
+
+    @Test
+    public void cancelledTrialLetsAnotherOneThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60_000);
+        breaker.onFailure();
+        breaker.onProbeSuccess();
+        assertTrue(breaker.tryClaimTrial());
+        assertFalse(breaker.isAvailable());
+        breaker.onCancel();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryClaimTrial());
+    }
+
+    @Test
+    public void unfinishedTrialExpiresAfterOpenDuration() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.onFailure();
+        breaker.onProbeSuccess();
+        assertTrue(breaker.tryClaimTrial());
+        assertFalse(breaker.tryClaimTrial());
+        Thread.sleep(40);
+        assertTrue(breaker.isAvailable());
+        assertTrue(breaker.tryClaimTrial());
+    }
+
+    @Test
+    public void onlyOneOfConcurrentRequestsGetsTheTrial() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 100; round++) {
+                CircuitBreaker breaker = new CircuitBreaker(1, 60_000);
+                breaker.onFailure();
+                breaker.onProbeSuccess();
+                CyclicBarrier start = new CyclicBarrier(threads);
+                AtomicInteger trials = new AtomicInteger(0);
+                List<Future<?>> results = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        if (breaker.isAvailable() && breaker.tryClaimTrial()) {
+                            trials.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get(1, TimeUnit.SECONDS);
+                }
+                assertEquals(1, trials.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package monitoring.downsampling;
+
+import monitoring.storage.StorageResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownsamplerTest {
+    @Test
+    public void strideKeepsEvenlySpreadPoints() {
+        List<StorageResponse> result = new StrideDownsampler().downsample(series(100), 10);
+        assertEquals(10, result.size());
+        assertEquals("0", result.get(0).getTs());
+        assertEquals("90", result.get(9).getTs());
+    }
+
+    @Test
+    public void lttbKeepsExactlyMaxPointsAndBothEnds() {
+        List<StorageResponse> result = new LttbDownsampler().downsample(series(1000), 50);
+        assertEquals(50, result.size());
+        assertEquals("0", result.get(0).getTs());
+        assertEquals("999", result.get(49).getTs());
+        assertOrdered(result);
+    }
+
+    @Test
+    public void lttbKeepsSpike() {
+        List<StorageResponse> points = series(1000);
+        points.set(500, point(500, 1e6));
+        List<StorageResponse> result = new LttbDownsampler().downsample(points, 20);
+        assertTrue(timestamps(result).contains("500"));
+    }
+
+    @Test
+    public void minMaxKeepsAtMostMaxPointsAndExtremes() {
+        List<StorageResponse> points = series(1000);
+        points.set(123, point(123, -1e6));
+        points.set(777, point(777, 1e6));
+        List<StorageResponse> result = new MinMaxDownsampler().downsample(points, 20);
+        assertTrue(result.size() <= 20);
+        assertTrue(timestamps(result).contains("123"));
+        assertTrue(timestamps(result).contains("777"));
+        assertOrdered(result);
+    }
+
+    @Test
+    public void avgReturnsMaxPointsWithBucketAverages() {
+        List<StorageResponse> points = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            points.add(point(i, i < 50 ? 1 : 3));
+        }
+        List<StorageResponse> result = new AvgDownsampler().downsample(points, 2);
+        assertEquals(2, result.size());
+        assertEquals(1.0, MetricValues.parse(result.get(0).getValue()), 0);
+        assertEquals(3.0, MetricValues.parse(result.get(1).getValue()), 0);
+        assertEquals("k24", result.get(0).getKey());
+    }
+
+    @Test
+    public void shortSeriesIsReturnedAsIs() {
+        List<StorageResponse> points = series(5);
+        for (DownsampleMode mode : DownsampleMode.values()) {
+            assertEquals(mode.name(), timestamps(points), timestamps(mode.downsampler.downsample(points, 10)));
+        }
+    }
+
+    @Test
+    public void pointsWithoutNumericValueAreDroppedAndSeriesIsSorted() {
+        List<StorageResponse> points = Arrays.asList(
+                point(3, 3),
+                new StorageResponse("k1", "1", "{\"metric\": {\"value\": \"n/a\"}}"),
+                point(2, 2),
+                new StorageResponse("kx", "x", "1"),
+                point(0, 0));
+        List<StorageResponse> result = new LttbDownsampler().downsample(points, 10);
+        assertEquals(Arrays.asList("0", "2", "3"), timestamps(result));
+    }
+
+    private static List<StorageResponse> series(int n) {
+        List<StorageResponse> points = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            points.add(point(i, Math.sin(i / 10.0)));
+        }
+        return points;
+    }
+
+    private static StorageResponse point(long ts, double value) {
+        return new StorageResponse("k" + ts, String.valueOf(ts),
+                "{\"metric_id\": \"cpu\", \"metric\": {\"value\": " + value + "}}");
+    }
+
+    private static List<String> timestamps(List<StorageResponse> points) {
+        List<String> ts = new ArrayList<>(points.size());
+        for (StorageResponse point : points) {
+            ts.add(point.getTs());
+        }
+        return ts;
+    }
+
+    private static void assertOrdered(List<StorageResponse> points) {
+        for (int i = 1; i < points.size(); i++) {
+            assertTrue(Long.parseLong(points.get(i - 1).getTs()) < Long.parseLong(points.get(i).getTs()));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package monitoring.indexing;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DelimitedRecordFramerTest {
+    private final List<String> records = new ArrayList<>();
+    private final DelimitedRecordFramer framer = new DelimitedRecordFramer((byte) '@');
+
+    @Test
+    public void splitsChunkIntoRecords() throws Exception {
+        feed("{\"key\":\"a\"}@{\"key\":\"b\"}@");
+        framer.finish(this::collect);
+        assertEquals(Arrays.asList("{\"key\":\"a\"}", "{\"key\":\"b\"}"), records);
+    }
+
+    @Test
+    public void joinsRecordCutBetweenChunks() throws Exception {
+        feed("{\"key\":");
+        feed("\"a\"}@{\"k");
+        feed("ey\":\"b\"}");
+        assertEquals(Arrays.asList("{\"key\":\"a\"}"), records);
+        framer.finish(this::collect);
+        assertEquals(Arrays.asList("{\"key\":\"a\"}", "{\"key\":\"b\"}"), records);
+    }
+
+    @Test
+    public void chunkMayEndRightAtDelimiter() throws Exception {
+        feed("first@");
+        feed("@second@");
+        framer.finish(this::collect);
+        assertEquals(Arrays.asList("first", "second"), records);
+    }
+
+    @Test
+    public void skipsBlankRecords() throws Exception {
+        feed(" @\n@one@ \r\n");
+        framer.finish(this::collect);
+        assertEquals(Arrays.asList("one"), records);
+    }
+
+    @Test
+    public void recordLongerThanInitialBufferIsKeptWhole() throws Exception {
+        StringBuilder longRecord = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longRecord.append((char) ('a' + i % 26));
+        }
+        String record = longRecord.toString();
+        for (int i = 0; i < record.length(); i += 7) {
+            feed(record.substring(i, Math.min(record.length(), i + 7)));
+        }
+        feed("@");
+        assertEquals(Arrays.asList(record), records);
+    }
+
+    @Test
+    public void respectsChunkOffsetAndLength() throws Exception {
+        byte[] chunk = "xxone@twoxx".getBytes(StandardCharsets.UTF_8);
+        framer.feed(chunk, 2, chunk.length - 4, this::collect);
+        framer.finish(this::collect);
+        assertEquals(Arrays.asList("one", "two"), records);
+    }
+
+    private void feed(String chunk) throws Exception {
+        byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+        framer.feed(bytes, 0, bytes.length, this::collect);
+    }
+
+    private void collect(byte[] buffer, int offset, int length) {
+        records.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+    }
+}
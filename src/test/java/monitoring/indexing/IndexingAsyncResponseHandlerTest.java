@@ -0,0 +1,150 @@
+package monitoring.indexing;
+
+import com.typesafe.config.ConfigFactory;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import monitoring.ServerManager;
+import monitoring.config.Configuration;
+import monitoring.storage.StorageClient;
+import monitoring.storage.StorageResponse;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseHeaders;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Feeds streamed indexing response to the handler, storage answers when the test tells it to **/
+public class IndexingAsyncResponseHandlerTest {
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private ServerManager storageManager;
+    private StorageClient storageClient;
+    private final Map<String, CompletableFuture<StorageResponse>> requested = new ConcurrentHashMap<>();
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+
+    @Before
+    public void setUp() {
+        Configuration config = new Configuration(ConfigFactory.parseString(
+                "network.health.probe-interval = 0 s\n" +
+                "storage-client.fan-out.max-in-flight-per-query = " + MAX_IN_FLIGHT)
+                .withFallback(ConfigFactory.parseFile(new File("config/application.conf")).getConfig("monitoring-controller")));
+        storageManager = new ServerManager("storage service", config.httpClient, config.balancing, config.health);
+        storageClient = new StorageClient(storageManager, config.timeouts, config.storageClient) {
+            @Override
+            public CompletableFuture<StorageResponse> get(String key) {
+                return requested.computeIfAbsent(key, k -> new CompletableFuture<>());
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        storageManager.close();
+        channel.close();
+    }
+
+    @Test
+    public void readingIsPausedWhileKeysWaitForStorage() throws Exception {
+        IndexingAsyncResponseHandler handler = handler(0);
+        handler.onHeadersReceived(headers(null));
+        handler.onBodyPartReceived(part("{\"key\":\"k0\"}@{\"key\":\"k1\"}@{\"key\":\"k2\"}@{\"key\":\"k3\"}@"));
+        assertEquals(MAX_IN_FLIGHT, requested.size());
+        assertFalse(channel.config().isAutoRead());
+
+        answer("k0");
+        assertEquals(3, requested.size());
+        assertFalse(channel.config().isAutoRead());
+
+        // last waiting key got its permit
+        answer("k1");
+        assertEquals(4, requested.size());
+        assertTrue(channel.config().isAutoRead());
+
+        answer("k2");
+        answer("k3");
+        List<CompletableFuture<StorageResponse>> result = handler.onCompleted();
+        assertEquals(4, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals("k" + i, result.get(i).get(1, TimeUnit.SECONDS).getKey());
+        }
+    }
+
+    @Test
+    public void readingIsResumedWhenResponseEnds() throws Exception {
+        IndexingAsyncResponseHandler handler = handler(0);
+        handler.onHeadersReceived(headers(null));
+        handler.onBodyPartReceived(part("{\"key\":\"k0\"}@{\"key\":\"k1\"}@{\"key\":\"k2\"}@"));
+        assertFalse(channel.config().isAutoRead());
+        // connection goes back to pool readable, even though storage has not answered yet
+        handler.onCompleted();
+        assertTrue(channel.config().isAutoRead());
+
+        IndexingAsyncResponseHandler failed = handler(0);
+        failed.onHeadersReceived(headers(null));
+        failed.onBodyPartReceived(part("{\"key\":\"k3\"}@{\"key\":\"k4\"}@{\"key\":\"k5\"}@"));
+        assertFalse(channel.config().isAutoRead());
+        failed.onThrowable(new RuntimeException("connection reset"));
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    @Test
+    public void keysBelowLimitDoNotPauseReading() throws Exception {
+        IndexingAsyncResponseHandler handler = handler(0);
+        handler.onHeadersReceived(headers(null));
+        handler.onBodyPartReceived(part("{\"key\":\"k0\"}@{\"key\":\"k1\"}@"));
+        assertEquals(2, requested.size());
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    private IndexingAsyncResponseHandler handler(long since) {
+        IndexingAsyncResponseHandler handler = new IndexingAsyncResponseHandler(storageClient.newQuery(), 100, since);
+        handler.onTcpConnectSuccess(null, channel);
+        return handler;
+    }
+
+    private void answer(String key) {
+        requested.get(key).complete(new StorageResponse(key, "1", "1"));
+    }
+
+    static HttpResponseHeaders headers(String offset) {
+        HttpHeaders headers = new DefaultHttpHeaders();
+        if (offset != null) {
+            headers.add("offset", offset);
+        }
+        return new HttpResponseHeaders(headers);
+    }
+
+    static HttpResponseBodyPart part(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return new HttpResponseBodyPart(false) {
+            @Override
+            public int length() {
+                return bytes.length;
+            }
+
+            @Override
+            public byte[] getBodyPartBytes() {
+                return bytes;
+            }
+
+            @Override
+            public ByteBuffer getBodyByteBuffer() {
+                return ByteBuffer.wrap(bytes);
+            }
+        };
+    }
+}
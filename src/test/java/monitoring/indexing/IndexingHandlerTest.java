@@ -0,0 +1,309 @@
+package monitoring.indexing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.ConfigFactory;
+import monitoring.MetricsInfoTable;
+import monitoring.ServerManager;
+import monitoring.balancing.CircuitBreaker;
+import monitoring.config.Configuration;
+import monitoring.storage.StorageClient;
+import monitoring.storage.StorageResponse;
+import org.eclipse.jetty.http.HttpStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs /getMetrics against indexing service served from the test, which ignores since and sends all keys
+ * with offset 0, or without offset at all. Storage answers every key at once.
+ */
+public class IndexingHandlerTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final MetricsInfoTable table = new MetricsInfoTable();
+
+    private HttpServer server;
+    private ServerManager indexingManager;
+    private ServerManager storageManager;
+    private IndexingHandler handler;
+
+    // keys of the metric in index order
+    private final List<String> index = new CopyOnWriteArrayList<>();
+    // "GET path" for every request indexing got
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private volatile String offset = "0";
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+
+        Configuration config = new Configuration(ConfigFactory.parseString(
+                "network.health.probe-interval = 0 s")
+                .withFallback(ConfigFactory.parseFile(new File("config/application.conf")).getConfig("monitoring-controller")));
+        indexingManager = new ServerManager("indexing service", config.httpClient, config.balancing, config.health);
+        indexingManager.add(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/"));
+        storageManager = new ServerManager("storage service", config.httpClient, config.balancing, config.health);
+        StorageClient storageClient = new StorageClient(storageManager, config.timeouts, config.storageClient) {
+            @Override
+            public CompletableFuture<StorageResponse> get(String key) {
+                return CompletableFuture.completedFuture(new StorageResponse(key, "1", "1"));
+            }
+        };
+        table.addMetricInfo("host", "8080", "cpu");
+        handler = new IndexingHandler(config, table, indexingManager, storageClient);
+        for (int i = 0; i < 5; i++) {
+            index.add("k" + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        indexingManager.close();
+        storageManager.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void invalidQueryDoesNotClaimTrialOfRecoveringServer() throws Exception {
+        CircuitBreaker breaker = indexingManager.getServers().get(0).getBreaker();
+        while (breaker.getState() != CircuitBreaker.State.OPEN) {
+            breaker.onFailure();
+        }
+        breaker.onProbeSuccess();
+
+        for (String[] invalid : new String[][]{{"output", "xml"}, {"downsample", "cubic"}, {"since", "-1"}}) {
+            Client client = new Client();
+            client.params.put(invalid[0], invalid[1]);
+            client.get();
+            assertEquals(HttpStatus.BAD_REQUEST_400, client.status);
+            assertTrue(breaker.isAvailable());
+        }
+        assertTrue(requests.isEmpty());
+
+        // the first valid query is the trial
+        Client client = new Client();
+        client.get();
+        assertEquals(HttpStatus.OK_200, client.status);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void wholeResponseWithOffsetHasCursor() throws Exception {
+        assertCursorFollowsIndex(false, null);
+    }
+
+    @Test
+    public void streamedResponseWithOffsetHasCursor() throws Exception {
+        assertCursorFollowsIndex(true, null);
+        assertCursorFollowsIndex(true, "chunked");
+    }
+
+    @Test
+    public void wholeResponseWithoutOffsetHasNoCursor() throws Exception {
+        assertNoCursor(false, null);
+    }
+
+    @Test
+    public void streamedResponseWithoutOffsetHasNoCursor() throws Exception {
+        assertNoCursor(true, null);
+        assertNoCursor(true, "chunked");
+    }
+
+    private void assertCursorFollowsIndex(boolean stream, String output) throws Exception {
+        offset = "0";
+        JsonNode all = query(stream, output, "0");
+        assertEquals(Arrays.asList("k0", "k1", "k2", "k3", "k4"), keys(all));
+        assertEquals("5", all.get("cursor").asText());
+
+        index.add("k5");
+        index.add("k6");
+        JsonNode added = query(stream, output, "5");
+        assertEquals(Arrays.asList("k5", "k6"), keys(added));
+        assertEquals("7", added.get("cursor").asText());
+        assertTrue(requests.get(requests.size() - 1).endsWith("?since=5"));
+
+        JsonNode none = query(stream, output, "7");
+        assertTrue(keys(none).isEmpty());
+        assertEquals("7", none.get("cursor").asText());
+        index.remove("k5");
+        index.remove("k6");
+    }
+
+    private void assertNoCursor(boolean stream, String output) throws Exception {
+        offset = null;
+        for (String since : new String[]{"0", "3"}) {
+            // positions are unknown, so nothing is skipped
+            JsonNode page = query(stream, output, since);
+            assertEquals(Arrays.asList("k0", "k1", "k2", "k3", "k4"), keys(page));
+            assertFalse(page.has("cursor"));
+        }
+    }
+
+    private JsonNode query(boolean stream, String output, String since) throws Exception {
+        Client client = new Client();
+        client.params.put("stream", String.valueOf(stream));
+        client.params.put("since", since);
+        if (output != null) {
+            client.params.put("output", output);
+        }
+        JsonNode result = mapper.readTree(client.get());
+        assertEquals(HttpStatus.OK_200, client.status);
+        return result;
+    }
+
+    private static List<String> keys(JsonNode page) {
+        List<String> keys = new ArrayList<>();
+        for (JsonNode metric : page.get("metrics")) {
+            keys.add(metric.get("key").asText());
+        }
+        return keys;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().toString();
+            requests.add("GET " + path);
+            StringBuilder body = new StringBuilder();
+            if (exchange.getRequestHeaders().getFirst("stream") != null) {
+                if (offset != null) {
+                    exchange.getResponseHeaders().add("offset", offset);
+                }
+                for (String key : index) {
+                    body.append("{\"key\":\"").append(key).append("\"}@");
+                }
+            } else {
+                List<Map<String, String>> keys = new ArrayList<>();
+                for (String key : index) {
+                    Map<String, String> part = new HashMap<>();
+                    part.put("key", key);
+                    keys.add(part);
+                }
+                Map<String, Object> response = new HashMap<>();
+                response.put("keys", keys);
+                if (offset != null) {
+                    response.put("offset", offset);
+                }
+                body.append(mapper.writeValueAsString(response));
+            }
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /** Client of /getMetrics?host=host&port=8080&type=cpu **/
+    private class Client {
+        final Map<String, String> params = new HashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        volatile int status = HttpStatus.OK_200;
+
+        Client() {
+            params.put("host", "host");
+            params.put("port", "8080");
+            params.put("type", "cpu");
+        }
+
+        /** @return body written to the response or returned by the handler **/
+        String get() throws Exception {
+            ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) { }
+
+                @Override
+                public void write(int b) {
+                    synchronized (body) {
+                        body.write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    synchronized (body) {
+                        body.write(b, off, len);
+                    }
+                }
+            };
+            HttpServletResponse rawResponse = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, (p, method, args) -> {
+                        switch (method.getName()) {
+                            case "setStatus":
+                                status = (int) args[0];
+                                return null;
+                            case "getOutputStream":
+                                return out;
+                            case "hashCode":
+                                return System.identityHashCode(p);
+                            case "equals":
+                                return p == args[0];
+                            default:
+                                return null;
+                        }
+                    });
+            Request request = new Request() {
+                @Override
+                public String queryParams(String name) {
+                    return params.get(name);
+                }
+
+                @Override
+                public String headers(String header) {
+                    return null;
+                }
+            };
+            Response response = new Response() {
+                @Override
+                public void status(int statusCode) {
+                    status = statusCode;
+                }
+
+                @Override
+                public HttpServletResponse raw() {
+                    return rawResponse;
+                }
+            };
+            String result = handler.handleAsync("/getMetrics", request, response).get(5, TimeUnit.SECONDS);
+            synchronized (body) {
+                return body.size() > 0 ? new String(body.toByteArray(), StandardCharsets.UTF_8) : result;
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package monitoring.indexing;
+
+import com.typesafe.config.ConfigFactory;
+import monitoring.MetricsInfoTable;
+import monitoring.config.Configuration;
+import monitoring.indexing.TailSubscriberTest.FakeAsyncContext;
+import monitoring.indexing.TailSubscriberTest.FakeOutput;
+import monitoring.storage.StorageResponse;
+import org.eclipse.jetty.http.HttpStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Drives live tail with fake clients, indexing is replaced with a queue of points handed out to polls **/
+public class LiveTailTest {
+    private static final int BUFFER_SIZE = 2;
+    private static final int MAX_SUBSCRIBERS = 2;
+
+    private final MetricsInfoTable table = new MetricsInfoTable();
+    private final ConcurrentLinkedQueue<StorageResponse> points = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger polls = new AtomicInteger(0);
+    private volatile boolean sendsOffset = true;
+    private LiveTail liveTail;
+
+    @Before
+    public void setUp() {
+        Configuration config = new Configuration(ConfigFactory.parseString(
+                "network.health.probe-interval = 0 s\n" +
+                "tail.poll-interval = 10 ms\n" +
+                "tail.buffer-size = " + BUFFER_SIZE + "\n" +
+                "tail.max-subscribers = " + MAX_SUBSCRIBERS)
+                .withFallback(ConfigFactory.parseFile(new File("config/application.conf")).getConfig("monitoring-controller")));
+        table.addMetricInfo("host", "8080", "cpu");
+        IndexingHandler indexing = new IndexingHandler(config, table, null, null) {
+            @Override
+            CompletableFuture<MetricsPage<StorageResponse>> poll(long id, String timestamp, boolean isStream, long since) {
+                polls.incrementAndGet();
+                List<StorageResponse> page = new ArrayList<>();
+                for (StorageResponse point = points.poll(); point != null; point = points.poll()) {
+                    page.add(point);
+                }
+                return CompletableFuture.completedFuture(new MetricsPage<>(page, sendsOffset ? since + page.size() : null));
+            }
+        };
+        liveTail = new LiveTail(config, table, indexing);
+    }
+
+    @After
+    public void tearDown() {
+        liveTail.close();
+    }
+
+    @Test
+    public void pointsAreSentToEverySubscriberAndNewOnesGetRecentFirst() throws Exception {
+        Client first = subscribe();
+        publish("k1", "k2", "k3");
+        await(() -> first.out.names().contains("k3"));
+        assertEquals(Arrays.asList("k1", "k2", "k3"), metrics(first));
+
+        Client second = subscribe();
+        assertEquals(Arrays.asList("k2", "k3"), metrics(second));
+
+        publish("k4");
+        await(() -> second.out.names().contains("k4"));
+        await(() -> first.out.names().contains("k4"));
+        assertEquals(Arrays.asList("k1", "k2", "k3", "k4"), metrics(first));
+        assertEquals(Arrays.asList("k2", "k3", "k4"), metrics(second));
+    }
+
+    @Test
+    public void idleTailPingsSubscribers() throws Exception {
+        Client client = subscribe();
+        await(() -> client.out.names().contains("ping"));
+    }
+
+    @Test
+    public void subscribersOverLimitAreRejectedUntilOneGoesAway() throws Exception {
+        Client first = subscribe();
+        subscribe();
+        Client rejected = new Client();
+        assertTrue(rejected.handle().contains("limit is " + MAX_SUBSCRIBERS));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE_503, rejected.status);
+
+        // closed subscriber is forgotten on the next poll and frees its place
+        first.goAway();
+        long deadline = System.currentTimeMillis() + 5000;
+        Client client = new Client();
+        while (!client.handle().isEmpty()) {
+            assertTrue("place was not freed in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            client = new Client();
+        }
+        assertEquals(HttpStatus.OK_200, client.status);
+    }
+
+    @Test
+    public void pollingStopsWhenLastSubscriberGoesAway() throws Exception {
+        Client first = subscribe();
+        Client second = subscribe();
+        await(() -> polls.get() > 2);
+        first.goAway();
+        int before = polls.get();
+        await(() -> polls.get() > before + 2);
+
+        second.goAway();
+        awaitPollingStopped();
+
+        // the next subscriber starts polling again, both places are free
+        subscribe();
+        Client another = subscribe();
+        int stopped = polls.get();
+        await(() -> polls.get() > stopped);
+        publish("k1");
+        await(() -> another.out.names().contains("k1"));
+    }
+
+    @Test
+    public void tailEndsWhenMetricIsNotMonitored() throws Exception {
+        Client client = subscribe();
+        table.removeMetricInfo("host", "8080", "cpu");
+        await(() -> client.context.completions == 1);
+        assertEquals("end", last(client.out.names()));
+        awaitPollingStopped();
+    }
+
+    @Test
+    public void tailEndsWhenIndexingDoesNotSendOffset() throws Exception {
+        sendsOffset = false;
+        Client client = subscribe();
+        publish("k1");
+        await(() -> client.context.completions == 1);
+        assertEquals(Collections.singletonList("end"), client.out.names());
+        awaitPollingStopped();
+    }
+
+    @Test
+    public void closeEndsAllTails() throws Exception {
+        Client client = subscribe();
+        liveTail.close();
+        await(() -> client.context.completions == 1);
+        assertEquals("end", last(client.out.names()));
+        awaitPollingStopped();
+    }
+
+    @Test
+    public void unknownMetricIsBadRequest() throws IOException {
+        Client client = new Client();
+        client.params.put("type", "memory");
+        client.handle();
+        assertEquals(HttpStatus.BAD_REQUEST_400, client.status);
+
+        Client withoutType = new Client();
+        withoutType.params.remove("type");
+        withoutType.handle();
+        assertEquals(HttpStatus.BAD_REQUEST_400, withoutType.status);
+    }
+
+    private void publish(String... keys) {
+        for (String key : keys) {
+            points.add(new StorageResponse(key, "1", "1.5"));
+        }
+    }
+
+    private Client subscribe() throws IOException {
+        Client client = new Client();
+        assertEquals("", client.handle());
+        assertEquals(HttpStatus.OK_200, client.status);
+        return client;
+    }
+
+    private void awaitPollingStopped() throws InterruptedException {
+        int[] last = {-1};
+        await(() -> {
+            int now = polls.get();
+            boolean same = now == last[0];
+            last[0] = now;
+            return same;
+        }, 100);
+        Thread.sleep(100);
+        assertEquals(last[0], polls.get());
+    }
+
+    private static List<String> metrics(Client client) {
+        List<String> metrics = new ArrayList<>(client.out.names());
+        metrics.removeAll(Collections.singleton("ping"));
+        return metrics;
+    }
+
+    private static String last(List<String> list) {
+        return list.get(list.size() - 1);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        await(condition, 10);
+    }
+
+    private static void await(BooleanSupplier condition, long interval) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(interval);
+        }
+    }
+
+    /** Client of /tailMetrics?host=host&port=8080&type=cpu **/
+    private class Client {
+        final Map<String, String> params = new HashMap<>();
+        final FakeAsyncContext context = new FakeAsyncContext();
+        final FakeOutput out = new FakeOutput();
+        volatile int status = HttpStatus.OK_200;
+
+        Client() {
+            params.put("host", "host");
+            params.put("port", "8080");
+            params.put("type", "cpu");
+        }
+
+        String handle() throws IOException {
+            HttpServletRequest rawRequest = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{HttpServletRequest.class},
+                    (p, method, args) -> method.getName().equals("startAsync") ? context.proxy : null);
+            HttpServletResponse rawResponse = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, (p, method, args) -> {
+                        switch (method.getName()) {
+                            case "setStatus":
+                                status = (int) args[0];
+                                return null;
+                            case "getOutputStream":
+                                return out;
+                            default:
+                                return null;
+                        }
+                    });
+            Request request = new Request() {
+                @Override
+                public String queryParams(String name) {
+                    return params.get(name);
+                }
+
+                @Override
+                public HttpServletRequest raw() {
+                    return rawRequest;
+                }
+            };
+            Response response = new Response() {
+                @Override
+                public void status(int statusCode) {
+                    status = statusCode;
+                }
+
+                @Override
+                public HttpServletResponse raw() {
+                    return rawResponse;
+                }
+            };
+            return (String) liveTail.handle(request, response);
+        }
+
+        /** Connection is closed by the container **/
+        void goAway() throws IOException {
+            context.listeners.get(0).onComplete(null);
+        }
+    }
+}
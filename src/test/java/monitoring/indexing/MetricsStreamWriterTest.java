@@ -0,0 +1,176 @@
+package monitoring.indexing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import monitoring.storage.StorageResponse;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsStreamWriterTest {
+    @Test
+    public void metricsAreWrittenByWriterThreadWithCoalescedFlushes() throws Exception {
+        FakeOutput output = new FakeOutput();
+        MetricsStreamWriter writer = MetricsStreamWriter.start(response(output), MetricsStreamWriter.Format.CHUNKED, 0);
+        int flushesAfterStart = output.flushes;
+        output.threads.clear();
+        int metrics = 1000;
+        for (int i = 0; i < metrics; i++) {
+            writer.write(metric(i));
+        }
+        writer.finish("1000").get(1, TimeUnit.SECONDS);
+
+        JsonNode document = new ObjectMapper().readTree(output.text());
+        assertEquals(metrics, document.get("metrics").size());
+        assertEquals("999", document.get("metrics").get(metrics - 1).get("key").asText());
+        assertEquals("1000", document.get("cursor").asText());
+        assertTrue("flushes " + output.flushes, output.flushes - flushesAfterStart < 10);
+        assertEquals(1, output.threads.size());
+        assertTrue(output.threads.iterator().next().startsWith("metrics-stream-write"));
+    }
+
+    @Test
+    public void stalledClientDoesNotBlockCallers() throws Exception {
+        FakeOutput output = new FakeOutput();
+        MetricsStreamWriter writer = MetricsStreamWriter.start(response(output), MetricsStreamWriter.Format.NDJSON, 0);
+        output.stalled = new CountDownLatch(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            writer.write(metric(i));
+        }
+        assertFalse(writer.finish().isDone());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        output.stalled.countDown();
+        writer.finish().get(1, TimeUnit.SECONDS);
+        assertEquals(100, output.text().split("\n").length);
+    }
+
+    @Test
+    public void lateMetricsAreFlushedAfterInterval() throws Exception {
+        FakeOutput output = new FakeOutput();
+        MetricsStreamWriter writer = MetricsStreamWriter.start(response(output), MetricsStreamWriter.Format.NDJSON, 0);
+        writer.write(metric(0));
+        awaitText(output, "\"key\":\"0\"");
+        // written right after the previous flush, so it waits for the flush interval
+        writer.write(metric(1));
+        awaitText(output, "\"key\":\"1\"");
+        writer.finish().get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void clientThatWentAwayEndsTheStream() throws Exception {
+        FakeOutput output = new FakeOutput();
+        MetricsStreamWriter writer = MetricsStreamWriter.start(response(output), MetricsStreamWriter.Format.NDJSON, 0);
+        output.failing = true;
+        writer.write(metric(0));
+        writer.fail("storage timeout").get(1, TimeUnit.SECONDS);
+    }
+
+    private static void awaitText(FakeOutput output, String text) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!output.text().contains(text)) {
+            assertTrue(text + " was not flushed", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static StorageResponse metric(int i) {
+        return new StorageResponse(String.valueOf(i), String.valueOf(1000 + i), "{\"v\":" + i + "}");
+    }
+
+    private static HttpServletResponse response(ServletOutputStream output) {
+        return (HttpServletResponse) Proxy.newProxyInstance(MetricsStreamWriterTest.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOutputStream":
+                            return output;
+                        case "hashCode":
+                            return System.identityHashCode(p);
+                        case "equals":
+                            return p == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /** Output that keeps only flushed bytes, as the client would see them, and may stall or fail writes **/
+    private static class FakeOutput extends ServletOutputStream {
+        private final ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream flushed = new ByteArrayOutputStream();
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        volatile CountDownLatch stalled;
+        volatile boolean failing = false;
+        volatile int flushes = 0;
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) { }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            await();
+            if (failing) {
+                throw new IOException("Connection reset");
+            }
+            synchronized (this) {
+                buffered.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            await();
+            threads.add(Thread.currentThread().getName());
+            synchronized (this) {
+                buffered.writeTo(flushed);
+                buffered.reset();
+                flushes++;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        synchronized String text() {
+            return new String(flushed.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private void await() throws IOException {
+            CountDownLatch latch = stalled;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+}
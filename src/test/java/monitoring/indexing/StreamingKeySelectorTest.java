@@ -0,0 +1,131 @@
+package monitoring.indexing;
+
+import monitoring.downsampling.StrideDownsampler;
+import org.junit.Test;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingKeySelectorTest {
+    @Test
+    public void knownCountSelectsTheSameKeysAsWholeResponse() {
+        long[][] cases = {{11, 10}, {100, 7}, {1000, 3}, {1001, 1000}, {65_537, 256}, {10_000_019, 997}};
+        for (long[] c : cases) {
+            long count = c[0];
+            int max = (int) c[1];
+            StreamingKeySelector<Long> selector = new StreamingKeySelector<>(max);
+            selector.setExpectedCount(count);
+            List<Long> streamed = new ArrayList<>();
+            for (long i = 0; i < count; i++) {
+                if (selector.next()) {
+                    streamed.add(i);
+                    selector.add(CompletableFuture.completedFuture(i));
+                }
+            }
+            List<Long> whole = StrideDownsampler.selectEvenly(indexes(count), max);
+            assertEquals(count + " keys, max " + max, whole, streamed);
+            assertEquals(max, streamed.size());
+            assertEquals(streamed, values(selector.finish()));
+        }
+    }
+
+    @Test
+    public void recordsOverKnownCountAreIgnored() {
+        StreamingKeySelector<Long> selector = new StreamingKeySelector<>(4);
+        selector.setExpectedCount(8);
+        List<Long> picked = new ArrayList<>();
+        for (long i = 0; i < 100; i++) {
+            if (selector.next()) {
+                picked.add(i);
+            }
+        }
+        assertEquals(StrideDownsampler.selectEvenly(indexes(8), 4), picked);
+        assertEquals(100, selector.getSeen());
+    }
+
+    @Test
+    public void countBelowMaxPicksEverything() {
+        StreamingKeySelector<Long> selector = new StreamingKeySelector<>(10);
+        selector.setExpectedCount(5);
+        for (long i = 0; i < 5; i++) {
+            assertTrue(selector.next());
+            selector.add(CompletableFuture.completedFuture(i));
+        }
+        assertEquals(indexes(5), values(selector.finish()));
+    }
+
+    @Test
+    public void unknownCountCancelsEveryDroppedKey() {
+        int max = 10;
+        StreamingKeySelector<Long> selector = new StreamingKeySelector<>(max);
+        List<CompletableFuture<Long>> requested = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            if (selector.next()) {
+                CompletableFuture<Long> future = new CompletableFuture<>();
+                requested.add(future);
+                selector.add(future);
+                assertTrue(live(requested) <= 2 * max);
+            }
+        }
+        // far fewer keys are requested than received
+        assertTrue(requested.size() < 1000 / 4);
+
+        List<CompletableFuture<Long>> result = selector.finish();
+        assertTrue(result.size() <= max);
+        assertFalse(result.isEmpty());
+        Set<CompletableFuture<Long>> kept = new HashSet<>(result);
+        for (CompletableFuture<Long> future : requested) {
+            assertEquals(!kept.contains(future), future.isCancelled());
+        }
+    }
+
+    @Test
+    public void unknownCountKeepsOrderAndSpread() {
+        StreamingKeySelector<Long> selector = new StreamingKeySelector<>(8);
+        for (long i = 0; i < 1024; i++) {
+            if (selector.next()) {
+                selector.add(CompletableFuture.completedFuture(i));
+            }
+        }
+        List<Long> result = values(selector.finish());
+        assertEquals(8, result.size());
+        for (int i = 1; i < result.size(); i++) {
+            assertEquals(128, result.get(i) - result.get(i - 1));
+        }
+    }
+
+    private static long live(List<CompletableFuture<Long>> futures) {
+        return futures.stream().filter(f -> !f.isCancelled()).count();
+    }
+
+    private static List<Long> values(List<CompletableFuture<Long>> futures) {
+        List<Long> values = new ArrayList<>();
+        for (CompletableFuture<Long> future : futures) {
+            values.add(future.join());
+        }
+        return values;
+    }
+
+    /** 0, 1, ..., count - 1 without storing them **/
+    private static List<Long> indexes(long count) {
+        return new AbstractList<Long>() {
+            @Override
+            public Long get(int index) {
+                return (long) index;
+            }
+
+            @Override
+            public int size() {
+                return (int) count;
+            }
+        };
+    }
+}
@@ -0,0 +1,246 @@
+package monitoring.indexing;
+
+import monitoring.indexing.TailSubscriber.SseEvents;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TailSubscriberTest {
+    private final FakeAsyncContext context = new FakeAsyncContext();
+    private final FakeOutput out = new FakeOutput();
+
+    @Test
+    public void eventsAreWrittenAndFlushedWhileOutputIsReady() {
+        TailSubscriber subscriber = start(4);
+        subscriber.offer(event("a"));
+        subscriber.offer(event("b"));
+        assertEquals(Arrays.asList("a", "b"), out.names());
+        assertEquals(2, out.flushes);
+    }
+
+    @Test
+    public void slowClientGetsNewestEventsAfterDroppedCount() {
+        TailSubscriber subscriber = start(3);
+        out.ready = false;
+        for (String name : new String[]{"a", "b", "c", "d", "e"}) {
+            subscriber.offer(event(name));
+        }
+        assertTrue(out.names().isEmpty());
+
+        out.writePossible();
+        assertEquals(Arrays.asList("dropped 2", "c", "d", "e"), out.names());
+        assertEquals(1, out.flushes);
+
+        // count starts over once the client caught up
+        out.ready = false;
+        for (String name : new String[]{"f", "g", "h", "i"}) {
+            subscriber.offer(event(name));
+        }
+        out.writePossible();
+        assertEquals(Arrays.asList("dropped 2", "c", "d", "e", "dropped 1", "g", "h", "i"), out.names());
+    }
+
+    @Test
+    public void writesStopWhenOutputIsNotReadyAndResumeOnWritePossible() {
+        TailSubscriber subscriber = start(4);
+        out.readyWrites = 1;
+        subscriber.offer(event("a"));
+        subscriber.offer(event("b"));
+        assertEquals(Collections.singletonList("a"), out.names());
+
+        // output is not ready, so offer only queues the event
+        subscriber.offer(event("c"));
+        assertEquals(Collections.singletonList("a"), out.names());
+        out.writePossible();
+        assertEquals(Arrays.asList("a", "b", "c"), out.names());
+    }
+
+    @Test
+    public void pingIsSentOnlyWhenNothingIsWaiting() {
+        TailSubscriber subscriber = start(4);
+        subscriber.ping();
+        assertEquals(Collections.singletonList("ping"), out.names());
+
+        out.ready = false;
+        subscriber.offer(event("a"));
+        subscriber.ping();
+        out.writePossible();
+        assertEquals(Arrays.asList("ping", "a"), out.names());
+
+        // dropped count is sent instead of a ping
+        subscriber = start(1);
+        out.ready = false;
+        subscriber.offer(event("b"));
+        subscriber.offer(event("c"));
+        subscriber.ping();
+        out.writePossible();
+        assertEquals(Arrays.asList("ping", "a", "dropped 1", "c"), out.names());
+    }
+
+    @Test
+    public void endCompletesResponseAfterQueuedEvents() {
+        TailSubscriber subscriber = start(4);
+        out.ready = false;
+        subscriber.offer(event("a"));
+        subscriber.end(event("end"));
+        subscriber.offer(event("b"));
+        assertFalse(subscriber.isClosed());
+        assertEquals(0, context.completions);
+
+        out.writePossible();
+        assertEquals(Arrays.asList("a", "end"), out.names());
+        assertTrue(subscriber.isClosed());
+        assertEquals(1, context.completions);
+    }
+
+    @Test
+    public void writeErrorClosesSubscriber() {
+        TailSubscriber subscriber = start(4);
+        out.failing = true;
+        subscriber.offer(event("a"));
+        assertTrue(subscriber.isClosed());
+        assertEquals(1, context.completions);
+
+        out.failing = false;
+        subscriber.offer(event("b"));
+        assertTrue(out.names().isEmpty());
+    }
+
+    @Test
+    public void completedByContainerIsClosed() throws IOException {
+        TailSubscriber subscriber = start(4);
+        assertEquals(1, context.listeners.size());
+        context.listeners.get(0).onComplete(null);
+        assertTrue(subscriber.isClosed());
+        subscriber.offer(event("a"));
+        assertTrue(out.names().isEmpty());
+    }
+
+    private TailSubscriber start(int capacity) {
+        TailSubscriber subscriber = new TailSubscriber(context.proxy, out, capacity);
+        subscriber.start();
+        return subscriber;
+    }
+
+    /** Event with name as its data, so that written events can be told apart **/
+    static byte[] event(String name) {
+        return SseEvents.event("metric", ("\"" + name + "\"").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Async context that records listeners and completions **/
+    static class FakeAsyncContext {
+        final List<AsyncListener> listeners = new ArrayList<>();
+        volatile int completions = 0;
+        final AsyncContext proxy = (AsyncContext) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{AsyncContext.class}, (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "addListener":
+                            listeners.add((AsyncListener) args[0]);
+                            return null;
+                        case "complete":
+                            completions++;
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Non-blocking output: every write uses one of readyWrites and the output stops being ready when they run out,
+     * {@link #writePossible} makes it ready again and calls the listener, as container does
+     */
+    static class FakeOutput extends ServletOutputStream {
+        private static final Pattern EVENT = Pattern.compile("event: (\\w+)\ndata: (.*)\n\n");
+
+        private final List<String> written = new ArrayList<>();
+        private WriteListener listener;
+        volatile boolean ready = true;
+        int readyWrites = Integer.MAX_VALUE;
+        boolean failing = false;
+        int flushes = 0;
+
+        @Override
+        public synchronized boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            listener = writeListener;
+            writePossible();
+        }
+
+        void writePossible() {
+            ready = true;
+            readyWrites = Integer.MAX_VALUE;
+            try {
+                listener.onWritePossible();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (failing) {
+                throw new IOException("Connection reset");
+            }
+            written.add(new String(b, off, len, StandardCharsets.UTF_8));
+            if (--readyWrites <= 0) {
+                ready = false;
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            flushes++;
+        }
+
+        /** Written events: "ping", "dropped N", "end", key of metric or data of metric that is a string **/
+        synchronized List<String> names() {
+            List<String> names = new ArrayList<>();
+            for (String event : written) {
+                if (event.equals(new String(SseEvents.PING, StandardCharsets.UTF_8))) {
+                    names.add("ping");
+                    continue;
+                }
+                Matcher matcher = EVENT.matcher(event);
+                assertTrue(event, matcher.matches());
+                String data = matcher.group(2);
+                switch (matcher.group(1)) {
+                    case "dropped":
+                        names.add("dropped " + data.replaceAll("\\{\"dropped\":(\\d+)}", "$1"));
+                        break;
+                    case "end":
+                        names.add("end");
+                        break;
+                    default:
+                        names.add(data.replaceAll("^\\{\"key\":\"([^\"]*)\".*|^\"(.*)\"$", "$1$2"));
+                }
+            }
+            return names;
+        }
+    }
+}
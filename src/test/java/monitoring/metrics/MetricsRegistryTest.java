@@ -0,0 +1,147 @@
+package monitoring.metrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsRegistryTest {
+    @Test
+    public void bucketIsSmallestBoundNotBelowValue() {
+        assertEquals(0, Histogram.index(0));
+        assertEquals(0, Histogram.index(1));
+        assertEquals(1, Histogram.index(2));
+        assertEquals(3, Histogram.index(4));
+        assertEquals(4, Histogram.index(5));
+        assertEquals(7, Histogram.index(8));
+        assertEquals(8, Histogram.index(9));
+        assertEquals(8, Histogram.index(10));
+        assertEquals(9, Histogram.index(11));
+        assertEquals(1024, Histogram.upperBound(Histogram.index(1024)));
+        assertEquals(1280, Histogram.upperBound(Histogram.index(1025)));
+        assertEquals(Histogram.BUCKETS - 1, Histogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketsAreWithinQuarterOfValue() {
+        for (long value = 1; value < 1L << Histogram.MAX_EXPONENT; value += 1 + value / 7) {
+            int index = Histogram.index(value);
+            long bound = Histogram.upperBound(index);
+            assertTrue("value " + value, bound >= value);
+            assertTrue("value " + value, index == 0 || Histogram.upperBound(index - 1) < value);
+            assertTrue("value " + value, bound - value <= value / Histogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void exportedCountsIncludeTheBound() {
+        Histogram histogram = new Histogram(1, 0, 4, Histogram.SUB_BUCKETS);
+        for (long value : new long[]{-5, 0, 1, 2, 3, 4, 8, 9, 16, 17}) {
+            histogram.record(value);
+        }
+        assertArrayEquals(new long[]{1, 2, 3, 4, 5, 6, 7, 8, 10, 12, 14, 16}, histogram.exportedBounds);
+        assertArrayEquals(new long[]{3, 4, 5, 6, 6, 6, 6, 7, 8, 8, 8, 9}, histogram.exportedCounts());
+        assertEquals(10, histogram.getCount());
+        assertEquals(60, histogram.getSum());
+    }
+
+    @Test
+    public void subsetOfBoundsIsExported() {
+        assertArrayEquals(new long[]{4, 8, 16, 32}, new Histogram(1, 2, 5, 1).exportedBounds);
+        assertArrayEquals(new long[]{4, 6, 8, 12, 16, 24, 32}, new Histogram(1, 2, 5, 2).exportedBounds);
+        try {
+            new Histogram(1, 0, 4, 3);
+            fail("sub-buckets that do not divide a power of two should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("3"));
+        }
+    }
+
+    @Test
+    public void scrapesCountersAndGauges() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter requests = registry.counter("test_requests_total", "Requests", "route", "/getMetrics");
+        requests.increment();
+        requests.add(2);
+        assertSame(requests, registry.counter("test_requests_total", "Requests", "route", "/getMetrics"));
+        registry.counter("test_requests_total", "Requests", "route", "say \"hi\"\n").increment();
+        registry.gauge("test_in_flight", "In flight", () -> 1.5);
+
+        assertEquals(Arrays.asList(
+                "# HELP test_in_flight In flight",
+                "# TYPE test_in_flight gauge",
+                "test_in_flight 1.5",
+                "# HELP test_requests_total Requests",
+                "# TYPE test_requests_total counter",
+                "test_requests_total{route=\"/getMetrics\"} 3",
+                "test_requests_total{route=\"say \\\"hi\\\"\\n\"} 1"
+        ), lines(registry));
+    }
+
+    @Test
+    public void scrapesHistogramBucketsSumAndCount() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram keys = registry.sizes("test_keys", "Keys per query", "route", "batch");
+        keys.record(1);
+        keys.record(3);
+        keys.record(4);
+        keys.record(2_000_000);
+
+        List<String> lines = lines(registry);
+        assertEquals("# HELP test_keys Keys per query", lines.get(0));
+        assertEquals("# TYPE test_keys histogram", lines.get(1));
+        assertEquals("test_keys_bucket{route=\"batch\",le=\"1\"} 1", lines.get(2));
+        assertEquals("test_keys_bucket{route=\"batch\",le=\"2\"} 1", lines.get(3));
+        assertEquals("test_keys_bucket{route=\"batch\",le=\"3\"} 2", lines.get(4));
+        assertEquals("test_keys_bucket{route=\"batch\",le=\"4\"} 3", lines.get(5));
+        assertEquals("test_keys_bucket{route=\"batch\",le=\"6\"} 3", lines.get(6));
+        assertEquals("test_keys_bucket{route=\"batch\",le=\"786432\"} 3", lines.get(40));
+        assertEquals("test_keys_bucket{route=\"batch\",le=\"1048576\"} 3", lines.get(41));
+        assertEquals("test_keys_bucket{route=\"batch\",le=\"+Inf\"} 4", lines.get(42));
+        assertEquals("test_keys_sum{route=\"batch\"} 2000008", lines.get(43));
+        assertEquals("test_keys_count{route=\"batch\"} 4", lines.get(44));
+        assertEquals(45, lines.size());
+    }
+
+    @Test
+    public void latencyIsExportedInSeconds() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram latency = registry.latency("test_duration_seconds", "Duration");
+        latency.record(16);
+        latency.record(1_500_000);
+
+        List<String> lines = lines(registry);
+        assertTrue(lines.contains("test_duration_seconds_bucket{le=\"1.6E-5\"} 1"));
+        assertTrue(lines.contains("test_duration_seconds_bucket{le=\"1.048576\"} 1"));
+        assertTrue(lines.contains("test_duration_seconds_bucket{le=\"1.31072\"} 1"));
+        assertTrue(lines.contains("test_duration_seconds_bucket{le=\"1.572864\"} 2"));
+        assertTrue(lines.contains("test_duration_seconds_bucket{le=\"2.097152\"} 2"));
+        assertTrue(lines.contains("test_duration_seconds_bucket{le=\"+Inf\"} 2"));
+        assertTrue(lines.contains("test_duration_seconds_sum 1.500016"));
+        assertTrue(lines.contains("test_duration_seconds_count 2"));
+    }
+
+    @Test
+    public void sameNameWithOtherTypeIsRejected() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_metric", "Metric");
+        try {
+            registry.sizes("test_metric", "Metric");
+            fail("histogram with name of counter should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("counter"));
+        }
+    }
+
+    private static List<String> lines(MetricsRegistry registry) {
+        String scrape = registry.scrape();
+        assertTrue(scrape.endsWith("\n"));
+        return Arrays.asList(scrape.split("\n"));
+    }
+}
@@ -0,0 +1,89 @@
+package monitoring.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class InFlightLimiterTest {
+    @Test
+    public void operationsOverLimitWaitForRunningOnes() {
+        InFlightLimiter limiter = new InFlightLimiter(2);
+        List<CompletableFuture<Void>> started = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            limiter.submit(() -> {
+                CompletableFuture<Void> f = new CompletableFuture<>();
+                started.add(f);
+                return f;
+            });
+        }
+        assertEquals(2, started.size());
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(3, limiter.getQueued());
+
+        started.get(0).complete(null);
+        assertEquals(3, started.size());
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(2, limiter.getQueued());
+
+        // failed operation frees its place as well
+        started.get(1).completeExceptionally(new RuntimeException("failed"));
+        started.get(2).complete(null);
+        assertEquals(5, started.size());
+        assertEquals(0, limiter.getQueued());
+        started.get(3).complete(null);
+        started.get(4).complete(null);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void operationsCompletingSynchronouslyDoNotOverflowStack() throws Exception {
+        InFlightLimiter limiter = new InFlightLimiter(1);
+        CompletableFuture<Void> blocker = new CompletableFuture<>();
+        limiter.submit(() -> blocker);
+        AtomicInteger ran = new AtomicInteger(0);
+        int operations = 50_000;
+        for (int i = 0; i < operations; i++) {
+            limiter.submit(() -> {
+                ran.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+        assertEquals(operations, limiter.getQueued());
+
+        QueryFanOutTest.runWithSmallStack(() -> blocker.complete(null));
+        assertEquals(operations, ran.get());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void errorOfStartingOperationIsThrownAndFreesItsPlace() {
+        InFlightLimiter limiter = new InFlightLimiter(1);
+        IllegalStateException error = new IllegalStateException("client is closed");
+        try {
+            limiter.submit(() -> {
+                throw error;
+            });
+            fail("error of operation should be thrown");
+        } catch (IllegalStateException e) {
+            assertSame(error, e);
+        }
+        assertEquals(0, limiter.getInFlight());
+
+        CompletableFuture<Void> next = new CompletableFuture<>();
+        AtomicInteger ran = new AtomicInteger(0);
+        limiter.submit(() -> {
+            ran.incrementAndGet();
+            return next;
+        });
+        assertEquals(1, ran.get());
+        assertEquals(1, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,196 @@
+package monitoring.storage;
+
+import com.typesafe.config.ConfigFactory;
+import monitoring.ServerManager;
+import monitoring.config.Configuration;
+import monitoring.utils.FutureUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Keys starting with "slow" wait until the test answers them, "missing" keys fail at once, the rest are cached **/
+public class QueryFanOutTest {
+    private ServerManager storageManager;
+    private FakeStorageClient storageClient;
+    private final AtomicInteger globalInFlight = new AtomicInteger(0);
+
+    @Before
+    public void setUp() {
+        Configuration config = new Configuration(ConfigFactory.parseString(
+                "network.health.probe-interval = 0 s")
+                .withFallback(ConfigFactory.parseFile(new File("config/application.conf")).getConfig("monitoring-controller")));
+        storageManager = new ServerManager("storage service", config.httpClient, config.balancing, config.health);
+        storageClient = new FakeStorageClient(storageManager, config);
+    }
+
+    @After
+    public void tearDown() {
+        storageManager.close();
+    }
+
+    @Test
+    public void keysOverLimitWaitForPermit() throws Exception {
+        QueryFanOut fanOut = new QueryFanOut(storageClient, 3, globalInFlight);
+        List<CompletableFuture<StorageResponse>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(fanOut.get("slow-" + i));
+        }
+        assertEquals(3, storageClient.slow.size());
+        assertEquals(3, globalInFlight.get());
+        assertTrue(fanOut.isSaturated());
+
+        storageClient.answer("slow-1");
+        assertValue("slow-1", results.get(1));
+        assertEquals(4, storageClient.slow.size());
+        assertTrue(storageClient.slow.containsKey("slow-3"));
+        assertTrue(fanOut.isSaturated());
+
+        storageClient.answer("slow-0");
+        assertFalse(fanOut.isSaturated());
+        for (int i = 2; i < 5; i++) {
+            storageClient.answer("slow-" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertValue("slow-" + i, results.get(i));
+        }
+        assertEquals(0, globalInFlight.get());
+    }
+
+    @Test
+    public void failedKeyReleasesItsPermit() throws Exception {
+        QueryFanOut fanOut = new QueryFanOut(storageClient, 1, globalInFlight);
+        CompletableFuture<StorageResponse> slow = fanOut.get("slow");
+        CompletableFuture<StorageResponse> missing = fanOut.get("missing");
+        CompletableFuture<StorageResponse> cached = fanOut.get("cached");
+        storageClient.answer("slow");
+        assertValue("slow", slow);
+        try {
+            missing.get(1, TimeUnit.SECONDS);
+            fail("missing key should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ValueNotFoundException);
+        }
+        assertValue("cached", cached);
+        assertEquals(0, globalInFlight.get());
+    }
+
+    @Test
+    public void keyCancelledWhileWaitingIsNotRequested() throws Exception {
+        QueryFanOut fanOut = new QueryFanOut(storageClient, 1, globalInFlight);
+        CompletableFuture<StorageResponse> first = fanOut.get("slow-first");
+        CompletableFuture<StorageResponse> cancelled = fanOut.get("slow-cancelled");
+        CompletableFuture<StorageResponse> last = fanOut.get("slow-last");
+        cancelled.cancel(false);
+        storageClient.answer("slow-first");
+        assertValue("slow-first", first);
+        assertFalse(storageClient.slow.containsKey("slow-cancelled"));
+        storageClient.answer("slow-last");
+        assertValue("slow-last", last);
+        assertEquals(0, globalInFlight.get());
+    }
+
+    @Test
+    public void drainedCallbackRunsOnceWhenQueueEmpties() throws Exception {
+        QueryFanOut fanOut = new QueryFanOut(storageClient, 2, globalInFlight);
+        AtomicInteger drained = new AtomicInteger(0);
+        fanOut.whenDrained(drained::incrementAndGet);
+        assertEquals(1, drained.get());
+
+        for (int i = 0; i < 4; i++) {
+            fanOut.get("slow-" + i);
+        }
+        fanOut.whenDrained(drained::incrementAndGet);
+        assertEquals(1, drained.get());
+        storageClient.answer("slow-0");
+        assertEquals(1, drained.get());
+        storageClient.answer("slow-1");
+        assertEquals(2, drained.get());
+        storageClient.answer("slow-2");
+        storageClient.answer("slow-3");
+        assertEquals(2, drained.get());
+    }
+
+    @Test
+    public void cachedKeysQueuedBehindSlowOnesDoNotOverflowStack() throws Exception {
+        int limit = 256;
+        int keys = 20_000;
+        QueryFanOut fanOut = new QueryFanOut(storageClient, limit, globalInFlight);
+        List<CompletableFuture<StorageResponse>> results = new ArrayList<>(keys);
+        for (int i = 0; i < limit; i++) {
+            results.add(fanOut.get("slow-" + i));
+        }
+        for (int i = limit; i < keys; i++) {
+            results.add(fanOut.get("cached-" + i));
+        }
+        assertEquals(limit, globalInFlight.get());
+
+        // answer comes from a thread with small stack, as HTTP client threads may have
+        runWithSmallStack(() -> storageClient.answer("slow-0"));
+        for (int i = limit; i < keys; i++) {
+            assertTrue("key " + i, results.get(i).isDone());
+            assertFalse("key " + i, results.get(i).isCompletedExceptionally());
+        }
+        assertFalse(fanOut.isSaturated());
+        assertEquals(limit - 1, globalInFlight.get());
+    }
+
+    static void runWithSmallStack(Runnable runnable) throws InterruptedException {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                error.set(t);
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        assertNull(error.get());
+    }
+
+    private static void assertValue(String key, CompletableFuture<StorageResponse> f) throws Exception {
+        assertEquals(key, f.get(1, TimeUnit.SECONDS).getKey());
+    }
+
+    private static class FakeStorageClient extends StorageClient {
+        final Map<String, CompletableFuture<StorageResponse>> slow = new ConcurrentHashMap<>();
+
+        FakeStorageClient(ServerManager storageManager, Configuration config) {
+            super(storageManager, config.timeouts, config.storageClient);
+        }
+
+        @Override
+        public CompletableFuture<StorageResponse> get(String key) {
+            if (key.startsWith("slow")) {
+                CompletableFuture<StorageResponse> request = new CompletableFuture<>();
+                slow.put(key, request);
+                return request;
+            }
+            if (key.startsWith("missing")) {
+                return FutureUtils.failed(new ValueNotFoundException("Value not found for key " + key));
+            }
+            return CompletableFuture.completedFuture(new StorageResponse(key, "1", "1"));
+        }
+
+        void answer(String key) {
+            slow.get(key).complete(new StorageResponse(key, "1", "1"));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package monitoring.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.ConfigFactory;
+import monitoring.ServerManager;
+import monitoring.config.BatchSettings;
+import monitoring.config.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Runs batcher against a storage node served from the test, which answers keys starting with "missing" with no value **/
+public class StorageBatcherTest {
+    private static final long LONG_LINGER = 10_000;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private HttpServer server;
+    private URL storage;
+    private Configuration config;
+    private ServerManager storageManager;
+    private StorageClient storageClient;
+
+    // "POST /keys [keys]" or "GET /key/key" for every request the node got
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private volatile int batchStatus = 200;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        storage = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+
+        config = new Configuration(ConfigFactory.parseString(
+                "network.health.probe-interval = 0 s\n" +
+                "storage-client.batch.enabled = false\n" +
+                "storage-client.cache.enabled = false\n" +
+                "storage-client.hedging.enabled = false")
+                .withFallback(ConfigFactory.parseFile(new File("config/application.conf")).getConfig("monitoring-controller")));
+        storageManager = new ServerManager("storage service", config.httpClient, config.balancing, config.health);
+        storageManager.add(storage);
+        storageClient = new StorageClient(storageManager, config.timeouts, config.storageClient);
+    }
+
+    @After
+    public void tearDown() {
+        storageManager.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void fullBatchIsSentWithoutWaitingForLinger() throws Exception {
+        StorageBatcher batcher = batcher(3, LONG_LINGER);
+        CompletableFuture<StorageResponse> a = batcher.get(storage, "a");
+        CompletableFuture<StorageResponse> b = batcher.get(storage, "b");
+        Thread.sleep(50);
+        assertTrue(requests.isEmpty());
+        CompletableFuture<StorageResponse> c = batcher.get(storage, "c");
+
+        assertValue("a", a);
+        assertValue("b", b);
+        assertValue("c", c);
+        assertEquals(Collections.singletonList("POST /keys [a, b, c]"), requests);
+    }
+
+    @Test
+    public void partialBatchIsSentAfterLinger() throws Exception {
+        StorageBatcher batcher = batcher(100, 50);
+        long start = System.nanoTime();
+        CompletableFuture<StorageResponse> a = batcher.get(storage, "a");
+        CompletableFuture<StorageResponse> b = batcher.get(storage, "b");
+        assertValue("a", a);
+        assertValue("b", b);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(Collections.singletonList("POST /keys [a, b]"), requests);
+
+        // next key starts a new batch with its own linger
+        assertValue("c", batcher.get(storage, "c"));
+        assertEquals(Arrays.asList("POST /keys [a, b]", "POST /keys [c]"), requests);
+    }
+
+    @Test
+    public void valuesAreMatchedToKeysWhateverTheirOrder() throws Exception {
+        StorageBatcher batcher = batcher(4, LONG_LINGER);
+        // the node answers in reverse order and leaves out keys without value
+        CompletableFuture<StorageResponse> a = batcher.get(storage, "a");
+        CompletableFuture<StorageResponse> missing = batcher.get(storage, "missing");
+        CompletableFuture<StorageResponse> b = batcher.get(storage, "b");
+        CompletableFuture<StorageResponse> c = batcher.get(storage, "c");
+
+        assertValue("a", a);
+        assertValue("b", b);
+        assertValue("c", c);
+        assertNotFound(missing);
+    }
+
+    @Test
+    public void errorOfBatchFailsAllItsKeys() throws Exception {
+        batchStatus = 500;
+        StorageBatcher batcher = batcher(2, LONG_LINGER);
+        CompletableFuture<StorageResponse> a = batcher.get(storage, "a");
+        CompletableFuture<StorageResponse> b = batcher.get(storage, "b");
+        for (CompletableFuture<StorageResponse> f : Arrays.asList(a, b)) {
+            try {
+                f.get(1, TimeUnit.SECONDS);
+                fail("key of failed batch should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("500"));
+            }
+        }
+        assertTrue(batcher.supports(storage));
+    }
+
+    @Test
+    public void nodeWithoutBatchSupportIsAskedForEveryKey() throws Exception {
+        for (int status : new int[]{404, 405, 501}) {
+            requests.clear();
+            batchStatus = status;
+            StorageBatcher batcher = batcher(2, LONG_LINGER);
+            CompletableFuture<StorageResponse> a = batcher.get(storage, "a");
+            CompletableFuture<StorageResponse> missing = batcher.get(storage, "missing");
+            assertValue("a", a);
+            assertNotFound(missing);
+            assertFalse(batcher.supports(storage));
+            assertEquals("POST /keys [a, missing]", requests.get(0));
+            assertEquals(Arrays.asList("GET /key/a", "GET /key/missing"), sorted(requests.subList(1, requests.size())));
+
+            // node is remembered, the next batch goes straight to single keys
+            requests.clear();
+            CompletableFuture<StorageResponse> b = batcher.get(storage, "b");
+            CompletableFuture<StorageResponse> c = batcher.get(storage, "c");
+            assertValue("b", b);
+            assertValue("c", c);
+            assertEquals(Arrays.asList("GET /key/b", "GET /key/c"), sorted(requests));
+        }
+    }
+
+    @Test
+    public void closeFailsKeysWaitingForBatch() throws Exception {
+        StorageBatcher batcher = batcher(100, LONG_LINGER);
+        CompletableFuture<StorageResponse> a = batcher.get(storage, "a");
+        batcher.close();
+        assertClosed(a);
+        assertClosed(batcher.get(storage, "b"));
+        Thread.sleep(50);
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void closedClientFailsNewKeys() throws Exception {
+        assertValue("a", storageClient.get("a"));
+        storageClient.close();
+        assertClosed(storageClient.get("b"));
+        assertEquals(Collections.singletonList("GET /key/a"), requests);
+    }
+
+    private StorageBatcher batcher(int maxSize, long maxLinger) {
+        return new StorageBatcher(storageClient, storageManager, config.timeouts, new BatchSettings(true, maxSize, maxLinger));
+    }
+
+    private static void assertValue(String key, CompletableFuture<StorageResponse> f) throws Exception {
+        StorageResponse value = f.get(1, TimeUnit.SECONDS);
+        assertEquals(key, value.getKey());
+        assertEquals("value of " + key, value.getValue());
+    }
+
+    private static void assertNotFound(CompletableFuture<StorageResponse> f) throws Exception {
+        try {
+            f.get(1, TimeUnit.SECONDS);
+            fail("key without value should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ValueNotFoundException);
+        }
+    }
+
+    private static void assertClosed(CompletableFuture<StorageResponse> f) throws Exception {
+        try {
+            f.get(1, TimeUnit.SECONDS);
+            fail("key requested from closed client should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> result = new ArrayList<>(list);
+        Collections.sort(result);
+        return result;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/keys")) {
+                String[] keys;
+                try (InputStream in = exchange.getRequestBody()) {
+                    keys = mapper.readValue(in, String[].class);
+                }
+                requests.add("POST /keys " + Arrays.toString(keys));
+                if (batchStatus != 200) {
+                    send(exchange, batchStatus, "batch failed");
+                    return;
+                }
+                List<StorageResponse> values = new ArrayList<>();
+                for (int i = keys.length - 1; i >= 0; i--) {
+                    if (!keys[i].startsWith("missing")) {
+                        values.add(value(keys[i]));
+                    }
+                }
+                send(exchange, 200, mapper.writeValueAsString(values));
+            } else if (path.startsWith("/key/")) {
+                String key = path.substring("/key/".length());
+                requests.add("GET " + path);
+                if (key.startsWith("missing")) {
+                    exchange.sendResponseHeaders(204, -1);
+                    return;
+                }
+                send(exchange, 200, mapper.writeValueAsString(value(key)));
+            } else {
+                send(exchange, 404, "Unknown path");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static StorageResponse value(String key) {
+        return new StorageResponse(key, "1", "value of " + key);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
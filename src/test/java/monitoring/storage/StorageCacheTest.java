@@ -0,0 +1,127 @@
+package monitoring.storage;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import monitoring.config.CacheSettings;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StorageCacheTest {
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Test
+    public void valuesLiveUntilTtl() {
+        StorageCache cache = cache(new CacheSettings(true, 1 << 20, 1000, 100, 0));
+        StorageResponse value = value("key", 10);
+        cache.put("key", value);
+        ticker.advance(999);
+        assertSame(value, cache.get("key"));
+        ticker.advance(1);
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void valuesWithoutTtlDoNotExpire() {
+        StorageCache cache = cache(new CacheSettings(true, 1 << 20, 0, 100, 0));
+        StorageResponse value = value("key", 10);
+        cache.put("key", value);
+        ticker.advance(TimeUnit.DAYS.toMillis(365));
+        assertSame(value, cache.get("key"));
+    }
+
+    @Test
+    public void notFoundIsRememberedForItsTtl() {
+        StorageCache cache = cache(new CacheSettings(true, 1 << 20, 0, 100, 500));
+        assertFalse(cache.isNotFound("key"));
+        cache.putNotFound("key");
+        assertTrue(cache.isNotFound("key"));
+        assertNull(cache.get("key"));
+        ticker.advance(500);
+        assertFalse(cache.isNotFound("key"));
+        assertEquals(1L, cache.getStats().get("notFoundHits"));
+    }
+
+    @Test
+    public void notFoundIsNotRememberedWithZeroTtl() {
+        StorageCache cache = cache(new CacheSettings(true, 1 << 20, 0, 100, 0));
+        cache.putNotFound("key");
+        assertFalse(cache.isNotFound("key"));
+        assertEquals(0L, cache.getStats().get("notFoundSize"));
+    }
+
+    @Test
+    public void weightIsBoundedByEviction() {
+        // keys of the same length, so that all entries weigh the same
+        int weight = StorageCache.weigh("key-000", value("key-000", 100));
+        int fits = 10;
+        StorageCache cache = cache(new CacheSettings(true, (long) weight * fits, 0, 100, 0));
+        for (int i = 0; i < 100; i++) {
+            String key = String.format("key-%03d", i);
+            cache.put(key, value(key, 100));
+        }
+        Map<String, Object> stats = cache.getStats();
+        long size = (long) stats.get("size");
+        assertTrue("size " + size, size > 0 && size <= fits);
+        assertEquals(100 - size, stats.get("evictions"));
+        assertEquals((100 - size) * weight, stats.get("evictedWeight"));
+    }
+
+    @Test
+    public void valueHeavierThanWholeCacheIsNotKept() {
+        StorageResponse small = value("small", 10);
+        StorageCache cache = cache(new CacheSettings(true, StorageCache.weigh("small", small) * 2L, 0, 100, 0));
+        cache.put("small", small);
+        cache.put("large", value("large", 10_000));
+        assertNull(cache.get("large"));
+        assertSame(small, cache.get("small"));
+    }
+
+    @Test
+    public void weightCountsKeyAndAllStrings() {
+        StorageResponse value = new StorageResponse("key", "12", "value");
+        assertEquals(StorageCache.weigh("key", new StorageResponse("key", null, null)) + 2 * ("12".length() + "value".length()),
+                StorageCache.weigh("key", value));
+    }
+
+    @Test
+    public void clearDropsValuesAndNotFound() {
+        StorageCache cache = cache(new CacheSettings(true, 1 << 20, 0, 100, 500));
+        cache.put("key", value("key", 10));
+        cache.putNotFound("missing");
+        cache.clear();
+        assertNull(cache.get("key"));
+        assertFalse(cache.isNotFound("missing"));
+    }
+
+    private StorageCache cache(CacheSettings settings) {
+        return new StorageCache(settings, ticker, Runnable::run);
+    }
+
+    private static StorageResponse value(String key, int length) {
+        StringBuilder value = new StringBuilder(length);
+        while (value.length() < length) {
+            value.append('x');
+        }
+        return new StorageResponse(key, "1", value.toString());
+    }
+
+    private static class FakeTicker implements Ticker {
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+}
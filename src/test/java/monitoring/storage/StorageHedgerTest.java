@@ -0,0 +1,239 @@
+package monitoring.storage;
+
+import com.typesafe.config.ConfigFactory;
+import monitoring.ServerManager;
+import monitoring.balancing.Backend;
+import monitoring.balancing.CircuitBreaker;
+import monitoring.config.Configuration;
+import monitoring.config.HedgingSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StorageHedgerTest {
+    private static final long MIN_DELAY = 20;
+
+    private URL first;
+    private URL second;
+    private ServerManager storageManager;
+    private FakeStorageClient storageClient;
+
+    @Before
+    public void setUp() throws MalformedURLException {
+        Configuration config = new Configuration(ConfigFactory.parseString(
+                "network.health.probe-interval = 0 s\n" +
+                "storage-client.batch.enabled = false\n" +
+                "storage-client.cache.enabled = false")
+                .withFallback(ConfigFactory.parseFile(new File("config/application.conf")).getConfig("monitoring-controller")));
+        first = new URL("http://storage1:8080");
+        second = new URL("http://storage2:8080");
+        storageManager = new ServerManager("storage service", config.httpClient, config.balancing, config.health);
+        storageManager.add(first);
+        storageManager.add(second);
+        storageClient = new FakeStorageClient(storageManager, config);
+    }
+
+    @After
+    public void tearDown() {
+        storageManager.close();
+    }
+
+    @Test
+    public void noHedgeUntilNodeLatencyIsKnown() throws Exception {
+        StorageHedger hedger = hedger(1, 10);
+        CompletableFuture<StorageResponse> result = hedger.fetch(first, "key");
+        Thread.sleep(MIN_DELAY * 3);
+        assertFalse(result.isDone());
+        assertEquals(0, storageClient.requests(second).size());
+    }
+
+    @Test
+    public void slowKeyIsHedgedAndFirstAnswerWins() throws Exception {
+        StorageHedger hedger = warmedUp(hedger(1, 10));
+        CompletableFuture<StorageResponse> result = hedger.fetch(first, "key");
+        CompletableFuture<StorageResponse> primary = storageClient.requests(first).get(0);
+        CompletableFuture<StorageResponse> hedge = awaitRequest(second);
+
+        StorageResponse value = new StorageResponse("key", "1", "42");
+        hedge.complete(value);
+        assertSame(value, result.get(1, TimeUnit.SECONDS));
+        assertTrue(primary.isCancelled());
+        assertEquals(1L, hedger.getStats().get("hedged"));
+        assertEquals(1L, hedger.getStats().get("hedgesWon"));
+    }
+
+    @Test
+    public void fastAnswerIsNotHedged() throws Exception {
+        StorageHedger hedger = warmedUp(hedger(1, 10));
+        CompletableFuture<StorageResponse> result = hedger.fetch(first, "key");
+        StorageResponse value = new StorageResponse("key", "1", "42");
+        storageClient.requests(first).get(0).complete(value);
+        assertSame(value, result.get(1, TimeUnit.SECONDS));
+        Thread.sleep(MIN_DELAY * 3);
+        assertEquals(0, storageClient.requests(second).size());
+        assertEquals(0L, hedger.getStats().get("hedged"));
+    }
+
+    @Test
+    public void errorOfOneRequestWaitsForTheOther() throws Exception {
+        StorageHedger hedger = warmedUp(hedger(1, 10));
+        CompletableFuture<StorageResponse> result = hedger.fetch(first, "key");
+        CompletableFuture<StorageResponse> hedge = awaitRequest(second);
+        storageClient.requests(first).get(0).completeExceptionally(new RuntimeException("node failed"));
+        assertFalse(result.isDone());
+
+        StorageResponse value = new StorageResponse("key", "1", "42");
+        hedge.complete(value);
+        assertSame(value, result.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void bothErrorsFailTheResult() throws Exception {
+        StorageHedger hedger = warmedUp(hedger(1, 10));
+        CompletableFuture<StorageResponse> result = hedger.fetch(first, "key");
+        CompletableFuture<StorageResponse> hedge = awaitRequest(second);
+        storageClient.requests(first).get(0).completeExceptionally(new RuntimeException("node failed"));
+        hedge.completeExceptionally(new RuntimeException("other node failed"));
+        try {
+            result.get(1, TimeUnit.SECONDS);
+            fail("result should fail");
+        } catch (ExecutionException e) {
+            assertEquals("node failed", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void notFoundIsAnAnswer() throws Exception {
+        StorageHedger hedger = warmedUp(hedger(1, 10));
+        CompletableFuture<StorageResponse> result = hedger.fetch(first, "key");
+        CompletableFuture<StorageResponse> hedge = awaitRequest(second);
+        hedge.completeExceptionally(new ValueNotFoundException("Value not found for key key"));
+        assertTrue(result.isCompletedExceptionally());
+        assertTrue(storageClient.requests(first).get(0).isCancelled());
+    }
+
+    @Test
+    public void cancelledLoserDoesNotCloseOpenBreaker() throws Exception {
+        StorageHedger hedger = warmedUp(hedger(1, 10));
+        Backend backend = storageManager.getServers().get(0);
+        double latency = backend.getLatency();
+        CompletableFuture<StorageResponse> result = hedger.fetch(first, "key");
+        CompletableFuture<StorageResponse> primary = storageClient.requests(first).get(0);
+        CompletableFuture<StorageResponse> hedge = awaitRequest(second);
+        // first node is ejected while its request is still running
+        while (!backend.getBreaker().onFailure()) {
+        }
+
+        hedge.complete(new StorageResponse("key", "1", "42"));
+        result.get(1, TimeUnit.SECONDS);
+        assertTrue(primary.isCancelled());
+        assertEquals(CircuitBreaker.State.OPEN, backend.getBreaker().getState());
+        assertEquals(0, backend.getInFlight());
+        assertEquals(latency, backend.getLatency(), 0);
+    }
+
+    @Test
+    public void noHedgeWithoutBudget() throws Exception {
+        StorageHedger hedger = warmedUp(hedger(0, 0));
+        CompletableFuture<StorageResponse> result = hedger.fetch(first, "key");
+        Thread.sleep(MIN_DELAY * 3);
+        assertFalse(result.isDone());
+        assertEquals(0, storageClient.requests(second).size());
+        assertEquals(1L, hedger.getStats().get("skippedNoBudget"));
+    }
+
+    @Test
+    public void budgetRefillsByRatioUpToMax() {
+        HedgeBudget budget = new HedgeBudget(0.5, 2);
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+        budget.onRequest();
+        assertFalse(budget.tryAcquire());
+        budget.onRequest();
+        assertTrue(budget.tryAcquire());
+        for (int i = 0; i < 100; i++) {
+            budget.onRequest();
+        }
+        assertEquals(2.0, budget.getTokens(), 0);
+    }
+
+    private StorageHedger hedger(double budgetRatio, int maxBudget) {
+        return new StorageHedger(storageClient, storageManager, new HedgingSettings(true, 0.5, MIN_DELAY, budgetRatio, maxBudget));
+    }
+
+    /** Answers enough requests right away, so that latency percentile of the first node is known **/
+    private StorageHedger warmedUp(StorageHedger hedger) {
+        storageClient.answerImmediately = true;
+        for (int i = 0; i < LatencyWindow.MIN_SAMPLES; i++) {
+            hedger.fetch(first, "warm-up");
+        }
+        storageClient.answerImmediately = false;
+        return hedger;
+    }
+
+    /**
+     * Hedge request is seen here as soon as it is created, server manager, hedger's latency measurement and
+     * the race attach to it (four completion actions) right after that, so the test waits for them before completing the request
+     */
+    private CompletableFuture<StorageResponse> awaitRequest(URL storage) throws InterruptedException {
+        List<CompletableFuture<StorageResponse>> requests = storageClient.requests(storage);
+        for (int i = 0; i < 100 && (requests.isEmpty() || requests.get(0).getNumberOfDependents() < 4); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, requests.size());
+        return requests.get(0);
+    }
+
+    /**
+     * Keeps storage requests unanswered, so that the test decides when and how they complete. Requests still
+     * go through per-node limit and server manager, so they are accounted for balancing and circuit breakers.
+     */
+    private static class FakeStorageClient extends StorageClient {
+        private final Map<URL, List<CompletableFuture<StorageResponse>>> requests = new ConcurrentHashMap<>();
+        volatile boolean answerImmediately;
+
+        FakeStorageClient(ServerManager storageManager, Configuration config) {
+            super(storageManager, config.timeouts, config.storageClient);
+        }
+
+        @Override
+        CompletableFuture<StorageResponse> fetchFrom(URL storage, String key) {
+            return getSingle(storage, key);
+        }
+
+        @Override
+        CompletableFuture<StorageResponse> getSingle(URL storage, String key) {
+            CompletableFuture<StorageResponse> request = new CompletableFuture<>();
+            if (answerImmediately) {
+                limit(storage, () -> request);
+                request.complete(new StorageResponse(key, "0", "0"));
+                return request;
+            }
+            requests(storage).add(request);
+            limit(storage, () -> request);
+            return request;
+        }
+
+        List<CompletableFuture<StorageResponse>> requests(URL storage) {
+            return requests.computeIfAbsent(storage, s -> new CopyOnWriteArrayList<>());
+        }
+    }
+}
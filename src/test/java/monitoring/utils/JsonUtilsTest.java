@@ -0,0 +1,42 @@
+package monitoring.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonUtilsTest {
+    @Test
+    public void validJsonTextIsEmbeddedAsIs() throws IOException {
+        assertEquals("[{\"v\":1},[1,2],\"text\",null]",
+                rawOrString("{\"v\":1}", "[1,2]", "\"text\"", null));
+        assertEquals("[ {\"a\": [true, {\"b\": \"}\"}]} ]", rawOrString(" {\"a\": [true, {\"b\": \"}\"}]} "));
+    }
+
+    @Test
+    public void invalidJsonTextIsWrittenAsString() throws IOException {
+        String[] invalid = {"{not json}", "[1, 2", "{\"a\": 1}}", "[1] [2]", "{} x", "\"a\" \"b\"", "\"bad \\q escape\"", "{", "\"", "1.5", "plain"};
+        String written = rawOrString(invalid);
+        // the document stays valid and every value comes back as it was
+        String[] values = new ObjectMapper().readValue(written, String[].class);
+        for (int i = 0; i < invalid.length; i++) {
+            assertEquals(invalid[i], values[i]);
+        }
+    }
+
+    private static String rawOrString(String... values) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = JsonUtils.generator(out)) {
+            generator.writeStartArray();
+            for (String value : values) {
+                JsonUtils.writeRawOrString(generator, value);
+            }
+            generator.writeEndArray();
+        }
+        return out.toString();
+    }
+}
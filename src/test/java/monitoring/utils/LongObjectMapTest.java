@@ -0,0 +1,126 @@
+package monitoring.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongObjectMapTest {
+    // capacity of map created with expected size 4
+    private static final int CAPACITY = 8;
+
+    @Test
+    public void putGetAndReplace() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(-2, "minus two"));
+        assertEquals("one", map.put(1, "uno"));
+        assertEquals("uno", map.get(1));
+        assertEquals("minus two", map.get(-2));
+        assertNull(map.get(3));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void removeKeepsOtherKeysOfProbeChainReachable() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+        List<Long> sameSlot = keysWithSlot(3, 3);
+        for (long key : sameSlot) {
+            map.put(key, "v" + key);
+        }
+        assertEquals("v" + sameSlot.get(0), map.remove(sameSlot.get(0)));
+        assertNull(map.get(sameSlot.get(0)));
+        assertEquals("v" + sameSlot.get(1), map.get(sameSlot.get(1)));
+        assertEquals("v" + sameSlot.get(2), map.get(sameSlot.get(2)));
+        assertEquals(2, map.size());
+        assertNull(map.remove(sameSlot.get(0)));
+    }
+
+    @Test
+    public void shiftBackWrapsAroundEndOfTable() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+        // three keys of the last slot take slots 7, 0 and 1, key of slot 0 is pushed to slot 2
+        List<Long> lastSlot = keysWithSlot(CAPACITY - 1, 3);
+        long firstSlot = keysWithSlot(0, 1).get(0);
+        for (long key : lastSlot) {
+            map.put(key, "v" + key);
+        }
+        map.put(firstSlot, "first");
+
+        map.remove(lastSlot.get(0));
+        assertEquals("v" + lastSlot.get(1), map.get(lastSlot.get(1)));
+        assertEquals("v" + lastSlot.get(2), map.get(lastSlot.get(2)));
+        assertEquals("first", map.get(firstSlot));
+
+        map.remove(lastSlot.get(1));
+        assertEquals("v" + lastSlot.get(2), map.get(lastSlot.get(2)));
+        assertEquals("first", map.get(firstSlot));
+
+        map.remove(lastSlot.get(2));
+        assertEquals("first", map.get(firstSlot));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void entryIsNotMovedBeforeItsHomeSlot() {
+        LongObjectMap<String> map = new LongObjectMap<>(4);
+        long a = keysWithSlot(2, 1).get(0);
+        long b = keysWithSlot(3, 1).get(0);
+        map.put(a, "a");
+        map.put(b, "b");
+        map.remove(a);
+        assertEquals("b", map.get(b));
+        assertTrue(map.containsKey(b));
+        assertFalse(map.containsKey(a));
+    }
+
+    @Test
+    public void behavesLikeHashMapUnderRandomOperations() {
+        LongObjectMap<Long> map = new LongObjectMap<>(4);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(500);
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 500; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        List<Long> values = new ArrayList<>();
+        map.forEachValue(values::add);
+        assertEquals(expected.size(), values.size());
+        map.clear();
+        assertEquals(0, map.size());
+        for (long key = 0; key < 500; key++) {
+            assertNull(map.get(key));
+        }
+    }
+
+    /** Keys whose home slot is the given one in a table of CAPACITY slots, same hash as the map uses **/
+    private static List<Long> keysWithSlot(int slot, int count) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0; keys.size() < count; key++) {
+            long h = key;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            if (((int) h & (CAPACITY - 1)) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,230 @@
+package monitoring.utils;
+
+import monitoring.config.CompressionSettings;
+import monitoring.utils.ResponseCompression.Coding;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ResponseCompressionTest {
+    private static final int MIN_SIZE = 64;
+
+    @Test
+    public void negotiatesAcceptedCodingWithHighestQuality() {
+        assertNull(ResponseCompression.negotiate(null));
+        assertNull(ResponseCompression.negotiate(""));
+        assertEquals(Coding.GZIP, ResponseCompression.negotiate("gzip"));
+        assertEquals(Coding.GZIP, ResponseCompression.negotiate("x-gzip"));
+        assertEquals(Coding.GZIP, ResponseCompression.negotiate("GZip"));
+        assertEquals(Coding.DEFLATE, ResponseCompression.negotiate("deflate"));
+        assertEquals(Coding.GZIP, ResponseCompression.negotiate("deflate, gzip"));
+        assertEquals(Coding.DEFLATE, ResponseCompression.negotiate("gzip;q=0.5, deflate;q=0.8"));
+        assertEquals(Coding.GZIP, ResponseCompression.negotiate("gzip ; q=0.9, deflate;q=0.8, br"));
+    }
+
+    @Test
+    public void zeroQualityMeansNotAcceptable() {
+        assertEquals(Coding.DEFLATE, ResponseCompression.negotiate("gzip;q=0, deflate"));
+        assertNull(ResponseCompression.negotiate("gzip;q=0, deflate;q=0"));
+        assertNull(ResponseCompression.negotiate("gzip;q=invalid"));
+    }
+
+    @Test
+    public void identityAndUnknownCodingsAreNotCompressed() {
+        assertNull(ResponseCompression.negotiate("identity"));
+        assertNull(ResponseCompression.negotiate("br, identity;q=0.5"));
+    }
+
+    @Test
+    public void wildcardAppliesToCodingsNotListed() {
+        assertEquals(Coding.GZIP, ResponseCompression.negotiate("*"));
+        assertNull(ResponseCompression.negotiate("*;q=0"));
+        assertEquals(Coding.DEFLATE, ResponseCompression.negotiate("gzip;q=0, *"));
+        assertEquals(Coding.GZIP, ResponseCompression.negotiate("deflate;q=0.1, *;q=0.5"));
+        assertEquals(Coding.DEFLATE, ResponseCompression.negotiate("*;q=0, deflate"));
+    }
+
+    @Test
+    public void bodyBelowMinSizeIsSentAsIs() throws IOException {
+        FakeResponse response = new FakeResponse();
+        CompressingOutputStream out = new CompressingOutputStream(response.proxy, Coding.GZIP, MIN_SIZE, 6);
+        byte[] body = body(MIN_SIZE - 1);
+        out.write(body);
+        assertEquals(0, response.body.size());
+        out.close();
+        assertNull(response.headers.get("Content-Encoding"));
+        assertArrayEquals(body, response.body.toByteArray());
+    }
+
+    @Test
+    public void gzipBodyRoundTrips() throws IOException {
+        FakeResponse response = new FakeResponse();
+        CompressingOutputStream out = new CompressingOutputStream(response.proxy, Coding.GZIP, MIN_SIZE, 6);
+        byte[] body = body(10_000);
+        out.write(body, 0, 10);
+        out.write(body, 10, body.length - 10);
+        out.close();
+        assertEquals("gzip", response.headers.get("Content-Encoding"));
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+
+    @Test
+    public void deflateBodyRoundTrips() throws IOException {
+        FakeResponse response = new FakeResponse();
+        CompressingOutputStream out = new CompressingOutputStream(response.proxy, Coding.DEFLATE, MIN_SIZE, 1);
+        byte[] body = body(MIN_SIZE);
+        out.write(body);
+        out.close();
+        assertEquals("deflate", response.headers.get("Content-Encoding"));
+        assertArrayEquals(body, readAll(new InflaterInputStream(new ByteArrayInputStream(response.body.toByteArray()))));
+    }
+
+    @Test
+    public void flushSendsEveryPartCompressed() throws IOException {
+        FakeResponse response = new FakeResponse();
+        CompressingOutputStream out = new CompressingOutputStream(response.proxy, Coding.DEFLATE, MIN_SIZE, 6);
+        Inflater inflater = new Inflater();
+        byte[] first = "first part".getBytes(StandardCharsets.UTF_8);
+        out.write(first);
+        // below min-size, but flushed part of a stream must reach the client
+        out.flush();
+        assertEquals("deflate", response.headers.get("Content-Encoding"));
+        assertArrayEquals(first, inflateSent(inflater, response));
+
+        byte[] second = ", second part".getBytes(StandardCharsets.UTF_8);
+        out.write(second);
+        out.flush();
+        assertArrayEquals(second, inflateSent(inflater, response));
+        out.close();
+        inflater.end();
+    }
+
+    @Test
+    public void finishWritesStringBodyOfRoute() throws IOException {
+        ResponseCompression compression = new ResponseCompression(new CompressionSettings(true, MIN_SIZE, 6));
+        FakeResponse small = new FakeResponse();
+        compression.start(small.proxy, "gzip");
+        assertEquals("Accept-Encoding", small.headers.get("Vary"));
+        assertEquals("short", ResponseCompression.finish(small.proxy, "short"));
+        assertEquals(0, small.body.size());
+
+        FakeResponse large = new FakeResponse();
+        compression.start(large.proxy, "gzip");
+        String body = new String(body(MIN_SIZE * 2), StandardCharsets.UTF_8);
+        assertEquals("", ResponseCompression.finish(large.proxy, body));
+        assertEquals("gzip", large.headers.get("Content-Encoding"));
+        assertEquals(body, new String(readAll(new GZIPInputStream(new ByteArrayInputStream(large.body.toByteArray()))),
+                StandardCharsets.UTF_8));
+        // stream is forgotten once the body is finished
+        assertSame(large.output, ResponseCompression.output(large.proxy));
+    }
+
+    @Test
+    public void notAcceptedCodingLeavesBodyToSpark() throws IOException {
+        ResponseCompression compression = new ResponseCompression(new CompressionSettings(true, MIN_SIZE, 6));
+        FakeResponse response = new FakeResponse();
+        compression.start(response.proxy, "identity");
+        assertEquals("Accept-Encoding", response.headers.get("Vary"));
+        assertSame(response.output, ResponseCompression.output(response.proxy));
+        String body = new String(body(MIN_SIZE * 2), StandardCharsets.UTF_8);
+        assertEquals(body, ResponseCompression.finish(response.proxy, body));
+        assertNull(response.headers.get("Content-Encoding"));
+    }
+
+    /** Inflates what was sent since the previous call, sync flush makes it decodable without the end of stream **/
+    private static byte[] inflateSent(Inflater inflater, FakeResponse response) throws IOException {
+        byte[] sent = response.body.toByteArray();
+        inflater.setInput(sent, response.consumed, sent.length - response.consumed);
+        response.consumed = sent.length;
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            for (int n = inflater.inflate(buffer); n > 0; n = inflater.inflate(buffer)) {
+                result.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return result.toByteArray();
+    }
+
+    /** Compressible text of given size **/
+    private static byte[] body(int size) {
+        StringBuilder text = new StringBuilder(size);
+        for (int i = 0; text.length() < size; i++) {
+            text.append("{\"timestamp\":\"").append(i).append("\"},");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            result.write(buffer, 0, n);
+        }
+        return result.toByteArray();
+    }
+
+    /** Servlet response that keeps headers and body in memory **/
+    private static class FakeResponse {
+        final Map<String, String> headers = new HashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int consumed = 0;
+        final ServletOutputStream output = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) { }
+
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        };
+        final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "setHeader":
+                        case "addHeader":
+                            headers.put((String) args[0], (String) args[1]);
+                            return null;
+                        case "getOutputStream":
+                            return output;
+                        case "getContentType":
+                            return headers.get("Content-Type");
+                        case "setContentType":
+                            headers.put("Content-Type", (String) args[0]);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(p);
+                        case "equals":
+                            return p == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,125 @@
+package monitoring.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.Test;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResponseEncodingTest {
+    private static final ObjectMapper json = new ObjectMapper();
+
+    @Test
+    public void negotiatesListedTypeWithHighestQuality() {
+        assertEquals(ResponseEncoding.CBOR, ResponseEncoding.negotiate("application/cbor"));
+        assertEquals(ResponseEncoding.SMILE, ResponseEncoding.negotiate("application/x-jackson-smile"));
+        assertEquals(ResponseEncoding.SMILE, ResponseEncoding.negotiate("Application/Smile"));
+        assertEquals(ResponseEncoding.MSGPACK, ResponseEncoding.negotiate("application/msgpack"));
+        assertEquals(ResponseEncoding.CBOR, ResponseEncoding.negotiate("application/cbor, application/msgpack"));
+        assertEquals(ResponseEncoding.MSGPACK,
+                ResponseEncoding.negotiate("application/cbor;q=0.5, application/x-msgpack ; q=0.9"));
+        assertEquals(ResponseEncoding.JSON,
+                ResponseEncoding.negotiate("application/cbor;q=0.5, application/json"));
+    }
+
+    @Test
+    public void zeroOrInvalidQualityIsNotAcceptable() {
+        assertEquals(ResponseEncoding.SMILE, ResponseEncoding.negotiate("application/cbor;q=0, application/smile;q=0.1"));
+        assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate("application/cbor;q=0"));
+        assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate("application/cbor;q=high"));
+    }
+
+    @Test
+    public void wildcardsStandForJson() {
+        assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate("*/*"));
+        assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate("application/cbor;q=0.5, */*"));
+        assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate("application/*, application/cbor;q=0.9"));
+        // listed type is preferred to wildcard of the same quality
+        assertEquals(ResponseEncoding.CBOR, ResponseEncoding.negotiate("*/*, application/cbor"));
+        assertEquals(ResponseEncoding.CBOR, ResponseEncoding.negotiate("application/cbor;q=0.5, */*;q=0.1"));
+    }
+
+    @Test
+    public void missingOrUnknownTypesGiveJson() {
+        assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate(null));
+        assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate(""));
+        assertEquals(ResponseEncoding.JSON, ResponseEncoding.negotiate("text/html, application/xml;q=0.9"));
+        assertFalse(ResponseEncoding.JSON.isBinary());
+        assertTrue(ResponseEncoding.CBOR.isBinary());
+    }
+
+    @Test
+    public void transcodedDocumentReadsBackInEveryEncoding() throws IOException {
+        String document = "{\"metrics\":[" +
+                "{\"key\":\"a\",\"timestamp\":\"1500000000000\",\"value\":\"{\\\"cpu\\\":0.5,\\\"cores\\\":[1,2]}\"}," +
+                "{\"key\":\"b\",\"timestamp\":\" 42 \",\"value\":\"12\"}," +
+                "{\"key\":\"c\",\"ts\":\"yesterday\",\"value\":\"-1.25\"}," +
+                "{\"key\":\"d\",\"timestamp\":null,\"value\":\"not a number\"}," +
+                "{\"key\":\"e\",\"value\":\"{broken\"}]," +
+                "\"count\":5,\"ratio\":0.75,\"complete\":true,\"error\":null,\"host\":\"1500\"}";
+        String expected = "{\"metrics\":[" +
+                "{\"key\":\"a\",\"timestamp\":1500000000000,\"value\":{\"cpu\":0.5,\"cores\":[1,2]}}," +
+                "{\"key\":\"b\",\"timestamp\":42,\"value\":12}," +
+                "{\"key\":\"c\",\"ts\":\"yesterday\",\"value\":-1.25}," +
+                "{\"key\":\"d\",\"timestamp\":null,\"value\":\"not a number\"}," +
+                "{\"key\":\"e\",\"value\":\"{broken\"}]," +
+                "\"count\":5,\"ratio\":0.75,\"complete\":true,\"error\":null,\"host\":\"1500\"}";
+        assertEquals(json.readTree(expected), transcode(ResponseEncoding.JSON, new JsonFactory(), document));
+        assertEquals(json.readTree(expected), transcode(ResponseEncoding.CBOR, new CBORFactory(), document));
+        assertEquals(json.readTree(expected), transcode(ResponseEncoding.SMILE, new SmileFactory(), document));
+        assertEquals(json.readTree(expected), transcode(ResponseEncoding.MSGPACK, new MessagePackFactory(), document));
+    }
+
+    @Test
+    public void documentWithoutMetricFieldsIsCopiedAsIs() throws IOException {
+        String document = "[{\"id\":7,\"host\":\"h\",\"tags\":[\"x\",\"y\"],\"nested\":{\"empty\":{}}},\"text\",-3,1.5,false]";
+        for (ResponseEncoding encoding : ResponseEncoding.values()) {
+            assertEquals(encoding.name(), json.readTree(document), transcode(encoding, factory(encoding), document));
+        }
+    }
+
+    @Test
+    public void invalidJsonIsRejected() {
+        for (ResponseEncoding encoding : ResponseEncoding.values()) {
+            try {
+                transcode(encoding, factory(encoding), "{\"key\": ");
+                fail(encoding + " should reject invalid document");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /** Transcodes JSON document to encoding and reads the result back with the given factory **/
+    private static JsonNode transcode(ResponseEncoding encoding, JsonFactory factory, String document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = encoding.generator(out)) {
+            JsonUtils.transcode(document, generator);
+        }
+        return new ObjectMapper(factory).readTree(out.toByteArray());
+    }
+
+    private static JsonFactory factory(ResponseEncoding encoding) {
+        switch (encoding) {
+            case CBOR:
+                return new CBORFactory();
+            case SMILE:
+                return new SmileFactory();
+            case MSGPACK:
+                return new MessagePackFactory();
+            default:
+                return new JsonFactory();
+        }
+    }
+}